@@ -0,0 +1,94 @@
+/*******************************************************************************
+ * Copyright 2019 UIA
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package uia.utils.cube.benchmark;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import uia.utils.cube.Cube.Data;
+import uia.utils.cube.CubeBuilder;
+
+/**
+ * Shape of generated data shared by benchmarks.<br>
+ * Row i has tags T0 to T(tags - 1), the value of a tag is one of cardinality values spread by a hash of the row, so
+ * groups are of similar size. Tag values are created once, benchmarks measure the cube only.
+ *
+ * @author Kyle K. Lin
+ *
+ */
+@State(Scope.Benchmark)
+public class CubeData {
+
+    @Param({ "10000", "100000", "1000000", "10000000" })
+    public int rows;
+
+    @Param({ "2", "6" })
+    public int tags;
+
+    @Param({ "10", "1000" })
+    public int cardinality;
+
+    String[] tagNames;
+
+    /**
+     * Tag values, the value of tag t of row i is values[t][code(i, t)].
+     */
+    String[][] values;
+
+    @Setup
+    public void generate() {
+        this.tagNames = new String[this.tags];
+        this.values = new String[this.tags][this.cardinality];
+        for (int t = 0; t < this.tags; t++) {
+            this.tagNames[t] = "T" + t;
+            for (int v = 0; v < this.cardinality; v++) {
+                this.values[t][v] = "T" + t + "V" + v;
+            }
+        }
+    }
+
+    /**
+     * Put all rows into a builder.
+     * @param builder The builder.
+     * @return The builder.
+     */
+    CubeBuilder<Integer> fill(CubeBuilder<Integer> builder) {
+        for (int i = 0; i < this.rows; i++) {
+            Data<Integer> d = builder.put(i);
+            for (int t = 0; t < this.tags; t++) {
+                d.addTag(this.tagNames[t], this.values[t][code(i, t)]);
+            }
+        }
+        return builder;
+    }
+
+    /**
+     * Get code of tag value of a row.
+     * @param row Row.
+     * @param tag Tag.
+     * @return Code from 0 to cardinality - 1.
+     */
+    int code(int row, int tag) {
+        int h = row * 0x9E3779B9 + tag * 0x85EBCA6B;
+        h ^= h >>> 16;
+        return (h & 0x7fffffff) % this.cardinality;
+    }
+}
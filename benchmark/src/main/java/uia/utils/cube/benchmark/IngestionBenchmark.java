@@ -0,0 +1,97 @@
+/*******************************************************************************
+ * Copyright 2019 UIA
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package uia.utils.cube.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uia.utils.cube.ConcurrentCubeBuilder;
+import uia.utils.cube.Cube;
+
+/**
+ * Ingestion time of ConcurrentCubeBuilder fed by 1 to N threads, rows per second is rows divided by the score.
+ *
+ * @author Kyle K. Lin
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class IngestionBenchmark {
+
+    @Param({ "1000000", "4000000" })
+    public int rows;
+
+    @Param({ "1", "2", "4", "8" })
+    public int threads;
+
+    private ExecutorService pool;
+
+    @Setup
+    public void start() {
+        this.pool = Executors.newFixedThreadPool(this.threads);
+    }
+
+    @TearDown
+    public void stop() {
+        this.pool.shutdown();
+    }
+
+    @Benchmark
+    public Cube<Integer> ingest() throws Exception {
+        final ConcurrentCubeBuilder<Integer> builder = new ConcurrentCubeBuilder<>();
+        final int perThread = this.rows / this.threads;
+        List<Future<?>> tasks = new ArrayList<>();
+        for (int t = 0; t < this.threads; t++) {
+            final int offset = t * perThread;
+            tasks.add(this.pool.submit(() -> {
+                for (int i = offset; i < offset + perThread; i++) {
+                    builder.put(i)
+                            .addTag("eqp", "EQP" + i % 100)
+                            .addTag("lot", "LOT" + i % 5000)
+                            .addTag("step", "STEP" + i % 30);
+                }
+            }));
+        }
+        for (Future<?> task : tasks) {
+            task.get();
+        }
+        return builder.build();
+    }
+}
@@ -0,0 +1,97 @@
+/*******************************************************************************
+ * Copyright 2019 UIA
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package uia.utils.cube.benchmark;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uia.utils.cube.Cube;
+import uia.utils.cube.CubeBuilder;
+
+/**
+ * Cost of queries of a ListCube and of the StreamCube selected from it.<br>
+ * Results of select and selectNot are consumed by a count, cubes are lazy until a terminal method is called.
+ *
+ * @author Kyle K. Lin
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class QueryBenchmark {
+
+    private Cube<Integer> cube;
+
+    private String tagName;
+
+    private String tagValue;
+
+    @Setup(Level.Trial)
+    public void setup(CubeData data) {
+        this.cube = data.fill(new CubeBuilder<Integer>()).build();
+        this.tagName = data.tagNames[0];
+        this.tagValue = data.values[0][0];
+    }
+
+    @Benchmark
+    public long select() {
+        return this.cube.select(this.tagName, this.tagValue).values().count();
+    }
+
+    @Benchmark
+    public long selectNot() {
+        return this.cube.selectNot(this.tagName, this.tagValue).values().count();
+    }
+
+    @Benchmark
+    public Map<String, Cube<Integer>> cubes() {
+        return this.cube.cubes(this.tagName);
+    }
+
+    @Benchmark
+    public Map<String, List<Integer>> valuesMapping() {
+        return this.cube.valuesMapping(this.tagName);
+    }
+
+    @Benchmark
+    public Map<String, Integer> singleMapping() {
+        return this.cube.singleMapping(this.tagName);
+    }
+
+    @Benchmark
+    public Map<String, List<Integer>> selectValuesMapping(CubeData data) {
+        return this.cube.selectNot(this.tagName, this.tagValue).valuesMapping(data.tagNames[data.tags - 1]);
+    }
+}
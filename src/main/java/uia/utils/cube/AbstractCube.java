@@ -0,0 +1,382 @@
+/*******************************************************************************
+ * Copyright 2019 UIA
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package uia.utils.cube;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.DoubleSummaryStatistics;
+import java.util.HashMap;
+import java.util.List;
+import java.util.LongSummaryStatistics;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Function;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collector;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Base of cube implementations. Terminal methods are implemented on the data stream of the cube.
+ *
+ * @author Kyle K. Lin
+ *
+ * @param <T> Type of value.
+ */
+public abstract class AbstractCube<T> implements Cube<T> {
+
+    /**
+     * Order of composite keys, tag by tag.
+     */
+    static final Comparator<List<String>> KEY_ORDER = (a, b) -> {
+        Comparator<String> order = Comparator.nullsFirst(Comparator.naturalOrder());
+        for (int i = 0; i < a.size(); i++) {
+            int c = order.compare(a.get(i), b.get(i));
+            if (c != 0) {
+                return c;
+            }
+        }
+        return 0;
+    };
+
+    /**
+     * Grouping used by cubes created from this cube.
+     */
+    final Grouping grouping;
+
+    AbstractCube(Grouping grouping) {
+        this.grouping = grouping;
+    }
+
+    /**
+     * Get data in the cube.
+     * @return Data.
+     */
+    abstract Stream<Data<T>> data();
+
+    /**
+     * Get number of rows a pass over the cube visits.
+     * @return Row count.
+     */
+    abstract long scanned();
+
+    @Override
+    public T single() {
+        Optional<Data<T>> opt = data().findFirst();
+        return opt.isPresent() ? opt.get().value : null;
+    }
+
+    @Override
+    public Stream<T> values() {
+        return data().map(t -> t.value);
+    }
+
+    @Override
+    public Map<String, List<T>> valuesMapping(final String tagName) {
+        return dataMapping(tagName, Collectors.mapping(d -> d.value, Collectors.toList()));
+    }
+
+    @Override
+    public <R> Map<String, List<R>> valuesMapping(String tagName, Function<T, R> f) {
+        return dataMapping(tagName, Collectors.mapping(d -> f.apply(d.value), Collectors.toList()));
+    }
+
+    @Override
+    public Map<List<String>, List<T>> valuesMapping(String... tagNames) {
+        return group(data(), key(tagNames), d -> d.value);
+    }
+
+    @Override
+    public <A, R> Map<String, R> valuesMapping(String tagName, Collector<? super T, A, R> collector) {
+        return dataMapping(tagName, Collectors.mapping(d -> d.value, collector));
+    }
+
+    @Override
+    public Map<String, Long> countMapping(String tagName) {
+        return valuesMapping(tagName, Collectors.counting());
+    }
+
+    @Override
+    public Map<String, LongSummaryStatistics> longSummaryMapping(String tagName, ToLongFunction<? super T> f) {
+        return valuesMapping(tagName, Collectors.summarizingLong(f));
+    }
+
+    @Override
+    public Map<String, DoubleSummaryStatistics> doubleSummaryMapping(String tagName, ToDoubleFunction<? super T> f) {
+        return valuesMapping(tagName, Collectors.summarizingDouble(f));
+    }
+
+    @Override
+    public SortedSet<String> distinct(String tagName) {
+        return data()
+                .map(d -> d.getTag(tagName))
+                .filter(Objects::nonNull)
+                .collect(Collectors.toCollection(TreeSet::new));
+    }
+
+    @Override
+    public long approximateDistinct(String tagName) {
+        return sketch(tagName).estimate();
+    }
+
+    @Override
+    public LongSummaryStatistics longSummary(String numberTag) {
+        return data().collect(summarizingLong(numberTag));
+    }
+
+    @Override
+    public DoubleSummaryStatistics doubleSummary(String numberTag) {
+        return data().collect(summarizingDouble(numberTag));
+    }
+
+    @Override
+    public Map<String, LongSummaryStatistics> longSummaryMapping(String tagName, String numberTag) {
+        return dataMapping(tagName, summarizingLong(numberTag));
+    }
+
+    @Override
+    public Map<String, DoubleSummaryStatistics> doubleSummaryMapping(String tagName, String numberTag) {
+        return dataMapping(tagName, summarizingDouble(numberTag));
+    }
+
+    @Override
+    public Pivot pivot(String rowTag, String columnTag) {
+        return collect(Pivot.collector(rowTag, columnTag, null, true));
+    }
+
+    @Override
+    public Pivot pivotLong(String rowTag, String columnTag, String numberTag) {
+        return collect(Pivot.collector(rowTag, columnTag, numberTag, true));
+    }
+
+    @Override
+    public Pivot pivotDouble(String rowTag, String columnTag, String numberTag) {
+        return collect(Pivot.collector(rowTag, columnTag, numberTag, false));
+    }
+
+    @Override
+    public List<T> topK(int n, Comparator<? super T> comparator) {
+        return values().collect(TopK.collector(n, comparator));
+    }
+
+    @Override
+    public Map<String, List<T>> topKMapping(String tagName, int n, Comparator<? super T> comparator) {
+        return valuesMapping(tagName, TopK.collector(n, comparator));
+    }
+
+    @Override
+    public Map<String, T> singleMapping(final String tagName) {
+        TreeMap<String, T> result = new TreeMap<>();
+        valuesMapping(tagName).forEach((k, v) -> result.put(k, v.get(0)));
+        return result;
+    }
+
+    @Override
+    public <R> Map<String, R> singleMapping(String tagName, Function<T, R> f) {
+        TreeMap<String, R> result = new TreeMap<>();
+        valuesMapping(tagName).forEach((k, v) -> result.put(k, f.apply(v.get(0))));
+        return result;
+    }
+
+    @Override
+    public Map<List<String>, Cube<T>> cubes(String... tagNames) {
+        final TreeMap<List<String>, Cube<T>> result = new TreeMap<>(KEY_ORDER);
+        group(data(), key(tagNames), d -> d).forEach((k, v) -> result.put(k, new ListCube<T>(v, this.grouping)));
+        return result;
+    }
+
+    /**
+     * Build a HyperLogLog sketch of values of a tag.
+     * @param tagName Tag name.
+     * @return Sketch.
+     */
+    HyperLogLog sketch(String tagName) {
+        return data().map(d -> d.getTag(tagName)).collect(HyperLogLog.collector());
+    }
+
+    /**
+     * Collect all data.
+     * @param collector Collector of data.
+     * @return Result.
+     */
+    <A, R> R collect(Collector<Data<T>, A, R> collector) {
+        return data().collect(collector);
+    }
+
+    /**
+     * Collect data grouping by tag. Data without the tag are ignored.
+     * @param tagName Tag name.
+     * @param collector Collector of data.
+     * @return Result.
+     */
+    <A, R> Map<String, R> dataMapping(String tagName, Collector<Data<T>, A, R> collector) {
+        return Grouping.collect(data(), d -> d.getTag(tagName), null, collector);
+    }
+
+    /**
+     * Summarize a long tag of data without boxing. Data without the tag are ignored.
+     * @param numberTag Name of the long tag.
+     * @param <T> Type of value.
+     * @return Collector.
+     */
+    static <T> Collector<Data<T>, LongSummaryStatistics, LongSummaryStatistics> summarizingLong(String numberTag) {
+        return Collector.of(
+                LongSummaryStatistics::new,
+                (s, d) -> {
+                    if (d.hasNumber(numberTag)) {
+                        s.accept(d.getLong(numberTag, 0));
+                    }
+                },
+                (a, b) -> {
+                    a.combine(b);
+                    return a;
+                });
+    }
+
+    /**
+     * Summarize a numeric tag of data without boxing. Data without the tag are ignored.
+     * @param numberTag Name of the numeric tag.
+     * @param <T> Type of value.
+     * @return Collector.
+     */
+    static <T> Collector<Data<T>, DoubleSummaryStatistics, DoubleSummaryStatistics> summarizingDouble(String numberTag) {
+        return Collector.of(
+                DoubleSummaryStatistics::new,
+                (s, d) -> {
+                    if (d.hasNumber(numberTag)) {
+                        s.accept(d.getDouble(numberTag, 0));
+                    }
+                },
+                (a, b) -> {
+                    a.combine(b);
+                    return a;
+                });
+    }
+
+    /**
+     * Get data of any cube. Data of a cube implemented out of this package are visited by a selection function.
+     * @param cube The cube.
+     * @return Data.
+     */
+    static <T> Stream<Data<T>> dataOf(Cube<T> cube) {
+        if (wraps(cube)) {
+            return unwrap(cube).data();
+        }
+        List<Data<T>> result = Collections.synchronizedList(new ArrayList<>());
+        cube.select(d -> !result.add(d)).values().forEach(v -> { });
+        return result.stream();
+    }
+
+    /**
+     * Get grouping of any cube. A cube implemented out of this package groups sequentially.
+     * @param cube The cube.
+     * @return Grouping.
+     */
+    static Grouping groupingOf(Cube<?> cube) {
+        return wraps(cube) ? unwrap(cube).grouping : Grouping.SEQUENTIAL;
+    }
+
+    /**
+     * Get the cube holding data of a cube which wraps another one.
+     * @param cube The cube.
+     * @param <T> Type of value.
+     * @return Cube holding data.
+     */
+    static <T> AbstractCube<T> unwrap(Cube<T> cube) {
+        if (cube instanceof AbstractCube) {
+            return (AbstractCube<T>) cube;
+        }
+        if (cube instanceof CachedCube) {
+            return unwrap(((CachedCube<T>) cube).cube());
+        }
+        if (cube instanceof InstrumentedCube) {
+            return unwrap(((InstrumentedCube<T>) cube).cube());
+        }
+        if (cube instanceof SampledCube) {
+            return unwrap(((SampledCube<T>) cube).cube());
+        }
+        if (cube instanceof AppendableCube) {
+            return unwrap(((AppendableCube<T>) cube).snapshot());
+        }
+        throw new IllegalArgumentException("unsupported cube: " + cube.getClass().getName());
+    }
+
+    private static boolean wraps(Cube<?> cube) {
+        return cube instanceof AbstractCube
+                || cube instanceof CachedCube
+                || cube instanceof InstrumentedCube
+                || cube instanceof SampledCube
+                || cube instanceof AppendableCube;
+    }
+
+    /**
+     * Indent every line of a text.
+     * @param text Text.
+     * @return Indented text.
+     */
+    static String indent(String text) {
+        return "  " + text.replace("\n", "\n  ");
+    }
+
+    /**
+     * Create a function to get composite key of data.
+     * @param tagNames Tag names.
+     * @return Function. The key is null if data miss any of the tags.
+     */
+    static <T> Function<Data<T>, List<String>> key(String... tagNames) {
+        final String[] names = tagNames.clone();
+        return d -> {
+            String[] key = new String[names.length];
+            for (int i = 0; i < names.length; i++) {
+                key[i] = d.getTag(names[i]);
+                if (key[i] == null) {
+                    return null;
+                }
+            }
+            return Collections.unmodifiableList(Arrays.asList(key));
+        };
+    }
+
+    /**
+     * Group data by composite key in one pass. Data without a key are ignored.
+     * @param data Data.
+     * @param key Function to get composite key of data.
+     * @param mapper Function to convert data to a grouped value.
+     * @return Groups ordered by composite key.
+     */
+    static <T, R> TreeMap<List<String>, List<R>> group(Stream<Data<T>> data, Function<Data<T>, List<String>> key, Function<Data<T>, R> mapper) {
+        final HashMap<List<String>, List<R>> raw = new HashMap<>();
+        data.forEach(d -> {
+            List<String> k = key.apply(d);
+            if (k != null) {
+                raw.computeIfAbsent(k, x -> new ArrayList<>()).add(mapper.apply(d));
+            }
+        });
+        TreeMap<List<String>, List<R>> result = new TreeMap<>(KEY_ORDER);
+        result.putAll(raw);
+        return result;
+    }
+}
@@ -0,0 +1,399 @@
+/*******************************************************************************
+ * Copyright 2019 UIA
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package uia.utils.cube;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.DoubleSummaryStatistics;
+import java.util.List;
+import java.util.LongSummaryStatistics;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.function.Function;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collector;
+import java.util.stream.Stream;
+
+/**
+ * Cube accepting new data after it is built.<br>
+ * Writers put data and commit them as a new indexed segment. Readers query an immutable snapshot of committed segments,
+ * so a reader never sees a half written batch. Only the new segment is indexed on commit; small trailing segments are merged
+ * so the number of segments stays logarithmic to the data size.<br>
+ * Every method of Cube runs on the latest snapshot, use snapshot() to run several queries on the same one.<br>
+ * put() and commit() of the cube serve one writer. Concurrent writers use batch(), every writer tags data of its own batch
+ * and commits the batch when the tags are complete.
+ *
+ * @author Kyle K. Lin
+ *
+ * @param <T> Type of value.
+ */
+public class AppendableCube<T> implements Cube<T> {
+
+    private final Object writeLock;
+
+    private ArrayList<Data<T>> pending;
+
+    private NumberStore pendingNumbers;
+
+    private volatile Snapshot<T> current;
+
+    /**
+     * Constructor.
+     */
+    public AppendableCube() {
+        this.writeLock = new Object();
+        this.pending = new ArrayList<>();
+        this.pendingNumbers = new NumberStore();
+        this.current = new Snapshot<>(0, Collections.emptyList());
+    }
+
+    /**
+     * Start a batch of a writer. Data of the batch are invisible to other writers and published by commit of the batch.
+     * @return Batch.
+     */
+    public Batch<T> batch() {
+        return new Batch<>(this);
+    }
+
+    /**
+     * Add a new value. The value is invisible to readers until commit.<br>
+     * Tags of the data must be added before commit and not changed after commit.
+     * @param value Value.
+     * @return Data.
+     */
+    public Data<T> put(T value) {
+        Data<T> d = new Data<>(value);
+        synchronized (this.writeLock) {
+            d.withNumbers(this.pendingNumbers, this.pending.size());
+            this.pending.add(d);
+        }
+        return d;
+    }
+
+    /**
+     * Publish all pending data as a new snapshot.
+     * @return Epoch of the new snapshot.
+     */
+    public long commit() {
+        synchronized (this.writeLock) {
+            ArrayList<Data<T>> data = this.pending;
+            this.pending = new ArrayList<>();
+            this.pendingNumbers = new NumberStore();
+            return publish(data);
+        }
+    }
+
+    private long publish(List<Data<T>> data) {
+        synchronized (this.writeLock) {
+            Snapshot<T> snapshot = this.current;
+            if (data.isEmpty()) {
+                return snapshot.epoch;
+            }
+
+            ArrayList<Segment<T>> segments = new ArrayList<>(snapshot.segments);
+            Segment<T> last = new Segment<>(data);
+            // merge trailing segments which are not much larger than the new one.
+            while (!segments.isEmpty() && segments.get(segments.size() - 1).size() <= last.size() * 2) {
+                last = segments.remove(segments.size() - 1).merge(last);
+            }
+            segments.add(last);
+
+            this.current = new Snapshot<>(snapshot.epoch + 1, Collections.unmodifiableList(segments));
+            return snapshot.epoch + 1;
+        }
+    }
+
+    /**
+     * Get a consistent view of committed data.
+     * @return Cube.
+     */
+    public Cube<T> snapshot() {
+        return this.current.cube;
+    }
+
+    /**
+     * Get epoch of the latest snapshot. Epoch increases at every commit with new data.
+     * @return Epoch.
+     */
+    public long getEpoch() {
+        return this.current.epoch;
+    }
+
+    /**
+     * Get number of segments of the latest snapshot.
+     * @return Segment count.
+     */
+    public int getSegmentCount() {
+        return this.current.segments.size();
+    }
+
+    @Override
+    public String explain() {
+        Snapshot<T> snapshot = this.current;
+        return "appendable: epoch " + snapshot.epoch + "\n" + AbstractCube.indent(snapshot.cube.explain());
+    }
+
+    @Override
+    public Map<String, Cube<T>> cubes(String tagName) {
+        return snapshot().cubes(tagName);
+    }
+
+    @Override
+    public Map<List<String>, Cube<T>> cubes(String... tagNames) {
+        return snapshot().cubes(tagNames);
+    }
+
+    @Override
+    public Cube<T> select(Query query) {
+        return snapshot().select(query);
+    }
+
+    @Override
+    public Cube<T> select(Function<Data<T>, Boolean> function) {
+        return snapshot().select(function);
+    }
+
+    @Override
+    public Cube<T> select(String tagName, String tagValue) {
+        return snapshot().select(tagName, tagValue);
+    }
+
+    @Override
+    public Cube<T> selectIn(String tagName, String... tagValues) {
+        return snapshot().selectIn(tagName, tagValues);
+    }
+
+    @Override
+    public Cube<T> selectRange(String tagName, String fromValue, String toValue) {
+        return snapshot().selectRange(tagName, fromValue, toValue);
+    }
+
+    @Override
+    public Cube<T> selectPrefix(String tagName, String prefix) {
+        return snapshot().selectPrefix(tagName, prefix);
+    }
+
+    @Override
+    public Cube<T> selectNot(String tagName, String tagValue) {
+        return snapshot().selectNot(tagName, tagValue);
+    }
+
+    @Override
+    public Stream<T> values() {
+        return snapshot().values();
+    }
+
+    @Override
+    public Map<String, List<T>> valuesMapping(String tagName) {
+        return snapshot().valuesMapping(tagName);
+    }
+
+    @Override
+    public <R> Map<String, List<R>> valuesMapping(String tagName, Function<T, R> f) {
+        return snapshot().valuesMapping(tagName, f);
+    }
+
+    @Override
+    public Map<List<String>, List<T>> valuesMapping(String... tagNames) {
+        return snapshot().valuesMapping(tagNames);
+    }
+
+    @Override
+    public <A, R> Map<String, R> valuesMapping(String tagName, Collector<? super T, A, R> collector) {
+        return snapshot().valuesMapping(tagName, collector);
+    }
+
+    @Override
+    public Map<String, Long> countMapping(String tagName) {
+        return snapshot().countMapping(tagName);
+    }
+
+    @Override
+    public Map<String, LongSummaryStatistics> longSummaryMapping(String tagName, ToLongFunction<? super T> f) {
+        return snapshot().longSummaryMapping(tagName, f);
+    }
+
+    @Override
+    public Map<String, DoubleSummaryStatistics> doubleSummaryMapping(String tagName, ToDoubleFunction<? super T> f) {
+        return snapshot().doubleSummaryMapping(tagName, f);
+    }
+
+    @Override
+    public SortedSet<String> distinct(String tagName) {
+        return snapshot().distinct(tagName);
+    }
+
+    @Override
+    public long approximateDistinct(String tagName) {
+        return snapshot().approximateDistinct(tagName);
+    }
+
+    @Override
+    public LongSummaryStatistics longSummary(String numberTag) {
+        return snapshot().longSummary(numberTag);
+    }
+
+    @Override
+    public DoubleSummaryStatistics doubleSummary(String numberTag) {
+        return snapshot().doubleSummary(numberTag);
+    }
+
+    @Override
+    public Map<String, LongSummaryStatistics> longSummaryMapping(String tagName, String numberTag) {
+        return snapshot().longSummaryMapping(tagName, numberTag);
+    }
+
+    @Override
+    public Map<String, DoubleSummaryStatistics> doubleSummaryMapping(String tagName, String numberTag) {
+        return snapshot().doubleSummaryMapping(tagName, numberTag);
+    }
+
+    @Override
+    public Pivot pivot(String rowTag, String columnTag) {
+        return snapshot().pivot(rowTag, columnTag);
+    }
+
+    @Override
+    public Pivot pivotLong(String rowTag, String columnTag, String numberTag) {
+        return snapshot().pivotLong(rowTag, columnTag, numberTag);
+    }
+
+    @Override
+    public Pivot pivotDouble(String rowTag, String columnTag, String numberTag) {
+        return snapshot().pivotDouble(rowTag, columnTag, numberTag);
+    }
+
+    @Override
+    public List<T> topK(int n, Comparator<? super T> comparator) {
+        return snapshot().topK(n, comparator);
+    }
+
+    @Override
+    public Map<String, List<T>> topKMapping(String tagName, int n, Comparator<? super T> comparator) {
+        return snapshot().topKMapping(tagName, n, comparator);
+    }
+
+    @Override
+    public Sample<T> sample() {
+        return snapshot().sample();
+    }
+
+    @Override
+    public T single() {
+        return snapshot().single();
+    }
+
+    @Override
+    public Map<String, T> singleMapping(String tagName) {
+        return snapshot().singleMapping(tagName);
+    }
+
+    @Override
+    public <R> Map<String, R> singleMapping(String tagName, Function<T, R> f) {
+        return snapshot().singleMapping(tagName, f);
+    }
+
+    /**
+     * Data of one writer committed together.
+     *
+     * @author Kyle K. Lin
+     *
+     * @param <T> Type of value.
+     */
+    public static class Batch<T> {
+
+        private final AppendableCube<T> cube;
+
+        private ArrayList<Data<T>> data;
+
+        private NumberStore numbers;
+
+        Batch(AppendableCube<T> cube) {
+            this.cube = cube;
+            this.data = new ArrayList<>();
+            this.numbers = new NumberStore();
+        }
+
+        /**
+         * Add a new value. The value is invisible to readers until commit of the batch.
+         * @param value Value.
+         * @return Data.
+         */
+        public Data<T> put(T value) {
+            Data<T> d = new Data<>(value).withNumbers(this.numbers, this.data.size());
+            this.data.add(d);
+            return d;
+        }
+
+        /**
+         * Publish data of the batch as a new snapshot. The batch is empty after commit and can be reused.
+         * @return Epoch of the new snapshot.
+         */
+        public long commit() {
+            ArrayList<Data<T>> data = this.data;
+            this.data = new ArrayList<>();
+            this.numbers = new NumberStore();
+            return this.cube.publish(data);
+        }
+    }
+
+    private static class Snapshot<T> {
+
+        private final long epoch;
+
+        private final List<Segment<T>> segments;
+
+        private final Cube<T> cube;
+
+        Snapshot(long epoch, List<Segment<T>> segments) {
+            this.epoch = epoch;
+            this.segments = segments;
+            ArrayList<AbstractCube<T>> cubes = new ArrayList<>(segments.size());
+            segments.forEach(s -> cubes.add(s.cube));
+            this.cube = new SegmentedCube<>(Collections.unmodifiableList(cubes), Grouping.SEQUENTIAL);
+        }
+    }
+
+    private static class Segment<T> {
+
+        private final int size;
+
+        private final IndexedCube<T> cube;
+
+        Segment(List<Data<T>> data) {
+            this(data.size(), new IndexedCube<>(data));
+        }
+
+        private Segment(int size, IndexedCube<T> cube) {
+            this.size = size;
+            this.cube = cube;
+        }
+
+        int size() {
+            return this.size;
+        }
+
+        Segment<T> merge(Segment<T> next) {
+            // postings of the next segment are shifted and joined, tags are not read again.
+            return new Segment<>(this.size + next.size, this.cube.append(next.cube));
+        }
+    }
+}
@@ -0,0 +1,369 @@
+/*******************************************************************************
+ * Copyright 2019 UIA
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package uia.utils.cube;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.DoubleSummaryStatistics;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.LongSummaryStatistics;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collector;
+import java.util.stream.Stream;
+
+/**
+ * Cube which memoizes results of another cube.<br>
+ * Results of methods taking only tag names and tag values are kept in a bounded LRU cache shared by the cube and all cubes
+ * selected from it. Methods taking functions or collectors are not cached. Cached maps and their lists are unmodifiable.<br>
+ * Hits and misses are counted by the cube and, if given, by statistics of an instrumented cube wrapping it.
+ *
+ * @author Kyle K. Lin
+ *
+ * @param <T> Type of value.
+ */
+public class CachedCube<T> implements Cube<T> {
+
+    private final Cube<T> cube;
+
+    private final Cache cache;
+
+    /**
+     * Path from the root cube to this cube, used as prefix of cache keys.
+     */
+    private final List<Object> path;
+
+    CachedCube(Cube<T> cube, int maxSize) {
+        this(cube, maxSize, null);
+    }
+
+    CachedCube(Cube<T> cube, int maxSize, CubeStats stats) {
+        this(cube, new Cache(maxSize, stats), Collections.emptyList());
+    }
+
+    private CachedCube(Cube<T> cube, Cache cache, List<Object> path) {
+        this.cube = cube;
+        this.cache = cache;
+        this.path = path;
+    }
+
+    /**
+     * Get number of results answered from the cache.
+     * @return Hit count.
+     */
+    public long getHitCount() {
+        return this.cache.hits.get();
+    }
+
+    /**
+     * Get number of results computed by the cube.
+     * @return Miss count.
+     */
+    public long getMissCount() {
+        return this.cache.misses.get();
+    }
+
+    /**
+     * Get number of results in the cache.
+     * @return Size.
+     */
+    public int getCacheSize() {
+        synchronized (this.cache) {
+            return this.cache.size();
+        }
+    }
+
+    /**
+     * Remove all results from the cache.
+     */
+    public void clearCache() {
+        synchronized (this.cache) {
+            this.cache.clear();
+        }
+    }
+
+    Cube<T> cube() {
+        return this.cube;
+    }
+
+    @Override
+    public String explain() {
+        return "cache: hits " + getHitCount() + ", misses " + getMissCount() + "\n" + AbstractCube.indent(this.cube.explain());
+    }
+
+    @Override
+    public Map<String, Cube<T>> cubes(String tagName) {
+        final List<Object> key = key("cubes", tagName);
+        return get(key, () -> {
+            TreeMap<String, Cube<T>> result = new TreeMap<>();
+            this.cube.cubes(tagName).forEach((k, v) -> result.put(k, child(v, key, k)));
+            return Collections.unmodifiableMap(result);
+        });
+    }
+
+    @Override
+    public Map<List<String>, Cube<T>> cubes(String... tagNames) {
+        final List<Object> key = key("cubes", Arrays.asList(tagNames));
+        return get(key, () -> {
+            TreeMap<List<String>, Cube<T>> result = new TreeMap<>(AbstractCube.KEY_ORDER);
+            this.cube.cubes(tagNames).forEach((k, v) -> result.put(k, child(v, key, k)));
+            return Collections.unmodifiableMap(result);
+        });
+    }
+
+    @Override
+    public Cube<T> select(Query query) {
+        return this.cube.select(query);
+    }
+
+    @Override
+    public Cube<T> select(Function<Data<T>, Boolean> function) {
+        return this.cube.select(function);
+    }
+
+    @Override
+    public Cube<T> select(String tagName, String tagValue) {
+        final List<Object> key = key("select", tagName, tagValue);
+        return get(key, () -> child(this.cube.select(tagName, tagValue), key));
+    }
+
+    @Override
+    public Cube<T> selectIn(String tagName, String... tagValues) {
+        final List<Object> key = key("selectIn", tagName, Arrays.asList(tagValues));
+        return get(key, () -> child(this.cube.selectIn(tagName, tagValues), key));
+    }
+
+    @Override
+    public Cube<T> selectRange(String tagName, String fromValue, String toValue) {
+        final List<Object> key = key("selectRange", tagName, fromValue, toValue);
+        return get(key, () -> child(this.cube.selectRange(tagName, fromValue, toValue), key));
+    }
+
+    @Override
+    public Cube<T> selectPrefix(String tagName, String prefix) {
+        final List<Object> key = key("selectPrefix", tagName, prefix);
+        return get(key, () -> child(this.cube.selectPrefix(tagName, prefix), key));
+    }
+
+    @Override
+    public Cube<T> selectNot(String tagName, String tagValue) {
+        final List<Object> key = key("selectNot", tagName, tagValue);
+        return get(key, () -> child(this.cube.selectNot(tagName, tagValue), key));
+    }
+
+    @Override
+    public Stream<T> values() {
+        return this.cube.values();
+    }
+
+    @Override
+    public Map<String, List<T>> valuesMapping(String tagName) {
+        return get(key("valuesMapping", tagName), () -> unmodifiable(this.cube.valuesMapping(tagName), null));
+    }
+
+    @Override
+    public <R> Map<String, List<R>> valuesMapping(String tagName, Function<T, R> f) {
+        return this.cube.valuesMapping(tagName, f);
+    }
+
+    @Override
+    public Map<List<String>, List<T>> valuesMapping(String... tagNames) {
+        return get(key("valuesMapping", Arrays.asList(tagNames)), () -> unmodifiable(this.cube.valuesMapping(tagNames), AbstractCube.KEY_ORDER));
+    }
+
+    @Override
+    public <A, R> Map<String, R> valuesMapping(String tagName, Collector<? super T, A, R> collector) {
+        return this.cube.valuesMapping(tagName, collector);
+    }
+
+    @Override
+    public Map<String, Long> countMapping(String tagName) {
+        return get(key("countMapping", tagName), () -> Collections.unmodifiableMap(this.cube.countMapping(tagName)));
+    }
+
+    @Override
+    public Map<String, LongSummaryStatistics> longSummaryMapping(String tagName, ToLongFunction<? super T> f) {
+        return this.cube.longSummaryMapping(tagName, f);
+    }
+
+    @Override
+    public Map<String, DoubleSummaryStatistics> doubleSummaryMapping(String tagName, ToDoubleFunction<? super T> f) {
+        return this.cube.doubleSummaryMapping(tagName, f);
+    }
+
+    @Override
+    public SortedSet<String> distinct(String tagName) {
+        return get(key("distinct", tagName), () -> Collections.unmodifiableSortedSet(this.cube.distinct(tagName)));
+    }
+
+    @Override
+    public long approximateDistinct(String tagName) {
+        return this.cube.approximateDistinct(tagName);
+    }
+
+    @Override
+    public LongSummaryStatistics longSummary(String numberTag) {
+        return this.cube.longSummary(numberTag);
+    }
+
+    @Override
+    public DoubleSummaryStatistics doubleSummary(String numberTag) {
+        return this.cube.doubleSummary(numberTag);
+    }
+
+    @Override
+    public Map<String, LongSummaryStatistics> longSummaryMapping(String tagName, String numberTag) {
+        return this.cube.longSummaryMapping(tagName, numberTag);
+    }
+
+    @Override
+    public Map<String, DoubleSummaryStatistics> doubleSummaryMapping(String tagName, String numberTag) {
+        return this.cube.doubleSummaryMapping(tagName, numberTag);
+    }
+
+    @Override
+    public Pivot pivot(String rowTag, String columnTag) {
+        return this.cube.pivot(rowTag, columnTag);
+    }
+
+    @Override
+    public Pivot pivotLong(String rowTag, String columnTag, String numberTag) {
+        return this.cube.pivotLong(rowTag, columnTag, numberTag);
+    }
+
+    @Override
+    public Pivot pivotDouble(String rowTag, String columnTag, String numberTag) {
+        return this.cube.pivotDouble(rowTag, columnTag, numberTag);
+    }
+
+    @Override
+    public List<T> topK(int n, Comparator<? super T> comparator) {
+        return this.cube.topK(n, comparator);
+    }
+
+    @Override
+    public Map<String, List<T>> topKMapping(String tagName, int n, Comparator<? super T> comparator) {
+        return this.cube.topKMapping(tagName, n, comparator);
+    }
+
+    @Override
+    public Sample<T> sample() {
+        return this.cube.sample();
+    }
+
+    @Override
+    public T single() {
+        return this.cube.single();
+    }
+
+    @Override
+    public Map<String, T> singleMapping(String tagName) {
+        return get(key("singleMapping", tagName), () -> Collections.unmodifiableMap(this.cube.singleMapping(tagName)));
+    }
+
+    @Override
+    public <R> Map<String, R> singleMapping(String tagName, Function<T, R> f) {
+        return this.cube.singleMapping(tagName, f);
+    }
+
+    @Override
+    public String toString() {
+        return this.cube.toString();
+    }
+
+    private CachedCube<T> child(Cube<T> child, List<Object> key, Object... more) {
+        ArrayList<Object> childPath = new ArrayList<>(key);
+        childPath.addAll(Arrays.asList(more));
+        return new CachedCube<>(child, this.cache, childPath);
+    }
+
+    private List<Object> key(String method, Object... args) {
+        ArrayList<Object> key = new ArrayList<>(this.path.size() + args.length + 1);
+        key.addAll(this.path);
+        key.add(method);
+        key.addAll(Arrays.asList(args));
+        return key;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <R> R get(List<Object> key, Supplier<R> supplier) {
+        synchronized (this.cache) {
+            Object result = this.cache.get(key);
+            if (result != null) {
+                this.cache.record(true);
+                return (R) result;
+            }
+        }
+        // compute outside the lock, concurrent misses of the same key may compute twice.
+        this.cache.record(false);
+        R result = supplier.get();
+        synchronized (this.cache) {
+            this.cache.put(key, result);
+        }
+        return result;
+    }
+
+    private static <K, V> Map<K, List<V>> unmodifiable(Map<K, List<V>> map, Comparator<? super K> comparator) {
+        TreeMap<K, List<V>> result = new TreeMap<>(comparator);
+        map.forEach((k, v) -> result.put(k, Collections.unmodifiableList(v)));
+        return Collections.unmodifiableMap(result);
+    }
+
+    private static class Cache extends LinkedHashMap<List<Object>, Object> {
+
+        private static final long serialVersionUID = 4265387196517021840L;
+
+        private final int maxSize;
+
+        private final AtomicLong hits;
+
+        private final AtomicLong misses;
+
+        private final CubeStats stats;
+
+        Cache(int maxSize, CubeStats stats) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+            this.hits = new AtomicLong();
+            this.misses = new AtomicLong();
+            this.stats = stats;
+        }
+
+        void record(boolean hit) {
+            (hit ? this.hits : this.misses).incrementAndGet();
+            if (this.stats != null) {
+                this.stats.cached(hit);
+            }
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<List<Object>, Object> eldest) {
+            return size() > this.maxSize;
+        }
+    }
+}
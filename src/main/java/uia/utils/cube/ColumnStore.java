@@ -0,0 +1,137 @@
+/*******************************************************************************
+ * Copyright 2019 UIA
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package uia.utils.cube;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.BiConsumer;
+
+/**
+ * Columnar storage of tags.<br>
+ * Tag names are mapped to column ids and tag values are dictionary encoded to int codes per column.
+ *
+ * @author Kyle K. Lin
+ *
+ */
+final class ColumnStore implements TagStore {
+
+    private final TreeMap<String, Column> columns;
+
+    ColumnStore() {
+        this.columns = new TreeMap<>();
+    }
+
+    @Override
+    public String get(int row, String tagName) {
+        Column column = this.columns.get(tagName);
+        return column == null ? null : column.get(row);
+    }
+
+    @Override
+    public void set(int row, String tagName, String tagValue) {
+        Column column = this.columns.get(tagName);
+        if (column == null) {
+            column = new Column();
+            this.columns.put(tagName, column);
+        }
+        column.set(row, tagValue);
+    }
+
+    @Override
+    public void forEach(int row, BiConsumer<String, String> consumer) {
+        this.columns.forEach((n, c) -> {
+            String v = c.get(row);
+            if (v != null) {
+                consumer.accept(n, v);
+            }
+        });
+    }
+
+    /**
+     * Get names of all columns.
+     * @return Tag names in order.
+     */
+    Set<String> tagNames() {
+        return this.columns.keySet();
+    }
+
+    /**
+     * Get dictionary of a column, tag value of code c is the element at c - 1.
+     * @param tagName Tag name.
+     * @return Dictionary.
+     */
+    List<String> dictionary(String tagName) {
+        return this.columns.get(tagName).dictionary;
+    }
+
+    /**
+     * Get code of tag value of a row.
+     * @param row Row id.
+     * @param tagName Tag name.
+     * @return Code, 0 means no value.
+     */
+    int code(int row, String tagName) {
+        int[] rows = this.columns.get(tagName).rows;
+        return row < rows.length ? rows[row] : 0;
+    }
+
+    private static class Column {
+
+        private final HashMap<String, Integer> codes;
+
+        private final ArrayList<String> dictionary;
+
+        /**
+         * Code of tag value per row. 0 means no value, otherwise index of dictionary + 1.
+         */
+        private int[] rows;
+
+        Column() {
+            this.codes = new HashMap<>();
+            this.dictionary = new ArrayList<>();
+            this.rows = new int[16];
+        }
+
+        String get(int row) {
+            int code = row < this.rows.length ? this.rows[row] : 0;
+            return code == 0 ? null : this.dictionary.get(code - 1);
+        }
+
+        void set(int row, String value) {
+            if (row >= this.rows.length) {
+                this.rows = Arrays.copyOf(this.rows, Math.max(row + 1, this.rows.length * 2));
+            }
+            if (value == null) {
+                this.rows[row] = 0;
+                return;
+            }
+            Integer code = this.codes.get(value);
+            if (code == null) {
+                this.dictionary.add(value);
+                code = this.dictionary.size();
+                this.codes.put(value, code);
+            }
+            this.rows[row] = code;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*******************************************************************************
+ * Copyright 2019 UIA
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package uia.utils.cube;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import uia.utils.cube.Cube.Data;
+
+/**
+ * Cube builder which can be fed by many threads.<br>
+ * Every thread puts data into its own buffer, put() only locks that buffer and never waits for other threads. build() moves
+ * all buffers into a CubeBuilder and builds the cube with options of that builder, data of a thread keep their order but
+ * data of different threads are not ordered.<br>
+ * A data put while build() is running is in this cube or the next one. Tags of a data must be complete before the build
+ * taking it, e.g. the caller joins all ingestion tasks first. Buffers of terminated threads are dropped once built.
+ *
+ * @author Kyle K. Lin
+ *
+ * @param <T> Type of value.
+ */
+public class ConcurrentCubeBuilder<T> {
+
+    private final CubeBuilder<T> builder;
+
+    private final ConcurrentLinkedQueue<Buffer<T>> buffers;
+
+    private final ThreadLocal<Buffer<T>> buffer;
+
+    /**
+     * Constructor.
+     */
+    public ConcurrentCubeBuilder() {
+        this(new CubeBuilder<T>());
+    }
+
+    /**
+     * Constructor.
+     * @param builder Builder whose options, e.g. indexed or partitioned, are used to build the cube.
+     */
+    public ConcurrentCubeBuilder(CubeBuilder<T> builder) {
+        this.builder = builder;
+        this.buffers = new ConcurrentLinkedQueue<>();
+        this.buffer = ThreadLocal.withInitial(() -> {
+            Buffer<T> b = new Buffer<>(Thread.currentThread());
+            this.buffers.add(b);
+            return b;
+        });
+    }
+
+    /**
+     * Add a new value into the buffer of current thread.
+     * @param value Value.
+     * @return Data.
+     */
+    public Data<T> put(T value) {
+        Buffer<T> b = this.buffer.get();
+        synchronized (b) {
+            Data<T> d = new Data<>(value).withNumbers(b.numbers, b.data.size());
+            b.data.add(d);
+            return d;
+        }
+    }
+
+    /**
+     * Build a cube with data of all threads. Buffers are moved into the builder, so a later build contains data of
+     * this one and data put after it.
+     * @return Cube.
+     */
+    public Cube<T> build() {
+        synchronized (this.builder) {
+            Iterator<Buffer<T>> it = this.buffers.iterator();
+            while (it.hasNext()) {
+                Buffer<T> b = it.next();
+                // tested before the swap, a thread terminated by then puts nothing more.
+                boolean terminated = !b.owner.isAlive();
+                ArrayList<Data<T>> data;
+                synchronized (b) {
+                    data = b.data;
+                    b.data = new ArrayList<>();
+                    b.numbers = new NumberStore();
+                }
+                this.builder.putAll(data);
+                if (terminated) {
+                    it.remove();
+                }
+            }
+            return this.builder.build();
+        }
+    }
+
+    /**
+     * Get number of buffers kept for threads.
+     * @return Number of buffers.
+     */
+    int getBufferCount() {
+        return this.buffers.size();
+    }
+
+    /**
+     * Data of one thread, numeric tags of the thread share one store. Fields are guarded by the buffer.
+     */
+    private static class Buffer<T> {
+
+        private final Thread owner;
+
+        private ArrayList<Data<T>> data = new ArrayList<>();
+
+        private NumberStore numbers = new NumberStore();
+
+        Buffer(Thread owner) {
+            this.owner = owner;
+        }
+    }
+}
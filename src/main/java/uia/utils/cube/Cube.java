@@ -18,10 +18,24 @@
  *******************************************************************************/
 package uia.utils.cube;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.DoubleSummaryStatistics;
 import java.util.List;
+import java.util.LongSummaryStatistics;
 import java.util.Map;
+import java.util.SortedSet;
 import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.BiConsumer;
+import java.util.function.DoublePredicate;
 import java.util.function.Function;
+import java.util.function.LongPredicate;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collector;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 /**
@@ -34,12 +48,32 @@ import java.util.stream.Stream;
 public interface Cube<T> {
 
     /**
-     * Create cubes grouping by tag.
+     * Create cubes grouping by tag. Data without the tag are ignored.
      * @param tagName Tag name.
      * @return Cubes.
      */
     public Map<String, Cube<T>> cubes(String tagName);
 
+    /**
+     * Create cubes grouping by several tags in one pass. Data without any of the tags are ignored.
+     * @param tagNames Tag names.
+     * @return Cubes keyed by tag values in the order of tag names.
+     */
+    public default Map<List<String>, Cube<T>> cubes(String... tagNames) {
+        TreeMap<List<String>, Cube<T>> result = new TreeMap<>(AbstractCube.KEY_ORDER);
+        result.put(Collections.emptyList(), this);
+        for (String tagName : tagNames) {
+            TreeMap<List<String>, Cube<T>> next = new TreeMap<>(AbstractCube.KEY_ORDER);
+            result.forEach((k, c) -> c.cubes(tagName).forEach((v, sub) -> {
+                ArrayList<String> key = new ArrayList<>(k);
+                key.add(v);
+                next.put(key, sub);
+            }));
+            result = next;
+        }
+        return result;
+    }
+
     /**
      * Select subset of cube depending on function.
      * @param function Function.
@@ -55,6 +89,66 @@ public interface Cube<T> {
      */
     public Cube<T> select(String tagName, String tagValue);
 
+    /**
+     * Select subset of cube whose tag value is one of specific values.
+     * @param tagName Tag name.
+     * @param tagValues Tag values.
+     * @return Cube.
+     */
+    public default Cube<T> selectIn(String tagName, String... tagValues) {
+        return select(Query.in(tagName, tagValues));
+    }
+
+    /**
+     * Select subset of cube whose tag value is in a range, compared as strings.
+     * @param tagName Tag name.
+     * @param fromValue Lower bound, inclusive. Null means unbounded.
+     * @param toValue Upper bound, exclusive. Null means unbounded.
+     * @return Cube.
+     */
+    public default Cube<T> selectRange(String tagName, String fromValue, String toValue) {
+        return select(Query.range(tagName, fromValue, toValue));
+    }
+
+    /**
+     * Select subset of cube whose tag value starts with a prefix.
+     * @param tagName Tag name.
+     * @param prefix Prefix.
+     * @return Cube.
+     */
+    public default Cube<T> selectPrefix(String tagName, String prefix) {
+        return select(Query.prefix(tagName, prefix));
+    }
+
+    /**
+     * Select subset of cube accepted by a query. Unlike a function, the query can be executed with indexes.
+     * @param query Query.
+     * @return Cube.
+     */
+    public default Cube<T> select(Query query) {
+        return select(d -> query.test(d));
+    }
+
+    /**
+     * Select subset of cube whose long tag is accepted by a predicate. Data without the tag are not selected.
+     * @param numberTag Name of the long tag.
+     * @param predicate Predicate.
+     * @return Cube.
+     */
+    public default Cube<T> selectLong(String numberTag, LongPredicate predicate) {
+        return select(d -> d.hasNumber(numberTag) && predicate.test(d.getLong(numberTag, 0)));
+    }
+
+    /**
+     * Select subset of cube whose numeric tag is accepted by a predicate. Data without the tag are not selected.
+     * @param numberTag Name of the numeric tag.
+     * @param predicate Predicate.
+     * @return Cube.
+     */
+    public default Cube<T> selectDouble(String numberTag, DoublePredicate predicate) {
+        return select(d -> d.hasNumber(numberTag) && predicate.test(d.getDouble(numberTag, 0)));
+    }
+
     /**
      * Select subset of cube depending on tag.
      * @param tagName Tag name.
@@ -70,14 +164,14 @@ public interface Cube<T> {
     public Stream<T> values();
 
     /**
-     * Get values grouping by tag.
+     * Get values grouping by tag. Data without the tag are ignored.
      * @param tagName Tag name.
      * @return Values.
      */
     public Map<String, List<T>> valuesMapping(final String tagName);
 
     /**
-     * Get converted values grouping by tag.
+     * Get converted values grouping by tag. Data without the tag are ignored.
      * @param tagName Tag name.
      * @param f Function used to convert value.
      * @param <R> Converted type.
@@ -85,6 +179,174 @@ public interface Cube<T> {
      */
     public <R> Map<String, List<R>> valuesMapping(final String tagName, Function<T, R> f);
 
+    /**
+     * Get values grouping by several tags in one pass. Data without any of the tags are ignored.
+     * @param tagNames Tag names.
+     * @return Values keyed by tag values in the order of tag names.
+     */
+    public default Map<List<String>, List<T>> valuesMapping(String... tagNames) {
+        TreeMap<List<String>, List<T>> result = new TreeMap<>(AbstractCube.KEY_ORDER);
+        cubes(tagNames).forEach((k, c) -> result.put(k, c.values().collect(Collectors.toList())));
+        return result;
+    }
+
+    /**
+     * Reduce values grouping by tag with a collector. Data without the tag are ignored.
+     * @param tagName Tag name.
+     * @param collector Collector applied to values of every group.
+     * @param <A> Type of accumulator.
+     * @param <R> Type of result.
+     * @return Results.
+     */
+    public default <A, R> Map<String, R> valuesMapping(final String tagName, Collector<? super T, A, R> collector) {
+        TreeMap<String, R> result = new TreeMap<>();
+        cubes(tagName).forEach((k, c) -> result.put(k, c.values().collect(collector)));
+        return result;
+    }
+
+    /**
+     * Count values grouping by tag. Data without the tag are ignored.
+     * @param tagName Tag name.
+     * @return Counts.
+     */
+    public default Map<String, Long> countMapping(final String tagName) {
+        return valuesMapping(tagName, Collectors.counting());
+    }
+
+    /**
+     * Get distinct values of a tag. Data without the tag are ignored.
+     * @param tagName Tag name.
+     * @return Values in order.
+     */
+    public default SortedSet<String> distinct(String tagName) {
+        return new TreeSet<>(cubes(tagName).keySet());
+    }
+
+    /**
+     * Estimate number of distinct values of a tag with a HyperLogLog sketch of 16 KB, the standard error is about 0.8%.
+     * Data without the tag are ignored.
+     * @param tagName Tag name.
+     * @return Estimate.
+     */
+    public default long approximateDistinct(String tagName) {
+        return AbstractCube.dataOf(this).map(d -> d.getTag(tagName)).collect(HyperLogLog.collector()).estimate();
+    }
+
+    /**
+     * Get count, sum, min, max and average of long numbers grouping by tag. Data without the tag are ignored.
+     * @param tagName Tag name.
+     * @param f Function used to convert value to a long number.
+     * @return Statistics.
+     */
+    public default Map<String, LongSummaryStatistics> longSummaryMapping(final String tagName, ToLongFunction<? super T> f) {
+        return valuesMapping(tagName, Collectors.summarizingLong(f));
+    }
+
+    /**
+     * Get count, sum, min, max and average of double numbers grouping by tag. Data without the tag are ignored.
+     * @param tagName Tag name.
+     * @param f Function used to convert value to a double number.
+     * @return Statistics.
+     */
+    public default Map<String, DoubleSummaryStatistics> doubleSummaryMapping(final String tagName, ToDoubleFunction<? super T> f) {
+        return valuesMapping(tagName, Collectors.summarizingDouble(f));
+    }
+
+    /**
+     * Get count, sum, min, max and average of a long tag. Data without the tag are ignored.
+     * @param numberTag Name of the long tag.
+     * @return Statistics.
+     */
+    public default LongSummaryStatistics longSummary(String numberTag) {
+        return AbstractCube.dataOf(this).collect(AbstractCube.summarizingLong(numberTag));
+    }
+
+    /**
+     * Get count, sum, min, max and average of a numeric tag. Data without the tag are ignored.
+     * @param numberTag Name of the numeric tag.
+     * @return Statistics.
+     */
+    public default DoubleSummaryStatistics doubleSummary(String numberTag) {
+        return AbstractCube.dataOf(this).collect(AbstractCube.summarizingDouble(numberTag));
+    }
+
+    /**
+     * Get count, sum, min, max and average of a long tag grouping by tag. Data without either tag are ignored.
+     * @param tagName Tag name.
+     * @param numberTag Name of the long tag.
+     * @return Statistics.
+     */
+    public default Map<String, LongSummaryStatistics> longSummaryMapping(final String tagName, String numberTag) {
+        TreeMap<String, LongSummaryStatistics> result = new TreeMap<>();
+        cubes(tagName).forEach((k, c) -> result.put(k, c.longSummary(numberTag)));
+        return result;
+    }
+
+    /**
+     * Get count, sum, min, max and average of a numeric tag grouping by tag. Data without either tag are ignored.
+     * @param tagName Tag name.
+     * @param numberTag Name of the numeric tag.
+     * @return Statistics.
+     */
+    public default Map<String, DoubleSummaryStatistics> doubleSummaryMapping(final String tagName, String numberTag) {
+        TreeMap<String, DoubleSummaryStatistics> result = new TreeMap<>();
+        cubes(tagName).forEach((k, c) -> result.put(k, c.doubleSummary(numberTag)));
+        return result;
+    }
+
+    /**
+     * Count data of every pair of values of two tags in one pass. Data without either tag are ignored.
+     * @param rowTag Tag of rows.
+     * @param columnTag Tag of columns.
+     * @return Pivot with long cells.
+     */
+    public default Pivot pivot(String rowTag, String columnTag) {
+        return AbstractCube.dataOf(this).collect(Pivot.collector(rowTag, columnTag, null, true));
+    }
+
+    /**
+     * Sum a long tag of every pair of values of two tags in one pass. Data without any of the tags are ignored.
+     * @param rowTag Tag of rows.
+     * @param columnTag Tag of columns.
+     * @param numberTag Name of the long tag.
+     * @return Pivot with long cells.
+     */
+    public default Pivot pivotLong(String rowTag, String columnTag, String numberTag) {
+        return AbstractCube.dataOf(this).collect(Pivot.collector(rowTag, columnTag, numberTag, true));
+    }
+
+    /**
+     * Sum a numeric tag of every pair of values of two tags in one pass. Data without any of the tags are ignored.
+     * @param rowTag Tag of rows.
+     * @param columnTag Tag of columns.
+     * @param numberTag Name of the numeric tag.
+     * @return Pivot with double cells.
+     */
+    public default Pivot pivotDouble(String rowTag, String columnTag, String numberTag) {
+        return AbstractCube.dataOf(this).collect(Pivot.collector(rowTag, columnTag, numberTag, false));
+    }
+
+    /**
+     * Get the first n values in an order, same as values().sorted(comparator).limit(n) without a full sort.
+     * @param n Number of values.
+     * @param comparator Order of values.
+     * @return Values.
+     */
+    public default List<T> topK(int n, Comparator<? super T> comparator) {
+        return values().collect(TopK.collector(n, comparator));
+    }
+
+    /**
+     * Get the first n values in an order grouping by tag. Data without the tag are ignored.
+     * @param tagName Tag name.
+     * @param n Number of values of every group.
+     * @param comparator Order of values.
+     * @return Values.
+     */
+    public default Map<String, List<T>> topKMapping(final String tagName, int n, Comparator<? super T> comparator) {
+        return valuesMapping(tagName, TopK.collector(n, comparator));
+    }
+
     /**
      * Get first value in cube.
      * @return Value.
@@ -92,14 +354,23 @@ public interface Cube<T> {
     public T single();
 
     /**
-     * Get first value grouping by tag.
+     * Describe how the cube is executed, for example scanned rows, filters in execution order, index or blocks used.
+     * Nested cubes are described in following lines indented.
+     * @return Description.
+     */
+    public default String explain() {
+        return getClass().getSimpleName();
+    }
+
+    /**
+     * Get first value grouping by tag. Data without the tag are ignored.
      * @param tagName Tag name.
      * @return Values.
      */
     public Map<String, T> singleMapping(final String tagName);
 
     /**
-     * Get first value grouping by tag.
+     * Get first value grouping by tag. Data without the tag are ignored.
      * @param tagName Tag name.
      * @param f Function used to convert value.
      * @param <R> Converted type.
@@ -107,6 +378,40 @@ public interface Cube<T> {
      */
     public <R> Map<String, R> singleMapping(final String tagName, Function<T, R> f);
 
+    /**
+     * Get a sample of the cube to answer approximate counts and sums with error bounds, opt in per query.<br>
+     * A cube built with CubeBuilder.sampled(...) returns its sample drawn at build time, selected like the cube.
+     * Other cubes return an exact sample of all data.
+     * @return Sample.
+     */
+    public default Sample<T> sample() {
+        return Sample.of(this);
+    }
+
+    /**
+     * Join with another cube on tags with a hash table built on the smaller cube.<br>
+     * Data match if they have all the tags with equal values. A joined data carries tags of both data,
+     * tags of this cube win on conflict.
+     * @param other The other cube.
+     * @param tagNames Tag names to join on.
+     * @param <U> Type of value of the other cube.
+     * @return Cube of matched pairs.
+     */
+    public default <U> Cube<Joined<T, U>> join(Cube<U> other, String... tagNames) {
+        return HashJoin.join(this, other, false, tagNames);
+    }
+
+    /**
+     * Join with another cube on tags, data of this cube without a match are kept with a null right value.
+     * @param other The other cube.
+     * @param tagNames Tag names to join on.
+     * @param <U> Type of value of the other cube.
+     * @return Cube of joined pairs.
+     */
+    public default <U> Cube<Joined<T, U>> leftJoin(Cube<U> other, String... tagNames) {
+        return HashJoin.join(this, other, true, tagNames);
+    }
+
     /**
      * Data.
      *
@@ -116,7 +421,21 @@ public interface Cube<T> {
      */
     public class Data<T> {
 
-        private final TreeMap<String, String> tags;
+        /**
+         * Tags of the row. Null if tags are kept in a tag store.
+         */
+        private TreeMap<String, String> tags;
+
+        private TagStore store;
+
+        private int row;
+
+        /**
+         * Numeric tags of the row. Null until a numeric tag is added to a data not created by a builder.
+         */
+        private NumberStore numbers;
+
+        private int numberRow;
 
         /**
          * Value.
@@ -128,6 +447,12 @@ public interface Cube<T> {
             this.value = value;
         }
 
+        Data(T value, TagStore store, int row) {
+            this.store = store;
+            this.row = row;
+            this.value = value;
+        }
+
         /**
          * Add tag.
          * @param tagName Tag name.
@@ -135,7 +460,35 @@ public interface Cube<T> {
          * @return Data.
          */
         public Data<T> addTag(String tagName, String tagValue) {
-            this.tags.put(tagName, tagValue);
+            if (this.store != null) {
+                this.store.set(this.row, tagName, tagValue);
+            }
+            else {
+                this.tags.put(tagName, tagValue);
+            }
+            return this;
+        }
+
+        /**
+         * Add numeric tag. Numeric tags are kept apart from string tags.
+         * @param tagName Tag name.
+         * @param tagValue Tag value.
+         * @return Data.
+         */
+        public Data<T> addTag(String tagName, long tagValue) {
+            numbers().setLong(this.numberRow, tagName, tagValue);
+            return this;
+        }
+
+        /**
+         * Add numeric tag. Numeric tags are kept apart from string tags.<br>
+         * A tag holding a double value in any data of a cube is a double tag, its long values are widened to doubles.
+         * @param tagName Tag name.
+         * @param tagValue Tag value.
+         * @return Data.
+         */
+        public Data<T> addTag(String tagName, double tagValue) {
+            numbers().setDouble(this.numberRow, tagName, tagValue);
             return this;
         }
 
@@ -145,7 +498,107 @@ public interface Cube<T> {
          * @return Value.
          */
         public String getTag(String tagName) {
-            return this.tags.get(tagName);
+            return this.store != null
+                    ? this.store.get(this.row, tagName)
+                    : this.tags.get(tagName);
+        }
+
+        /**
+         * Test if the data has a numeric tag.
+         * @param tagName Tag name.
+         * @return True if the data has the tag.
+         */
+        public boolean hasNumber(String tagName) {
+            NumberStore.Column column = this.numbers == null ? null : this.numbers.column(tagName);
+            return column != null && column.has(this.numberRow);
+        }
+
+        /**
+         * Get value of a long tag.
+         * @param tagName Tag name.
+         * @param defaultValue Value returned if the data has no such tag.
+         * @return Value.
+         * @throws IllegalArgumentException Raise if the tag is a double tag.
+         */
+        public long getLong(String tagName, long defaultValue) {
+            NumberStore.Column column = this.numbers == null ? null : this.numbers.column(tagName);
+            return column != null && column.has(this.numberRow) ? column.getLong(this.numberRow) : defaultValue;
+        }
+
+        /**
+         * Get value of a numeric tag as double.
+         * @param tagName Tag name.
+         * @param defaultValue Value returned if the data has no such tag.
+         * @return Value.
+         */
+        public double getDouble(String tagName, double defaultValue) {
+            NumberStore.Column column = this.numbers == null ? null : this.numbers.column(tagName);
+            return column != null && column.has(this.numberRow) ? column.getDouble(this.numberRow) : defaultValue;
+        }
+
+        void forEachTag(BiConsumer<String, String> consumer) {
+            if (this.store != null) {
+                this.store.forEach(this.row, consumer);
+            }
+            else {
+                this.tags.forEach(consumer);
+            }
+        }
+
+        /**
+         * Keep numeric tags in a shared store.
+         * @param numbers Number store.
+         * @param numberRow Row id in the store.
+         * @return Data.
+         */
+        Data<T> withNumbers(NumberStore numbers, int numberRow) {
+            this.numbers = numbers;
+            this.numberRow = numberRow;
+            return this;
+        }
+
+        /**
+         * Copy all tags into another data.
+         * @param target Target data.
+         */
+        void copyTagsTo(Data<?> target) {
+            forEachTag(target::addTag);
+            if (this.numbers != null) {
+                this.numbers.copy(this.numberRow, target.numbers(), target.numberRow);
+            }
+        }
+
+        /**
+         * Copy numeric tags into a number store.
+         * @param target Number store.
+         * @param targetRow Row id in the store.
+         */
+        void copyNumbersTo(NumberStore target, int targetRow) {
+            if (this.numbers != null) {
+                this.numbers.copy(this.numberRow, target, targetRow);
+            }
+        }
+
+        private NumberStore numbers() {
+            if (this.numbers == null) {
+                this.numbers = new NumberStore();
+            }
+            return this.numbers;
+        }
+
+        /**
+         * Move tags into a column store.
+         * @param store Column store.
+         * @param row Row id in the store.
+         */
+        void moveTo(ColumnStore store, int row) {
+            if (this.store == store) {
+                return;
+            }
+            forEachTag((n, v) -> store.set(row, n, v));
+            this.tags = null;
+            this.store = store;
+            this.row = row;
         }
     }
 }
@@ -19,6 +19,12 @@
 package uia.utils.cube;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
 
 import uia.utils.cube.Cube.Data;
 
@@ -33,19 +39,157 @@ public class CubeBuilder<T> {
 
     private final ArrayList<Data<T>> data;
 
+    private boolean indexed;
+
+    private ColumnStore columns;
+
+    /**
+     * Number of data in the last built cube. Data put later are kept in new column and number stores, so they never touch a built cube.
+     */
+    private int built;
+
+    private NumberStore numbers;
+
+    private Grouping grouping;
+
+    private int cacheSize;
+
+    private CubeStats stats;
+
+    private String partitionTag;
+
+    private int sampleSize;
+
     /**
      * Constructor.
      */
     public CubeBuilder() {
         this.data = new ArrayList<>();
+        this.numbers = new NumberStore();
+        this.grouping = Grouping.SEQUENTIAL;
+    }
+
+    /**
+     * Build a cube with an inverted tag index or not.<br>
+     * An indexed cube answers select, selectNot, selectIn, selectRange and selectPrefix from the sorted index
+     * instead of scanning all data.
+     * @param indexed Indexed or not.
+     * @return This builder.
+     */
+    public CubeBuilder<T> indexed(boolean indexed) {
+        this.indexed = indexed;
+        return this;
+    }
+
+    /**
+     * Keep tags in dictionary encoded columns or not.<br>
+     * A columnar cube keeps one int code per tag and row instead of a tag map per row,
+     * getTag of data is a view of the columns.
+     * @param columnar Columnar or not.
+     * @return This builder.
+     */
+    public CubeBuilder<T> columnar(boolean columnar) {
+        this.columns = columnar ? new ColumnStore() : null;
+        return this;
+    }
+
+    /**
+     * Group data in parallel on the common pool when a cube is large enough.
+     * @param threshold Minimum data size of a cube to group in parallel.
+     * @return This builder.
+     */
+    public CubeBuilder<T> parallel(int threshold) {
+        return parallel(threshold, ForkJoinPool.commonPool());
     }
 
     /**
-     * Build a cube.
+     * Group data in parallel when a cube is large enough.<br>
+     * valuesMapping, singleMapping and cubes split data into chunks, group every chunk on the pool and merge results.
+     * An indexed cube answers cubes(tagName) and countMapping from its index and groups other mappings the same way.
+     * @param threshold Minimum data size of a cube to group in parallel.
+     * @param pool Pool to run on. Null means sequential.
+     * @return This builder.
+     */
+    public CubeBuilder<T> parallel(int threshold, ForkJoinPool pool) {
+        this.grouping = new Grouping(threshold, pool);
+        return this;
+    }
+
+    /**
+     * Memoize results of the cube or not.<br>
+     * A positive size makes build() return a CachedCube keeping the latest results of cubes, select, selectNot and
+     * mapping methods taking only tags.
+     * @param maxSize Maximum number of cached results. 0 means no cache.
+     * @return This builder.
+     */
+    public CubeBuilder<T> cached(int maxSize) {
+        this.cacheSize = maxSize;
+        return this;
+    }
+
+    /**
+     * Split the cube into partitions by values of a tag.<br>
+     * Every partition is indexed or listed on its own. Selections testing the tag skip rejected partitions, other
+     * operations run on partitions in parallel, on the pool of parallel(...) or on the common pool.<br>
+     * Data are returned in partition order, not in the order they are put: data without the tag first, then partitions
+     * sorted by tag value, each in the order of put. values(), single(), lists of valuesMapping and ties of topK follow it.
+     * @param tagName Partition tag, null to disable.
+     * @return This builder.
+     */
+    public CubeBuilder<T> partitioned(String tagName) {
+        this.partitionTag = tagName;
+        return this;
+    }
+
+    /**
+     * Draw a uniform random sample at build time for approximate queries, see Cube.sample().<br>
+     * The sample is reproducible, the same data give the same sample.
+     * @param size Sample size. 0 means no sample.
+     * @return This builder.
+     */
+    public CubeBuilder<T> sampled(int size) {
+        this.sampleSize = size;
+        return this;
+    }
+
+    /**
+     * Record statistics of calls to the cube and cubes selected from it.<br>
+     * explain() of a cube describes how it is executed.
+     * @param stats Statistics shared by cubes, null to disable.
+     * @return This builder.
+     */
+    public CubeBuilder<T> instrumented(CubeStats stats) {
+        this.stats = stats;
+        return this;
+    }
+
+    /**
+     * Build a cube. The cube owns a copy of the data list, data put after building are not part of it.
      * @return Cube.
      */
     public Cube<T> build() {
-        return new ListCube<>(this.data);
+        if (this.columns != null) {
+            for (int row = this.built; row < this.data.size(); row++) {
+                this.data.get(row).moveTo(this.columns, row - this.built);
+            }
+        }
+        ArrayList<Data<T>> data = new ArrayList<>(this.data);
+        Cube<T> cube = this.partitionTag != null
+                ? partitions(data)
+                : segment(data);
+        if (this.sampleSize > 0) {
+            cube = new SampledCube<>(cube, sample(data));
+        }
+        if (this.cacheSize > 0) {
+            cube = new CachedCube<>(cube, this.cacheSize, this.stats);
+        }
+
+        this.built = this.data.size();
+        if (this.columns != null) {
+            this.columns = new ColumnStore();
+        }
+        this.numbers = new NumberStore();
+        return this.stats != null ? new InstrumentedCube<>(cube, this.stats) : cube;
     }
 
     /**
@@ -54,8 +198,74 @@ public class CubeBuilder<T> {
      * @return Data.
      */
     public Data<T> put(T value) {
-        Data<T> d = new Data<>(value);
+        Data<T> d = this.columns != null
+                ? new Data<>(value, this.columns, this.data.size() - this.built)
+                : new Data<>(value);
+        d.withNumbers(this.numbers, this.data.size() - this.built);
         this.data.add(d);
         return d;
     }
+
+    /**
+     * Add data created out of the builder, for example by a loader.
+     * @param data Data.
+     */
+    void putAll(List<Data<T>> data) {
+        this.data.addAll(data);
+    }
+
+    private Sample<T> sample(List<Data<T>> data) {
+        if (data.size() <= this.sampleSize) {
+            return new Sample<>(new ListCube<>(data), data.size(), data.size());
+        }
+        // reservoir of row ids, sorted to keep the order of data.
+        Random random = new Random(data.size());
+        int[] rows = new int[this.sampleSize];
+        for (int i = 0; i < data.size(); i++) {
+            if (i < rows.length) {
+                rows[i] = i;
+            }
+            else {
+                int j = random.nextInt(i + 1);
+                if (j < rows.length) {
+                    rows[j] = i;
+                }
+            }
+        }
+        Arrays.sort(rows);
+        return new Sample<>(new ListCube<>(data, rows, Grouping.SEQUENTIAL), data.size(), rows.length);
+    }
+
+    private PartitionedCube<T> partitions(List<Data<T>> data) {
+        TreeMap<String, List<Data<T>>> partitions = new TreeMap<>();
+        ArrayList<Data<T>> untagged = new ArrayList<>();
+        for (Data<T> d : data) {
+            String key = d.getTag(this.partitionTag);
+            if (key == null) {
+                untagged.add(d);
+            }
+            else {
+                partitions.computeIfAbsent(key, k -> new ArrayList<>()).add(d);
+            }
+        }
+
+        ArrayList<String> keys = new ArrayList<>();
+        ArrayList<AbstractCube<T>> segments = new ArrayList<>();
+        if (!untagged.isEmpty()) {
+            keys.add(null);
+            segments.add(segment(untagged));
+        }
+        partitions.forEach((k, v) -> {
+            keys.add(k);
+            segments.add(segment(v));
+        });
+        Grouping fanOut = this.grouping == Grouping.SEQUENTIAL ? Grouping.COMMON : this.grouping;
+        return new PartitionedCube<>(this.partitionTag, Collections.unmodifiableList(keys), Collections.unmodifiableList(segments), fanOut);
+    }
+
+    private AbstractCube<T> segment(List<Data<T>> data) {
+        return this.indexed
+                ? new IndexedCube<>(data, this.grouping)
+                : new ListCube<>(data, this.grouping);
+    }
 }
@@ -0,0 +1,276 @@
+/*******************************************************************************
+ * Copyright 2019 UIA
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package uia.utils.cube;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+import uia.utils.cube.Cube.Data;
+
+/**
+ * Binary file format of a cube.<br>
+ * <pre>
+ * int      magic, version, row count, tag count
+ * per tag  name, dictionary size, dictionary values
+ * per tag  one int code per row, 0 means no value, otherwise index of dictionary + 1
+ * int      block size, block count
+ * per tag  per block: min code, max code, 4 longs of bloom filter of codes
+ * int      numeric tag count
+ * per tag  name, type 0 long or 1 double, int bitmap length, longs of bitmap of rows owning a value, one value per row
+ * bytes    values encoded by a value codec
+ * int      row count + 1 offsets of values
+ * int      position of values, position of offsets
+ * </pre>
+ * Strings are an int length followed by UTF-8 bytes. A loaded cube maps the file into memory, tag codes are read from the
+ * mapping and values are decoded only when they are returned. Zone maps of blocks let selections skip blocks.
+ * Numeric tags are read into memory when a cube is loaded. The file size is limited to 2 GB.
+ *
+ * @author Kyle K. Lin
+ *
+ */
+public final class CubeFile {
+
+    private static final int MAGIC = 0x55435542;
+
+    private static final int VERSION = 1;
+
+    private static final int BLOCK_SIZE = 4096;
+
+    private CubeFile() {
+    }
+
+    /**
+     * Write a cube to a file.
+     * @param cube The cube.
+     * @param file The file.
+     * @param codec Codec of values.
+     * @param <T> Type of value.
+     * @throws IOException Raise if failed to write.
+     */
+    public static <T> void write(Cube<T> cube, Path file, ValueCodec<T> codec) throws IOException {
+        List<Data<T>> data = AbstractCube.dataOf(cube).collect(Collectors.toList());
+        ColumnStore store = new ColumnStore();
+        for (int row = 0; row < data.size(); row++) {
+            final int id = row;
+            data.get(row).forEachTag((n, v) -> store.set(id, n, v));
+        }
+        NumberStore numbers = new NumberStore();
+        for (int row = 0; row < data.size(); row++) {
+            data.get(row).copyNumbersTo(numbers, row);
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(data.size());
+            out.writeInt(store.tagNames().size());
+            for (String tagName : store.tagNames()) {
+                writeString(out, tagName);
+                List<String> dictionary = store.dictionary(tagName);
+                out.writeInt(dictionary.size());
+                for (String tagValue : dictionary) {
+                    writeString(out, tagValue);
+                }
+            }
+            for (String tagName : store.tagNames()) {
+                for (int row = 0; row < data.size(); row++) {
+                    out.writeInt(store.code(row, tagName));
+                }
+            }
+
+            int blockCount = (data.size() + BLOCK_SIZE - 1) / BLOCK_SIZE;
+            out.writeInt(BLOCK_SIZE);
+            out.writeInt(blockCount);
+            for (String tagName : store.tagNames()) {
+                for (int b = 0; b < blockCount; b++) {
+                    int from = b * BLOCK_SIZE;
+                    MappedCube.Zone zone = MappedCube.Zone.of(row -> store.code(row, tagName), from, Math.min(data.size(), from + BLOCK_SIZE));
+                    out.writeInt(zone.min());
+                    out.writeInt(zone.max());
+                    for (long bits : zone.bloom()) {
+                        out.writeLong(bits);
+                    }
+                }
+            }
+
+            Map<String, NumberStore.Column> numberColumns = numbers.columns();
+            out.writeInt(numberColumns.size());
+            for (Map.Entry<String, NumberStore.Column> e : numberColumns.entrySet()) {
+                NumberStore.Column column = e.getValue();
+                writeString(out, e.getKey());
+                out.writeByte(column.integral ? 0 : 1);
+                long[] present = new long[(data.size() + 63) >>> 6];
+                for (int row = 0; row < data.size(); row++) {
+                    if (column.has(row)) {
+                        present[row >>> 6] |= 1L << row;
+                    }
+                }
+                out.writeInt(present.length);
+                for (long bits : present) {
+                    out.writeLong(bits);
+                }
+                for (int row = 0; row < data.size(); row++) {
+                    boolean has = column.has(row);
+                    if (column.integral) {
+                        out.writeLong(has ? column.getLong(row) : 0);
+                    }
+                    else {
+                        out.writeDouble(has ? column.getDouble(row) : 0);
+                    }
+                }
+            }
+
+            int valuesStart = out.size();
+            int[] offsets = new int[data.size() + 1];
+            for (int row = 0; row < data.size(); row++) {
+                byte[] bytes = codec.encode(data.get(row).value);
+                out.write(bytes);
+                offsets[row + 1] = offsets[row] + bytes.length;
+                if (out.size() == Integer.MAX_VALUE) {
+                    throw new IOException("cube file is larger than 2 GB: " + file);
+                }
+            }
+            int offsetsStart = out.size();
+            for (int offset : offsets) {
+                out.writeInt(offset);
+            }
+            out.writeInt(valuesStart);
+            out.writeInt(offsetsStart);
+            if (out.size() == Integer.MAX_VALUE) {
+                throw new IOException("cube file is larger than 2 GB: " + file);
+            }
+        }
+    }
+
+    /**
+     * Load a cube from a file by memory mapping.
+     * @param file The file.
+     * @param codec Codec of values.
+     * @param <T> Type of value.
+     * @return Cube.
+     * @throws IOException Raise if failed to read or the file is not a cube file.
+     */
+    public static <T> Cube<T> load(Path file, ValueCodec<T> codec) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("cube file is larger than 2 GB: " + file);
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.limit() < 16 || buffer.getInt() != MAGIC) {
+            throw new IOException("not a cube file: " + file);
+        }
+        int version = buffer.getInt();
+        if (version != VERSION) {
+            throw new IOException("unsupported cube file version " + version + ": " + file);
+        }
+
+        int rowCount = buffer.getInt();
+        int tagCount = buffer.getInt();
+        ArrayList<String> tagNames = new ArrayList<>(tagCount);
+        ArrayList<List<String>> dictionaries = new ArrayList<>(tagCount);
+        for (int t = 0; t < tagCount; t++) {
+            tagNames.add(readString(buffer));
+            int size = buffer.getInt();
+            ArrayList<String> dictionary = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                dictionary.add(readString(buffer));
+            }
+            dictionaries.add(dictionary);
+        }
+        int columnsStart = buffer.position();
+        buffer.position(columnsStart + tagCount * rowCount * 4);
+        int blockSize = buffer.getInt();
+        int blockCount = buffer.getInt();
+        ArrayList<MappedCube.Zone[]> zones = new ArrayList<>(tagCount);
+        for (int t = 0; t < tagCount; t++) {
+            MappedCube.Zone[] tagZones = new MappedCube.Zone[blockCount];
+            for (int b = 0; b < blockCount; b++) {
+                int min = buffer.getInt();
+                int max = buffer.getInt();
+                long[] bloom = new long[4];
+                for (int i = 0; i < bloom.length; i++) {
+                    bloom[i] = buffer.getLong();
+                }
+                tagZones[b] = new MappedCube.Zone(min, max, bloom);
+            }
+            zones.add(tagZones);
+        }
+
+        NumberStore numbers = new NumberStore();
+        int numberCount = buffer.getInt();
+        for (int t = 0; t < numberCount; t++) {
+            String tagName = readString(buffer);
+            boolean integral = buffer.get() == 0;
+            long[] present = new long[buffer.getInt()];
+            buffer.asLongBuffer().get(present);
+            buffer.position(buffer.position() + present.length * 8);
+            if (integral) {
+                long[] longs = new long[rowCount];
+                buffer.asLongBuffer().get(longs);
+                numbers.put(tagName, new NumberStore.Column(longs, present));
+            }
+            else {
+                double[] doubles = new double[rowCount];
+                buffer.asDoubleBuffer().get(doubles);
+                numbers.put(tagName, new NumberStore.Column(doubles, present));
+            }
+            buffer.position(buffer.position() + rowCount * 8);
+        }
+
+        TreeMap<String, MappedCube.Column> columns = new TreeMap<>();
+        for (int t = 0; t < tagCount; t++) {
+            columns.put(tagNames.get(t), new MappedCube.Column(
+                    columnsStart + t * rowCount * 4,
+                    dictionaries.get(t),
+                    zones.get(t)));
+        }
+
+        int valuesStart = buffer.getInt(buffer.limit() - 8);
+        int offsetsStart = buffer.getInt(buffer.limit() - 4);
+        MappedCube.Columns store = new MappedCube.Columns(buffer, rowCount, blockSize, columns, numbers, valuesStart, offsetsStart);
+        return new MappedCube<>(store, codec);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,193 @@
+/*******************************************************************************
+ * Copyright 2019 UIA
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package uia.utils.cube;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cumulative counters of cube operations, shared by an instrumented cube and all cubes selected from it.<br>
+ * Every call records wall time and bytes allocated by the calling thread. Terminal operations also record rows scanned,
+ * rows contributing to the result and groups produced, a cached cube records hits and misses of its cache. Selections of list cubes are lazy, their rows are counted by the
+ * terminal operation executing them. Allocation is measured only when the JVM supports thread allocation counters,
+ * allocations of fork/join workers are not included.
+ *
+ * @author Kyle K. Lin
+ *
+ */
+public final class CubeStats {
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private static final boolean ALLOCATION = THREADS instanceof com.sun.management.ThreadMXBean
+            && ((com.sun.management.ThreadMXBean) THREADS).isThreadAllocatedMemorySupported()
+            && ((com.sun.management.ThreadMXBean) THREADS).isThreadAllocatedMemoryEnabled();
+
+    private final LongAdder calls;
+
+    private final LongAdder nanos;
+
+    private final LongAdder rowsScanned;
+
+    private final LongAdder rowsMatched;
+
+    private final LongAdder groups;
+
+    private final LongAdder bytesAllocated;
+
+    private final LongAdder cacheHits;
+
+    private final LongAdder cacheMisses;
+
+    /**
+     * Constructor.
+     */
+    public CubeStats() {
+        this.calls = new LongAdder();
+        this.nanos = new LongAdder();
+        this.rowsScanned = new LongAdder();
+        this.rowsMatched = new LongAdder();
+        this.groups = new LongAdder();
+        this.bytesAllocated = new LongAdder();
+        this.cacheHits = new LongAdder();
+        this.cacheMisses = new LongAdder();
+    }
+
+    /**
+     * Get number of calls.
+     * @return Count.
+     */
+    public long getCalls() {
+        return this.calls.sum();
+    }
+
+    /**
+     * Get wall time of all calls.
+     * @return Nanoseconds.
+     */
+    public long getNanos() {
+        return this.nanos.sum();
+    }
+
+    /**
+     * Get number of rows visited by terminal operations.
+     * @return Count.
+     */
+    public long getRowsScanned() {
+        return this.rowsScanned.sum();
+    }
+
+    /**
+     * Get number of rows contributing to results of terminal operations.
+     * @return Count.
+     */
+    public long getRowsMatched() {
+        return this.rowsMatched.sum();
+    }
+
+    /**
+     * Get number of groups produced by mapping operations.
+     * @return Count.
+     */
+    public long getGroups() {
+        return this.groups.sum();
+    }
+
+    /**
+     * Get bytes allocated by calling threads.
+     * @return Bytes, 0 if the JVM does not support allocation counters.
+     */
+    public long getBytesAllocated() {
+        return this.bytesAllocated.sum();
+    }
+
+    /**
+     * Get number of results answered from the cache of a cached cube.
+     * @return Count.
+     */
+    public long getCacheHits() {
+        return this.cacheHits.sum();
+    }
+
+    /**
+     * Get number of results a cached cube computed because they were not in the cache.
+     * @return Count.
+     */
+    public long getCacheMisses() {
+        return this.cacheMisses.sum();
+    }
+
+    /**
+     * Reset all counters.
+     */
+    public void reset() {
+        this.calls.reset();
+        this.nanos.reset();
+        this.rowsScanned.reset();
+        this.rowsMatched.reset();
+        this.groups.reset();
+        this.bytesAllocated.reset();
+        this.cacheHits.reset();
+        this.cacheMisses.reset();
+    }
+
+    /**
+     * Get bytes allocated by the current thread so far.
+     * @return Bytes.
+     */
+    static long allocated() {
+        return ALLOCATION ? ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(Thread.currentThread().getId()) : 0;
+    }
+
+    void record(long nanos, long scanned, long matched, long groups, long bytes) {
+        this.calls.increment();
+        this.nanos.add(nanos);
+        this.rowsScanned.add(scanned);
+        this.rowsMatched.add(matched);
+        this.groups.add(groups);
+        this.bytesAllocated.add(bytes);
+    }
+
+    void matched(long rows) {
+        this.rowsMatched.add(rows);
+    }
+
+    void cached(boolean hit) {
+        if (hit) {
+            this.cacheHits.increment();
+        }
+        else {
+            this.cacheMisses.increment();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("calls=%s, time=%.3fms, scanned=%s, matched=%s, groups=%s, allocated=%sB, cacheHits=%s, cacheMisses=%s",
+                getCalls(),
+                getNanos() / 1000000.0,
+                getRowsScanned(),
+                getRowsMatched(),
+                getGroups(),
+                getBytesAllocated(),
+                getCacheHits(),
+                getCacheMisses());
+    }
+}
@@ -0,0 +1,509 @@
+/*******************************************************************************
+ * Copyright 2019 UIA
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package uia.utils.cube;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+import uia.utils.cube.Cube.Data;
+
+/**
+ * Bulk loader of delimited UTF-8 files into a cube builder.<br>
+ * The file is memory mapped and parsed from bytes. Values of string tags are interned by a dictionary per column,
+ * so a repeated value is one String and no String is created to look it up. The file can be split on line boundaries
+ * and parsed in parallel, data keep the order of lines.<br>
+ * Fields are separated by a single ASCII delimiter and must not be quoted, empty fields add no tag.
+ *
+ * @author Kyle K. Lin
+ *
+ * @param <T> Type of value.
+ */
+public class DelimitedLoader<T> {
+
+    /**
+     * Maximum bytes of a part, a mapped buffer is limited to 2 GB.
+     */
+    private static final int MAX_PART = 1 << 30;
+
+    /**
+     * Maximum number of values interned by a dictionary, columns of unique values stop interning.
+     */
+    private static final int MAX_INTERNED = 1 << 16;
+
+    private static final int BLOCK = 1 << 16;
+
+    private final byte delimiter;
+
+    private final int valueColumn;
+
+    private final Function<String, T> valueParser;
+
+    private final TreeMap<Integer, Column> columns;
+
+    private boolean header;
+
+    private int parts;
+
+    /**
+     * Constructor.
+     * @param delimiter ASCII delimiter of fields.
+     * @param valueColumn Index of the column parsed as value of data.
+     * @param valueParser Parser of the value column.
+     * @throws IllegalArgumentException Raise if the delimiter is not ASCII.
+     */
+    public DelimitedLoader(char delimiter, int valueColumn, Function<String, T> valueParser) {
+        if (delimiter > 127 || delimiter == '\n' || delimiter == '\r') {
+            throw new IllegalArgumentException("delimiter must be an ASCII character: " + (int) delimiter);
+        }
+        this.delimiter = (byte) delimiter;
+        this.valueColumn = valueColumn;
+        this.valueParser = valueParser;
+        this.columns = new TreeMap<>();
+        this.parts = 1;
+    }
+
+    /**
+     * Skip the first line of the file or not. If no column is mapped, every column except the value column is
+     * loaded as a string tag named by the first line.
+     * @param header Has header or not.
+     * @return This loader.
+     */
+    public DelimitedLoader<T> header(boolean header) {
+        this.header = header;
+        return this;
+    }
+
+    /**
+     * Load a column as a string tag.
+     * @param column Column index.
+     * @param tagName Tag name.
+     * @return This loader.
+     */
+    public DelimitedLoader<T> tag(int column, String tagName) {
+        this.columns.put(column, new Column(tagName, Column.STRING));
+        return this;
+    }
+
+    /**
+     * Load a column as a long tag.
+     * @param column Column index.
+     * @param tagName Tag name.
+     * @return This loader.
+     */
+    public DelimitedLoader<T> longTag(int column, String tagName) {
+        this.columns.put(column, new Column(tagName, Column.LONG));
+        return this;
+    }
+
+    /**
+     * Load a column as a double tag.
+     * @param column Column index.
+     * @param tagName Tag name.
+     * @return This loader.
+     */
+    public DelimitedLoader<T> doubleTag(int column, String tagName) {
+        this.columns.put(column, new Column(tagName, Column.DOUBLE));
+        return this;
+    }
+
+    /**
+     * Split the file into parts on line boundaries and parse them on the common pool.
+     * @param parts Number of parts. 1 means sequential.
+     * @return This loader.
+     */
+    public DelimitedLoader<T> parallel(int parts) {
+        this.parts = Math.max(1, parts);
+        return this;
+    }
+
+    /**
+     * Load a file into a builder.
+     * @param file The file.
+     * @param builder The builder.
+     * @return Rows, bytes and time of the load.
+     * @throws IOException Raise if failed to read the file.
+     * @throws NumberFormatException Raise if a numeric tag can not be parsed.
+     */
+    public Result load(Path file, CubeBuilder<T> builder) throws IOException {
+        long t0 = System.nanoTime();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final long size = channel.size();
+            long start = 0;
+            TreeMap<Integer, Column> mapping = this.columns;
+            if (this.header) {
+                start = nextLine(channel, 1);
+                if (mapping.isEmpty()) {
+                    mapping = headerColumns(channel, start);
+                }
+            }
+
+            // split on line boundaries, no part is larger than a mapped buffer.
+            int n = (int) Math.max(this.parts, (size - start + MAX_PART - 1) / MAX_PART);
+            ArrayList<long[]> ranges = new ArrayList<>();
+            long from = start;
+            for (int i = 1; i <= n && from < size; i++) {
+                long to = i == n ? size : Math.max(from, nextLine(channel, start + (size - start) * i / n));
+                if (to - from > MAX_PART) {
+                    throw new IOException("line boundaries too far to split the file: " + file);
+                }
+                if (to > from) {
+                    ranges.add(new long[] { from, to });
+                }
+                from = to;
+            }
+
+            final Column[] byIndex = toArray(mapping);
+            Function<long[], List<Data<T>>> parse = r -> {
+                try {
+                    return parse(channel.map(FileChannel.MapMode.READ_ONLY, r[0], r[1] - r[0]), byIndex);
+                }
+                catch (IOException ex) {
+                    throw new IllegalStateException(ex);
+                }
+            };
+            List<List<Data<T>>> loaded;
+            try {
+                loaded = ranges.size() > 1
+                        ? Grouping.COMMON.fanOut(ranges, parse)
+                        : Arrays.asList(ranges.isEmpty() ? new ArrayList<>() : parse.apply(ranges.get(0)));
+            }
+            catch (IllegalStateException ex) {
+                if (ex.getCause() instanceof IOException) {
+                    throw (IOException) ex.getCause();
+                }
+                throw ex;
+            }
+
+            long rows = 0;
+            for (List<Data<T>> part : loaded) {
+                builder.putAll(part);
+                rows += part.size();
+            }
+            return new Result(rows, size, System.nanoTime() - t0);
+        }
+    }
+
+    private List<Data<T>> parse(MappedByteBuffer buffer, Column[] byIndex) {
+        final Dictionary[] dictionaries = new Dictionary[byIndex.length];
+        for (int i = 0; i < byIndex.length; i++) {
+            if (byIndex[i] != null && byIndex[i].type == Column.STRING) {
+                dictionaries[i] = new Dictionary();
+            }
+        }
+        final NumberStore numbers = new NumberStore();
+        final String[] tags = new String[byIndex.length];
+        final ArrayList<Data<T>> result = new ArrayList<>();
+
+        byte[] block = new byte[BLOCK];
+        byte[] line = new byte[256];
+        int length = 0;
+        while (buffer.hasRemaining()) {
+            int count = Math.min(block.length, buffer.remaining());
+            buffer.get(block, 0, count);
+            for (int i = 0; i < count; i++) {
+                byte b = block[i];
+                if (b == '\n') {
+                    parseLine(line, length, byIndex, dictionaries, tags, numbers, result);
+                    length = 0;
+                }
+                else {
+                    if (length == line.length) {
+                        line = Arrays.copyOf(line, length * 2);
+                    }
+                    line[length++] = b;
+                }
+            }
+        }
+        parseLine(line, length, byIndex, dictionaries, tags, numbers, result);
+        return result;
+    }
+
+    private void parseLine(byte[] line, int length, Column[] byIndex, Dictionary[] dictionaries, String[] tags, NumberStore numbers, List<Data<T>> result) {
+        if (length > 0 && line[length - 1] == '\r') {
+            length--;
+        }
+        if (length == 0) {
+            return;
+        }
+
+        T value = null;
+        int row = result.size();
+        int column = 0;
+        int from = 0;
+        for (int i = 0; i <= length; i++) {
+            if (i < length && line[i] != this.delimiter) {
+                continue;
+            }
+            if (column == this.valueColumn) {
+                value = this.valueParser.apply(new String(line, from, i - from, StandardCharsets.UTF_8));
+            }
+            Column c = column < byIndex.length ? byIndex[column] : null;
+            if (c != null && i > from) {
+                if (c.type == Column.STRING) {
+                    tags[column] = dictionaries[column].intern(line, from, i);
+                }
+                else if (c.type == Column.LONG) {
+                    numbers.setLong(row, c.tagName, parseLong(line, from, i));
+                }
+                else {
+                    numbers.setDouble(row, c.tagName, Double.parseDouble(new String(line, from, i - from, StandardCharsets.US_ASCII)));
+                }
+            }
+            column++;
+            from = i + 1;
+        }
+        Data<T> d = new Data<>(value);
+        for (int i = 0; i < tags.length; i++) {
+            if (tags[i] != null) {
+                d.addTag(byIndex[i].tagName, tags[i]);
+                tags[i] = null;
+            }
+        }
+        result.add(d.withNumbers(numbers, row));
+    }
+
+    private TreeMap<Integer, Column> headerColumns(FileChannel channel, long end) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) end);
+        channel.read(buffer, 0);
+        String first = new String(buffer.array(), StandardCharsets.UTF_8).replaceAll("[\r\n]+$", "");
+        String[] names = first.split(Pattern.quote(String.valueOf((char) this.delimiter)), -1);
+        TreeMap<Integer, Column> result = new TreeMap<>();
+        for (int i = 0; i < names.length; i++) {
+            if (i != this.valueColumn) {
+                result.put(i, new Column(names[i], Column.STRING));
+            }
+        }
+        return result;
+    }
+
+    private static Column[] toArray(TreeMap<Integer, Column> mapping) {
+        Column[] result = new Column[mapping.isEmpty() ? 0 : mapping.lastKey() + 1];
+        mapping.forEach((i, c) -> result[i] = c);
+        return result;
+    }
+
+    /**
+     * Find start of the line after a position.
+     * @param channel File channel.
+     * @param position Position.
+     * @return Position after the next line break, or size of the file.
+     * @throws IOException Raise if failed to read the file.
+     */
+    private static long nextLine(FileChannel channel, long position) throws IOException {
+        if (position == 0) {
+            return 0;
+        }
+        // a position right after a line break is a line start.
+        long p = position - 1;
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        while (true) {
+            buffer.clear();
+            int n = channel.read(buffer, p);
+            if (n <= 0) {
+                return channel.size();
+            }
+            for (int i = 0; i < n; i++) {
+                if (buffer.get(i) == '\n') {
+                    return p + i + 1;
+                }
+            }
+            p += n;
+        }
+    }
+
+    /**
+     * Parse a decimal long without creating a string. Up to 18 digits can not overflow, longer numbers are parsed by
+     * Long.parseLong which rejects overflow.
+     */
+    private static long parseLong(byte[] bytes, int from, int to) {
+        boolean negative = bytes[from] == '-';
+        int i = negative || bytes[from] == '+' ? from + 1 : from;
+        if (i == to) {
+            throw new NumberFormatException(new String(bytes, from, to - from, StandardCharsets.US_ASCII));
+        }
+        if (to - i > 18) {
+            return Long.parseLong(new String(bytes, from, to - from, StandardCharsets.US_ASCII));
+        }
+        long result = 0;
+        for (; i < to; i++) {
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException(new String(bytes, from, to - from, StandardCharsets.US_ASCII));
+            }
+            result = result * 10 + digit;
+        }
+        return negative ? -result : result;
+    }
+
+    /**
+     * Result of a load.
+     *
+     * @author Kyle K. Lin
+     *
+     */
+    public static final class Result {
+
+        private final long rows;
+
+        private final long bytes;
+
+        private final long nanos;
+
+        Result(long rows, long bytes, long nanos) {
+            this.rows = rows;
+            this.bytes = bytes;
+            this.nanos = nanos;
+        }
+
+        /**
+         * Get number of data loaded.
+         * @return Rows.
+         */
+        public long getRows() {
+            return this.rows;
+        }
+
+        /**
+         * Get size of the file.
+         * @return Bytes.
+         */
+        public long getBytes() {
+            return this.bytes;
+        }
+
+        /**
+         * Get elapsed time of the load.
+         * @return Nanoseconds.
+         */
+        public long getNanos() {
+            return this.nanos;
+        }
+
+        /**
+         * Get throughput of the load.
+         * @return MB per second.
+         */
+        public double getThroughput() {
+            return this.nanos == 0 ? 0 : this.bytes / (1024.0 * 1024.0) / (this.nanos / 1e9);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d rows, %d bytes in %.1f ms, %.1f MB/s", this.rows, this.bytes, this.nanos / 1e6, getThroughput());
+        }
+    }
+
+    private static final class Column {
+
+        static final int STRING = 0;
+
+        static final int LONG = 1;
+
+        static final int DOUBLE = 2;
+
+        private final String tagName;
+
+        private final int type;
+
+        Column(String tagName, int type) {
+            this.tagName = tagName;
+            this.type = type;
+        }
+    }
+
+    /**
+     * Interned values of a column, looked up by bytes without creating a string.
+     */
+    private static final class Dictionary {
+
+        private byte[][] keys = new byte[64][];
+
+        private String[] values = new String[64];
+
+        private int size;
+
+        String intern(byte[] bytes, int from, int to) {
+            int mask = this.keys.length - 1;
+            for (int i = hash(bytes, from, to) & mask;; i = (i + 1) & mask) {
+                byte[] key = this.keys[i];
+                if (key == null) {
+                    String value = new String(bytes, from, to - from, StandardCharsets.UTF_8);
+                    if (this.size < MAX_INTERNED) {
+                        this.keys[i] = Arrays.copyOfRange(bytes, from, to);
+                        this.values[i] = value;
+                        if (++this.size * 2 > this.keys.length) {
+                            grow();
+                        }
+                    }
+                    return value;
+                }
+                if (key.length == to - from && equals(key, bytes, from)) {
+                    return this.values[i];
+                }
+            }
+        }
+
+        private void grow() {
+            byte[][] oldKeys = this.keys;
+            String[] oldValues = this.values;
+            this.keys = new byte[oldKeys.length * 2][];
+            this.values = new String[oldKeys.length * 2];
+            int mask = this.keys.length - 1;
+            for (int j = 0; j < oldKeys.length; j++) {
+                byte[] key = oldKeys[j];
+                if (key != null) {
+                    int i = hash(key, 0, key.length) & mask;
+                    while (this.keys[i] != null) {
+                        i = (i + 1) & mask;
+                    }
+                    this.keys[i] = key;
+                    this.values[i] = oldValues[j];
+                }
+            }
+        }
+
+        private static boolean equals(byte[] key, byte[] bytes, int from) {
+            for (int i = 0; i < key.length; i++) {
+                if (key[i] != bytes[from + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static int hash(byte[] bytes, int from, int to) {
+            int h = 0x811c9dc5;
+            for (int i = from; i < to; i++) {
+                h = (h ^ bytes[i]) * 0x01000193;
+            }
+            return h ^ h >>> 16;
+        }
+    }
+}
@@ -0,0 +1,325 @@
+/*******************************************************************************
+ * Copyright 2019 UIA
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package uia.utils.cube;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BiConsumer;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collector;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import uia.utils.cube.Cube.Data;
+
+/**
+ * Group data by a key on a fork/join pool.<br>
+ * Data are split into chunks, every chunk is grouped on its own and then merged in order,
+ * so values of a group keep the order of data.
+ *
+ * @author Kyle K. Lin
+ *
+ */
+final class Grouping {
+
+    /**
+     * Never group in parallel.
+     */
+    static final Grouping SEQUENTIAL = new Grouping(Integer.MAX_VALUE, null);
+
+    /**
+     * Run on the common pool when data are large enough, used by operations running in parallel although
+     * parallel(...) of the builder is not set.
+     */
+    static final Grouping COMMON = new Grouping(8192, ForkJoinPool.commonPool());
+
+    private final int threshold;
+
+    private final ForkJoinPool pool;
+
+    /**
+     * Constructor.
+     * @param threshold Minimum data size to group in parallel.
+     * @param pool Pool to run on.
+     */
+    Grouping(int threshold, ForkJoinPool pool) {
+        this.threshold = threshold;
+        this.pool = pool;
+    }
+
+    /**
+     * Test if data of specific size should be grouped in parallel.
+     * @param size Data size.
+     * @return True if parallel.
+     */
+    boolean accept(int size) {
+        return this.pool != null && size >= this.threshold;
+    }
+
+    /**
+     * Group data in parallel. Data without a key are ignored.
+     * @param data Data.
+     * @param key Function to get group key of data.
+     * @param mapper Function to convert data to a grouped value.
+     * @param <T> Type of value.
+     * @param <R> Type of grouped value.
+     * @return Groups ordered by key.
+     */
+    <T, R> TreeMap<String, List<R>> group(List<Data<T>> data, Function<Data<T>, String> key, Function<Data<T>, R> mapper) {
+        return group(data, key, null, mapper);
+    }
+
+    /**
+     * Group data in parallel. Data without a key are ignored.
+     * @param data Data.
+     * @param key Function to get group key of data.
+     * @param comparator Order of keys. Null means natural order.
+     * @param mapper Function to convert data to a grouped value.
+     * @param <T> Type of value.
+     * @param <K> Type of key.
+     * @param <R> Type of grouped value.
+     * @return Groups ordered by key.
+     */
+    <T, K, R> TreeMap<K, List<R>> group(List<Data<T>> data, Function<Data<T>, K> key, Comparator<? super K> comparator, Function<Data<T>, R> mapper) {
+        return collect(data, key, comparator, Collectors.mapping(mapper, Collectors.toList()));
+    }
+
+    /**
+     * Reduce data of every group with a collector in parallel. Data without a key are ignored.
+     * @param data Data.
+     * @param key Function to get group key of data.
+     * @param comparator Order of keys. Null means natural order.
+     * @param collector Collector applied to data of every group.
+     * @param <T> Type of value.
+     * @param <K> Type of key.
+     * @param <A> Type of accumulator.
+     * @param <R> Type of result.
+     * @return Results ordered by key.
+     */
+    <T, K, A, R> TreeMap<K, R> collect(List<Data<T>> data, Function<Data<T>, K> key, Comparator<? super K> comparator, Collector<Data<T>, A, R> collector) {
+        int chunk = Math.max(1024, data.size() / (this.pool.getParallelism() * 4));
+        HashMap<K, A> acc = this.pool.invoke(new CollectTask<>(data, 0, data.size(), chunk, key, collector));
+        return finish(acc, comparator, collector);
+    }
+
+    /**
+     * Reduce all data with a collector in parallel.
+     * @param data Data.
+     * @param collector Collector applied to all data.
+     * @param <T> Type of value.
+     * @param <A> Type of accumulator.
+     * @param <R> Type of result.
+     * @return Result.
+     */
+    <T, A, R> R collect(List<Data<T>> data, Collector<Data<T>, A, R> collector) {
+        R result = collect(data, d -> Boolean.TRUE, null, collector).get(Boolean.TRUE);
+        return result != null ? result : collector.finisher().apply(collector.supplier().get());
+    }
+
+    /**
+     * Reduce data of every group with a collector sequentially. Data without a key are ignored.
+     * @param data Data.
+     * @param key Function to get group key of data.
+     * @param comparator Order of keys. Null means natural order.
+     * @param collector Collector applied to data of every group.
+     * @param <T> Type of value.
+     * @param <K> Type of key.
+     * @param <A> Type of accumulator.
+     * @param <R> Type of result.
+     * @return Results ordered by key.
+     */
+    static <T, K, A, R> TreeMap<K, R> collect(Stream<Data<T>> data, Function<Data<T>, K> key, Comparator<? super K> comparator, Collector<Data<T>, A, R> collector) {
+        return finish(accumulate(data, key, collector), comparator, collector);
+    }
+
+    /**
+     * Accumulate data of every group sequentially without finishing, accumulators of many parts can be combined.
+     * Data without a key are ignored.
+     * @param data Data.
+     * @param key Function to get group key of data.
+     * @param collector Collector applied to data of every group.
+     * @param <T> Type of value.
+     * @param <K> Type of key.
+     * @param <A> Type of accumulator.
+     * @param <R> Type of result.
+     * @return Accumulators.
+     */
+    static <T, K, A, R> HashMap<K, A> accumulate(Stream<Data<T>> data, Function<Data<T>, K> key, Collector<Data<T>, A, R> collector) {
+        final HashMap<K, A> acc = new HashMap<>();
+        final Supplier<A> supplier = collector.supplier();
+        final BiConsumer<A, Data<T>> accumulator = collector.accumulator();
+        data.forEach(d -> {
+            K k = key.apply(d);
+            if (k != null) {
+                accumulator.accept(acc.computeIfAbsent(k, x -> supplier.get()), d);
+            }
+        });
+        return acc;
+    }
+
+    /**
+     * Group row ids of data, in parallel if the number of rows is accepted. Data without a key are ignored.
+     * @param source Source data.
+     * @param rows Ascending row ids of the source to group. Null means all rows.
+     * @param key Function to get group key of data.
+     * @param comparator Order of keys. Null means natural order.
+     * @param <T> Type of value.
+     * @param <K> Type of key.
+     * @return Ascending row ids of every group ordered by key.
+     */
+    <T, K> TreeMap<K, int[]> groupRows(List<Data<T>> source, int[] rows, Function<Data<T>, K> key, Comparator<? super K> comparator) {
+        final int size = rows == null ? source.size() : rows.length;
+        HashMap<K, RowSet.Builder> acc;
+        if (accept(size)) {
+            final int chunk = Math.max(1024, size / (this.pool.getParallelism() * 4));
+            ArrayList<Integer> starts = new ArrayList<>();
+            for (int from = 0; from < size; from += chunk) {
+                starts.add(from);
+            }
+            acc = new HashMap<>();
+            // chunks are merged in order, so row ids stay ascending.
+            for (HashMap<K, RowSet.Builder> part : fanOut(starts, from -> groupRows(source, rows, from, Math.min(size, from + chunk), key))) {
+                part.forEach((k, b) -> acc.merge(k, b, RowSet.Builder::addAll));
+            }
+        }
+        else {
+            acc = groupRows(source, rows, 0, size, key);
+        }
+
+        TreeMap<K, int[]> result = new TreeMap<>(comparator);
+        acc.forEach((k, b) -> result.put(k, b.toArray()));
+        return result;
+    }
+
+    /**
+     * Apply a function to every item on the pool, one task per item.
+     * @param items Items.
+     * @param f The function.
+     * @param <S> Type of item.
+     * @param <R> Type of result.
+     * @return Results in order of items.
+     */
+    <S, R> List<R> fanOut(List<S> items, Function<S, R> f) {
+        return this.pool.invoke(new RecursiveTask<List<R>>() {
+
+            private static final long serialVersionUID = 4107264935563402512L;
+
+            @Override
+            protected List<R> compute() {
+                ArrayList<RecursiveTask<R>> tasks = new ArrayList<>(items.size());
+                for (S item : items) {
+                    tasks.add(new RecursiveTask<R>() {
+
+                        private static final long serialVersionUID = -2883364733478932705L;
+
+                        @Override
+                        protected R compute() {
+                            return f.apply(item);
+                        }
+                    });
+                }
+                invokeAll(tasks);
+                ArrayList<R> result = new ArrayList<>(tasks.size());
+                for (RecursiveTask<R> task : tasks) {
+                    result.add(task.join());
+                }
+                return result;
+            }
+        });
+    }
+
+    static <T, K, A, R> TreeMap<K, R> finish(HashMap<K, A> acc, Comparator<? super K> comparator, Collector<Data<T>, A, R> collector) {
+        Function<A, R> finisher = collector.finisher();
+        TreeMap<K, R> result = new TreeMap<>(comparator);
+        acc.forEach((k, a) -> result.put(k, finisher.apply(a)));
+        return result;
+    }
+
+    private static <T, K> HashMap<K, RowSet.Builder> groupRows(List<Data<T>> source, int[] rows, int from, int to, Function<Data<T>, K> key) {
+        HashMap<K, RowSet.Builder> result = new HashMap<>();
+        for (int i = from; i < to; i++) {
+            int row = rows == null ? i : rows[i];
+            K k = key.apply(source.get(row));
+            if (k != null) {
+                result.computeIfAbsent(k, x -> new RowSet.Builder()).add(row);
+            }
+        }
+        return result;
+    }
+
+    private static class CollectTask<T, K, A, R> extends RecursiveTask<HashMap<K, A>> {
+
+        private static final long serialVersionUID = -6421358094370012870L;
+
+        private final List<Data<T>> data;
+
+        private final int from;
+
+        private final int to;
+
+        private final int chunk;
+
+        private final Function<Data<T>, K> key;
+
+        private final Collector<Data<T>, A, R> collector;
+
+        CollectTask(List<Data<T>> data, int from, int to, int chunk, Function<Data<T>, K> key, Collector<Data<T>, A, R> collector) {
+            this.data = data;
+            this.from = from;
+            this.to = to;
+            this.chunk = chunk;
+            this.key = key;
+            this.collector = collector;
+        }
+
+        @Override
+        protected HashMap<K, A> compute() {
+            if (this.to - this.from <= this.chunk) {
+                Supplier<A> supplier = this.collector.supplier();
+                BiConsumer<A, Data<T>> accumulator = this.collector.accumulator();
+                HashMap<K, A> result = new HashMap<>();
+                for (int i = this.from; i < this.to; i++) {
+                    Data<T> d = this.data.get(i);
+                    K k = this.key.apply(d);
+                    if (k != null) {
+                        accumulator.accept(result.computeIfAbsent(k, x -> supplier.get()), d);
+                    }
+                }
+                return result;
+            }
+
+            int middle = (this.from + this.to) >>> 1;
+            CollectTask<T, K, A, R> left = new CollectTask<>(this.data, this.from, middle, this.chunk, this.key, this.collector);
+            CollectTask<T, K, A, R> right = new CollectTask<>(this.data, middle, this.to, this.chunk, this.key, this.collector);
+            right.fork();
+            HashMap<K, A> result = left.compute();
+            // left side first, so accumulators keep the order of data.
+            BinaryOperator<A> combiner = this.collector.combiner();
+            right.join().forEach((k, a) -> result.merge(k, a, combiner));
+            return result;
+        }
+    }
+}
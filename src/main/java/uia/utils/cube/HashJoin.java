@@ -0,0 +1,146 @@
+/*******************************************************************************
+ * Copyright 2019 UIA
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package uia.utils.cube;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import uia.utils.cube.Cube.Data;
+
+/**
+ * Hash join of two cubes on tags.<br>
+ * A hash table is built on the smaller cube, or on the right cube of a left join, and probed with data of the other
+ * cube in order. Large probes are split into chunks running on the pool of the probe cube, or on the common pool.
+ *
+ * @author Kyle K. Lin
+ *
+ */
+final class HashJoin {
+
+    private static final int CHUNK = 4096;
+
+    private HashJoin() {
+    }
+
+    /**
+     * Join two cubes.
+     * @param left The left cube.
+     * @param right The right cube.
+     * @param outer Keep left data without a match or not.
+     * @param tagNames Tag names to join on.
+     * @param <L> Type of left value.
+     * @param <R> Type of right value.
+     * @return Cube of joined pairs.
+     */
+    static <L, R> Cube<Joined<L, R>> join(Cube<L> left, Cube<R> right, boolean outer, String... tagNames) {
+        if (tagNames.length == 0) {
+            throw new IllegalArgumentException("no tag to join on");
+        }
+        final List<Data<L>> leftData = AbstractCube.dataOf(left).collect(Collectors.toList());
+        final List<Data<R>> rightData = AbstractCube.dataOf(right).collect(Collectors.toList());
+        final Function<Data<?>, List<String>> key = key(tagNames);
+
+        if (outer || rightData.size() <= leftData.size()) {
+            HashMap<List<String>, List<Data<R>>> table = table(rightData, key);
+            return probe(leftData, AbstractCube.groupingOf(left), d -> {
+                List<Data<R>> matched = table.get(key.apply(d));
+                ArrayList<Joined<Data<L>, Data<R>>> result = new ArrayList<>();
+                if (matched != null) {
+                    matched.forEach(m -> result.add(new Joined<>(d, m)));
+                }
+                else if (outer) {
+                    result.add(new Joined<>(d, null));
+                }
+                return result;
+            });
+        }
+        else {
+            HashMap<List<String>, List<Data<L>>> table = table(leftData, key);
+            return probe(rightData, AbstractCube.groupingOf(right), d -> {
+                List<Data<L>> matched = table.get(key.apply(d));
+                ArrayList<Joined<Data<L>, Data<R>>> result = new ArrayList<>();
+                if (matched != null) {
+                    matched.forEach(m -> result.add(new Joined<>(m, d)));
+                }
+                return result;
+            });
+        }
+    }
+
+    private static <T> HashMap<List<String>, List<Data<T>>> table(List<Data<T>> data, Function<Data<?>, List<String>> key) {
+        HashMap<List<String>, List<Data<T>>> table = new HashMap<>();
+        for (Data<T> d : data) {
+            List<String> k = key.apply(d);
+            if (k != null) {
+                table.computeIfAbsent(k, x -> new ArrayList<>(1)).add(d);
+            }
+        }
+        return table;
+    }
+
+    private static <P, L, R> Cube<Joined<L, R>> probe(List<Data<P>> data, Grouping grouping, Function<Data<P>, List<Joined<Data<L>, Data<R>>>> matcher) {
+        final Grouping g = grouping.accept(data.size()) ? grouping : Grouping.COMMON;
+        ArrayList<Integer> starts = new ArrayList<>();
+        for (int from = 0; from < data.size(); from += CHUNK) {
+            starts.add(from);
+        }
+        Function<Integer, List<Data<Joined<L, R>>>> chunk = from -> {
+            // every chunk has its own number store, chunks run at the same time.
+            NumberStore numbers = new NumberStore();
+            ArrayList<Data<Joined<L, R>>> result = new ArrayList<>();
+            for (int i = from; i < Math.min(data.size(), from + CHUNK); i++) {
+                for (Joined<Data<L>, Data<R>> pair : matcher.apply(data.get(i))) {
+                    Data<Joined<L, R>> d = new Data<>(new Joined<>(pair.left.value, pair.right == null ? null : pair.right.value));
+                    d.withNumbers(numbers, result.size());
+                    if (pair.right != null) {
+                        pair.right.copyTagsTo(d);
+                    }
+                    pair.left.copyTagsTo(d);
+                    result.add(d);
+                }
+            }
+            return result;
+        };
+
+        List<List<Data<Joined<L, R>>>> chunks = g.accept(data.size())
+                ? g.fanOut(starts, chunk)
+                : starts.stream().map(chunk).collect(Collectors.toList());
+        ArrayList<Data<Joined<L, R>>> result = new ArrayList<>();
+        chunks.forEach(result::addAll);
+        return new ListCube<>(result, grouping);
+    }
+
+    private static Function<Data<?>, List<String>> key(String... tagNames) {
+        final String[] names = tagNames.clone();
+        return d -> {
+            String[] key = new String[names.length];
+            for (int i = 0; i < names.length; i++) {
+                key[i] = d.getTag(names[i]);
+                if (key[i] == null) {
+                    return null;
+                }
+            }
+            return Arrays.asList(key);
+        };
+    }
+}
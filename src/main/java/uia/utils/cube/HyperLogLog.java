@@ -0,0 +1,122 @@
+/*******************************************************************************
+ * Copyright 2019 UIA
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package uia.utils.cube;
+
+import java.util.stream.Collector;
+
+/**
+ * HyperLogLog sketch estimating number of distinct strings with fixed memory.<br>
+ * The sketch keeps 2^14 registers of one byte, the standard error of the estimate is about 0.8%. Sketches of disjoint
+ * parts of data can be merged.
+ *
+ * @author Kyle K. Lin
+ *
+ */
+final class HyperLogLog {
+
+    private static final int P = 14;
+
+    private static final int M = 1 << P;
+
+    private static final double ALPHA = 0.7213 / (1 + 1.079 / M);
+
+    private final byte[] registers;
+
+    HyperLogLog() {
+        this.registers = new byte[M];
+    }
+
+    /**
+     * Create a collector adding strings to a sketch, nulls are ignored.
+     * @return Collector.
+     */
+    static Collector<String, HyperLogLog, HyperLogLog> collector() {
+        return Collector.of(HyperLogLog::new, HyperLogLog::add, HyperLogLog::merge);
+    }
+
+    /**
+     * Add a string.
+     * @param value Value. Null is ignored.
+     */
+    void add(String value) {
+        if (value == null) {
+            return;
+        }
+        long hash = hash(value);
+        int index = (int) (hash >>> (64 - P));
+        int rank = Math.min(Long.numberOfLeadingZeros(hash << P), 64 - P) + 1;
+        if (rank > this.registers[index]) {
+            this.registers[index] = (byte) rank;
+        }
+    }
+
+    /**
+     * Merge another sketch into this one.
+     * @param other Other sketch.
+     * @return This sketch.
+     */
+    HyperLogLog merge(HyperLogLog other) {
+        for (int i = 0; i < M; i++) {
+            if (other.registers[i] > this.registers[i]) {
+                this.registers[i] = other.registers[i];
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Estimate number of distinct strings added.
+     * @return Estimate.
+     */
+    long estimate() {
+        double sum = 0;
+        int zeros = 0;
+        for (byte r : this.registers) {
+            sum += 1.0 / (1L << r);
+            if (r == 0) {
+                zeros++;
+            }
+        }
+        double estimate = ALPHA * M * M / sum;
+        if (estimate <= 2.5 * M && zeros > 0) {
+            // linear counting is more accurate for small cardinality.
+            estimate = M * Math.log((double) M / zeros);
+        }
+        return Math.round(estimate);
+    }
+
+    /**
+     * 64 bits FNV-1a hash of chars followed by the MurmurHash3 finalizer to spread bits.
+     * @param value Value.
+     * @return Hash.
+     */
+    private static long hash(String value) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            h ^= value.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,275 @@
+/*******************************************************************************
+ * Copyright 2019 UIA
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package uia.utils.cube;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Function;
+import java.util.stream.Collector;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Cube implementation with an inverted tag index.<br>
+ * A selection is a compressed row set over the shared data. Equality selections are answered from postings of the index,
+ * and chained selections are AND, ANDNOT and OR operations on row sets. Data are only touched by terminal methods.
+ *
+ * @author Kyle K. Lin
+ *
+ * @param <T> Type of value.
+ */
+public class IndexedCube<T> extends AbstractCube<T> {
+
+    private final List<Data<T>> data;
+
+    private final TagIndex index;
+
+    /**
+     * Selected rows. Null means all indexed rows.
+     */
+    private final RowSet rows;
+
+    IndexedCube(List<Data<T>> data) {
+        this(data, Grouping.SEQUENTIAL);
+    }
+
+    IndexedCube(List<Data<T>> data, Grouping grouping) {
+        this(data, TagIndex.build(data), null, grouping);
+    }
+
+    private IndexedCube(List<Data<T>> data, TagIndex index, RowSet rows, Grouping grouping) {
+        super(grouping);
+        this.data = data;
+        this.index = index;
+        this.rows = rows;
+    }
+
+    /**
+     * Append data of another cube. Indexes of both cubes are merged instead of indexing all data again.
+     * @param next Cube of all indexed rows.
+     * @return Cube of all rows of both cubes.
+     */
+    IndexedCube<T> append(IndexedCube<T> next) {
+        ArrayList<Data<T>> merged = new ArrayList<>(this.data.size() + next.data.size());
+        merged.addAll(this.data);
+        merged.addAll(next.data);
+        return new IndexedCube<>(merged, this.index.append(next.index), null, this.grouping);
+    }
+
+    @Override
+    public T single() {
+        if (this.rows == null) {
+            return this.index.rowCount() > 0 ? this.data.get(0).value : null;
+        }
+        return !this.rows.isEmpty() ? this.data.get(this.rows.first()).value : null;
+    }
+
+    @Override
+    public Map<List<String>, List<T>> valuesMapping(String... tagNames) {
+        if (this.grouping.accept((int) scanned())) {
+            return this.grouping.group(list(), key(tagNames), KEY_ORDER, d -> d.value);
+        }
+        return super.valuesMapping(tagNames);
+    }
+
+    @Override
+    <A, R> Map<String, R> dataMapping(String tagName, Collector<Data<T>, A, R> collector) {
+        if (this.grouping.accept((int) scanned())) {
+            return this.grouping.collect(list(), d -> d.getTag(tagName), null, collector);
+        }
+        return super.dataMapping(tagName, collector);
+    }
+
+    @Override
+    <A, R> R collect(Collector<Data<T>, A, R> collector) {
+        if (this.grouping.accept((int) scanned())) {
+            return this.grouping.collect(list(), collector);
+        }
+        return super.collect(collector);
+    }
+
+    @Override
+    public List<T> topK(int n, Comparator<? super T> comparator) {
+        if (this.grouping.accept((int) scanned())) {
+            return this.grouping.collect(list(), Collectors.mapping(d -> d.value, TopK.collector(n, comparator)));
+        }
+        return super.topK(n, comparator);
+    }
+
+    @Override
+    public Map<String, Long> countMapping(String tagName) {
+        final TreeMap<String, Long> result = new TreeMap<>();
+        this.index.postings(tagName).forEach((k, v) -> {
+            int count = this.rows == null ? v.size() : this.rows.and(v).size();
+            if (count > 0) {
+                result.put(k, (long) count);
+            }
+        });
+        return result;
+    }
+
+    @Override
+    public SortedSet<String> distinct(String tagName) {
+        final TreeSet<String> result = new TreeSet<>();
+        this.index.postings(tagName).forEach((k, v) -> {
+            if (this.rows == null || !this.rows.and(v).isEmpty()) {
+                result.add(k);
+            }
+        });
+        return result;
+    }
+
+    @Override
+    HyperLogLog sketch(String tagName) {
+        HyperLogLog result = new HyperLogLog();
+        distinct(tagName).forEach(result::add);
+        return result;
+    }
+
+    @Override
+    public Cube<T> select(String tagName, String tagValue) {
+        RowSet posting = this.index.get(tagName, tagValue);
+        return sub(this.rows == null ? posting : this.rows.and(posting));
+    }
+
+    @Override
+    public Cube<T> selectNot(String tagName, String tagValue) {
+        RowSet posting = this.index.get(tagName, tagValue);
+        return sub(this.rows == null ? posting.complement(this.index.rowCount()) : this.rows.andNot(posting));
+    }
+
+    @Override
+    public Cube<T> selectIn(String tagName, String... tagValues) {
+        RowSet postings = this.index.in(tagName, Arrays.asList(tagValues));
+        return sub(this.rows == null ? postings : this.rows.and(postings));
+    }
+
+    @Override
+    public Cube<T> selectRange(String tagName, String fromValue, String toValue) {
+        RowSet postings = this.index.range(tagName, fromValue, toValue);
+        return sub(this.rows == null ? postings : this.rows.and(postings));
+    }
+
+    @Override
+    public Cube<T> selectPrefix(String tagName, String prefix) {
+        RowSet postings = this.index.prefix(tagName, prefix);
+        return sub(this.rows == null ? postings : this.rows.and(postings));
+    }
+
+    @Override
+    public Cube<T> select(Query query) {
+        RowSet selected = query.simplify().evaluate(new Query.Source() {
+
+            @Override
+            public RowSet all() {
+                return IndexedCube.this.rows == null ? RowSet.range(IndexedCube.this.index.rowCount()) : IndexedCube.this.rows;
+            }
+
+            @Override
+            public RowSet in(String tagName, Set<String> tagValues) {
+                return IndexedCube.this.index.in(tagName, tagValues);
+            }
+
+            @Override
+            public RowSet range(String tagName, String fromValue, String toValue) {
+                return IndexedCube.this.index.range(tagName, fromValue, toValue);
+            }
+
+            @Override
+            public RowSet prefix(String tagName, String prefix) {
+                return IndexedCube.this.index.prefix(tagName, prefix);
+            }
+        });
+        return sub(this.rows == null ? selected : this.rows.and(selected));
+    }
+
+    @Override
+    public Cube<T> select(Function<Data<T>, Boolean> function) {
+        int[] ids = rowIds().filter(i -> function.apply(this.data.get(i))).toArray();
+        return sub(RowSet.of(ids, ids.length));
+    }
+
+    @Override
+    public Map<String, Cube<T>> cubes(String tagName) {
+        final TreeMap<String, Cube<T>> result = new TreeMap<>();
+        this.index.postings(tagName).forEach((k, v) -> {
+            RowSet sub = this.rows == null ? v : this.rows.and(v);
+            if (!sub.isEmpty()) {
+                result.put(k, sub(sub));
+            }
+        });
+        return result;
+    }
+
+    @Override
+    public Map<List<String>, Cube<T>> cubes(String... tagNames) {
+        final Function<Data<T>, List<String>> key = key(tagNames);
+        final HashMap<List<String>, RowSet.Builder> raw = new HashMap<>();
+        rowIds().forEach(i -> {
+            List<String> k = key.apply(this.data.get(i));
+            if (k != null) {
+                raw.computeIfAbsent(k, x -> new RowSet.Builder()).add(i);
+            }
+        });
+
+        final TreeMap<List<String>, Cube<T>> result = new TreeMap<>(KEY_ORDER);
+        raw.forEach((k, v) -> result.put(k, sub(v.build())));
+        return result;
+    }
+
+    @Override
+    Stream<Data<T>> data() {
+        return rowIds().mapToObj(this.data::get);
+    }
+
+    @Override
+    long scanned() {
+        return this.rows == null ? this.data.size() : this.rows.size();
+    }
+
+    @Override
+    public String explain() {
+        return "index: " + scanned() + " of " + this.data.size() + " rows";
+    }
+
+    private IndexedCube<T> sub(RowSet sub) {
+        return new IndexedCube<>(this.data, this.index, sub, this.grouping);
+    }
+
+    /**
+     * Selected data as a random access list to split into chunks.
+     * @return Selected data.
+     */
+    private List<Data<T>> list() {
+        return this.rows == null ? this.data.subList(0, this.index.rowCount()) : new RowList<>(this.data, this.rows.toArray());
+    }
+
+    private IntStream rowIds() {
+        return this.rows == null ? IntStream.range(0, this.index.rowCount()) : this.rows.stream();
+    }
+}
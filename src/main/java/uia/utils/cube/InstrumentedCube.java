@@ -0,0 +1,306 @@
+/*******************************************************************************
+ * Copyright 2019 UIA
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package uia.utils.cube;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.DoubleSummaryStatistics;
+import java.util.List;
+import java.util.LongSummaryStatistics;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.function.DoublePredicate;
+import java.util.function.Function;
+import java.util.function.LongPredicate;
+import java.util.function.Supplier;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collector;
+import java.util.stream.Stream;
+
+/**
+ * Cube which records statistics of calls to another cube.<br>
+ * Cubes selected from an instrumented cube are instrumented with the same statistics.
+ *
+ * @author Kyle K. Lin
+ *
+ * @param <T> Type of value.
+ */
+public class InstrumentedCube<T> implements Cube<T> {
+
+    private final Cube<T> cube;
+
+    private final CubeStats stats;
+
+    InstrumentedCube(Cube<T> cube, CubeStats stats) {
+        this.cube = cube;
+        this.stats = stats;
+    }
+
+    /**
+     * Get statistics.
+     * @return Statistics.
+     */
+    public CubeStats getStats() {
+        return this.stats;
+    }
+
+    Cube<T> cube() {
+        return this.cube;
+    }
+
+    @Override
+    public Map<String, Cube<T>> cubes(String tagName) {
+        return measure(() -> {
+            TreeMap<String, Cube<T>> result = new TreeMap<>();
+            this.cube.cubes(tagName).forEach((k, v) -> result.put(k, child(v)));
+            return result;
+        }, r -> 0, Map::size);
+    }
+
+    @Override
+    public Map<List<String>, Cube<T>> cubes(String... tagNames) {
+        return measure(() -> {
+            TreeMap<List<String>, Cube<T>> result = new TreeMap<>(AbstractCube.KEY_ORDER);
+            this.cube.cubes(tagNames).forEach((k, v) -> result.put(k, child(v)));
+            return result;
+        }, r -> 0, Map::size);
+    }
+
+    @Override
+    public Cube<T> select(Function<Data<T>, Boolean> function) {
+        return select(() -> this.cube.select(function));
+    }
+
+    @Override
+    public Cube<T> select(String tagName, String tagValue) {
+        return select(() -> this.cube.select(tagName, tagValue));
+    }
+
+    @Override
+    public Cube<T> selectIn(String tagName, String... tagValues) {
+        return select(() -> this.cube.selectIn(tagName, tagValues));
+    }
+
+    @Override
+    public Cube<T> selectRange(String tagName, String fromValue, String toValue) {
+        return select(() -> this.cube.selectRange(tagName, fromValue, toValue));
+    }
+
+    @Override
+    public Cube<T> selectPrefix(String tagName, String prefix) {
+        return select(() -> this.cube.selectPrefix(tagName, prefix));
+    }
+
+    @Override
+    public Cube<T> select(Query query) {
+        return select(() -> this.cube.select(query));
+    }
+
+    @Override
+    public Cube<T> selectLong(String numberTag, LongPredicate predicate) {
+        return select(() -> this.cube.selectLong(numberTag, predicate));
+    }
+
+    @Override
+    public Cube<T> selectDouble(String numberTag, DoublePredicate predicate) {
+        return select(() -> this.cube.selectDouble(numberTag, predicate));
+    }
+
+    @Override
+    public Cube<T> selectNot(String tagName, String tagValue) {
+        return select(() -> this.cube.selectNot(tagName, tagValue));
+    }
+
+    @Override
+    public Stream<T> values() {
+        // the stream is lazy, matched rows are counted when it is consumed.
+        Stream<T> result = measure(this.cube::values, r -> 0, r -> 0);
+        return result.peek(v -> this.stats.matched(1));
+    }
+
+    @Override
+    public Map<String, List<T>> valuesMapping(String tagName) {
+        return measure(() -> this.cube.valuesMapping(tagName), InstrumentedCube::sizes, Map::size);
+    }
+
+    @Override
+    public <R> Map<String, List<R>> valuesMapping(String tagName, Function<T, R> f) {
+        return measure(() -> this.cube.valuesMapping(tagName, f), InstrumentedCube::sizes, Map::size);
+    }
+
+    @Override
+    public Map<List<String>, List<T>> valuesMapping(String... tagNames) {
+        return measure(() -> this.cube.valuesMapping(tagNames), InstrumentedCube::sizes, Map::size);
+    }
+
+    @Override
+    public <A, R> Map<String, R> valuesMapping(String tagName, Collector<? super T, A, R> collector) {
+        return measure(() -> this.cube.valuesMapping(tagName, collector), r -> 0, Map::size);
+    }
+
+    @Override
+    public Map<String, Long> countMapping(String tagName) {
+        return measure(
+                () -> this.cube.countMapping(tagName),
+                r -> r.values().stream().mapToLong(Long::longValue).sum(),
+                Map::size);
+    }
+
+    @Override
+    public SortedSet<String> distinct(String tagName) {
+        return measure(() -> this.cube.distinct(tagName), r -> 0, SortedSet::size);
+    }
+
+    @Override
+    public long approximateDistinct(String tagName) {
+        return measure(() -> this.cube.approximateDistinct(tagName), r -> 0, r -> 1);
+    }
+
+    @Override
+    public Map<String, LongSummaryStatistics> longSummaryMapping(String tagName, ToLongFunction<? super T> f) {
+        return measure(
+                () -> this.cube.longSummaryMapping(tagName, f),
+                r -> r.values().stream().mapToLong(LongSummaryStatistics::getCount).sum(),
+                Map::size);
+    }
+
+    @Override
+    public Map<String, DoubleSummaryStatistics> doubleSummaryMapping(String tagName, ToDoubleFunction<? super T> f) {
+        return measure(
+                () -> this.cube.doubleSummaryMapping(tagName, f),
+                r -> r.values().stream().mapToLong(DoubleSummaryStatistics::getCount).sum(),
+                Map::size);
+    }
+
+    @Override
+    public LongSummaryStatistics longSummary(String numberTag) {
+        return measure(() -> this.cube.longSummary(numberTag), LongSummaryStatistics::getCount, r -> 0);
+    }
+
+    @Override
+    public DoubleSummaryStatistics doubleSummary(String numberTag) {
+        return measure(() -> this.cube.doubleSummary(numberTag), DoubleSummaryStatistics::getCount, r -> 0);
+    }
+
+    @Override
+    public Map<String, LongSummaryStatistics> longSummaryMapping(String tagName, String numberTag) {
+        return measure(
+                () -> this.cube.longSummaryMapping(tagName, numberTag),
+                r -> r.values().stream().mapToLong(LongSummaryStatistics::getCount).sum(),
+                Map::size);
+    }
+
+    @Override
+    public Map<String, DoubleSummaryStatistics> doubleSummaryMapping(String tagName, String numberTag) {
+        return measure(
+                () -> this.cube.doubleSummaryMapping(tagName, numberTag),
+                r -> r.values().stream().mapToLong(DoubleSummaryStatistics::getCount).sum(),
+                Map::size);
+    }
+
+    @Override
+    public Pivot pivot(String rowTag, String columnTag) {
+        return measure(() -> this.cube.pivot(rowTag, columnTag), Pivot::getCount, Pivot::cells);
+    }
+
+    @Override
+    public Pivot pivotLong(String rowTag, String columnTag, String numberTag) {
+        return measure(() -> this.cube.pivotLong(rowTag, columnTag, numberTag), Pivot::getCount, Pivot::cells);
+    }
+
+    @Override
+    public Pivot pivotDouble(String rowTag, String columnTag, String numberTag) {
+        return measure(() -> this.cube.pivotDouble(rowTag, columnTag, numberTag), Pivot::getCount, Pivot::cells);
+    }
+
+    @Override
+    public List<T> topK(int n, Comparator<? super T> comparator) {
+        return measure(() -> this.cube.topK(n, comparator), List::size, r -> 0);
+    }
+
+    @Override
+    public Map<String, List<T>> topKMapping(String tagName, int n, Comparator<? super T> comparator) {
+        return measure(() -> this.cube.topKMapping(tagName, n, comparator), InstrumentedCube::sizes, Map::size);
+    }
+
+    @Override
+    public Sample<T> sample() {
+        return this.cube.sample();
+    }
+
+    @Override
+    public T single() {
+        return measure(this.cube::single, r -> r == null ? 0 : 1, r -> 0);
+    }
+
+    @Override
+    public Map<String, T> singleMapping(String tagName) {
+        return measure(() -> this.cube.singleMapping(tagName), Map::size, Map::size);
+    }
+
+    @Override
+    public <R> Map<String, R> singleMapping(String tagName, Function<T, R> f) {
+        return measure(() -> this.cube.singleMapping(tagName, f), Map::size, Map::size);
+    }
+
+    @Override
+    public String explain() {
+        return "instrumented: " + this.stats + "\n" + AbstractCube.indent(this.cube.explain());
+    }
+
+    private Cube<T> select(Supplier<Cube<T>> selection) {
+        long bytes = CubeStats.allocated();
+        long t0 = System.nanoTime();
+        Cube<T> result = selection.get();
+        this.stats.record(System.nanoTime() - t0, 0, 0, 0, CubeStats.allocated() - bytes);
+        return child(result);
+    }
+
+    /**
+     * Execute a terminal operation and record its statistics. Rows are scanned only if the result is not answered from a cache.
+     * @param operation The operation.
+     * @param matched Rows contributing to the result.
+     * @param groups Groups of the result.
+     * @return Result.
+     */
+    private <R> R measure(Supplier<R> operation, ToLongFunction<R> matched, ToLongFunction<R> groups) {
+        long hits = cacheHits();
+        long bytes = CubeStats.allocated();
+        long t0 = System.nanoTime();
+        R result = operation.get();
+        long nanos = System.nanoTime() - t0;
+        long scanned = cacheHits() == hits ? AbstractCube.unwrap(this.cube).scanned() : 0;
+        this.stats.record(nanos, scanned, matched.applyAsLong(result), groups.applyAsLong(result), CubeStats.allocated() - bytes);
+        return result;
+    }
+
+    private long cacheHits() {
+        return this.cube instanceof CachedCube ? ((CachedCube<T>) this.cube).getHitCount() : 0;
+    }
+
+    private Cube<T> child(Cube<T> cube) {
+        return new InstrumentedCube<>(cube, this.stats);
+    }
+
+    private static long sizes(Map<?, ? extends Collection<?>> result) {
+        return result.values().stream().mapToLong(Collection::size).sum();
+    }
+}
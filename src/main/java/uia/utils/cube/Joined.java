@@ -0,0 +1,66 @@
+/*******************************************************************************
+ * Copyright 2019 UIA
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package uia.utils.cube;
+
+import java.util.Objects;
+
+/**
+ * Pair of values joined by tags.
+ *
+ * @author Kyle K. Lin
+ *
+ * @param <L> Type of left value.
+ * @param <R> Type of right value.
+ */
+public final class Joined<L, R> {
+
+    /**
+     * Value of the left cube.
+     */
+    public final L left;
+
+    /**
+     * Value of the right cube. Null if a left join finds no match.
+     */
+    public final R right;
+
+    Joined(L left, R right) {
+        this.left = left;
+        this.right = right;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof Joined)) {
+            return false;
+        }
+        Joined<?, ?> other = (Joined<?, ?>) obj;
+        return Objects.equals(this.left, other.left) && Objects.equals(this.right, other.right);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(this.left, this.right);
+    }
+
+    @Override
+    public String toString() {
+        return "(" + this.left + ", " + this.right + ")";
+    }
+}
@@ -18,26 +18,49 @@
  *******************************************************************************/
 package uia.utils.cube;
 
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.function.Function;
+import java.util.stream.Collector;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+import uia.utils.cube.QueryPlan.Step;
+
 /**
- * Cube implementation.
+ * Cube implementation.<br>
+ * Cubes of cubes() and select() are views over rows of the same source data, drilling down only allocates row ids.
  *
  * @author Kyle K. Lin
  *
  * @param <T> Type of value.
  */
-public class ListCube<T> implements Cube<T> {
+public class ListCube<T> extends AbstractCube<T> {
+
+    private final List<Data<T>> source;
+
+    /**
+     * Ascending row ids of the source. Null means all rows.
+     */
+    private final int[] rows;
 
     private final List<Data<T>> data;
 
     ListCube(List<Data<T>> data) {
-        this.data = data;
+        this(data, Grouping.SEQUENTIAL);
+    }
+
+    ListCube(List<Data<T>> data, Grouping grouping) {
+        this(data, null, grouping);
+    }
+
+    ListCube(List<Data<T>> source, int[] rows, Grouping grouping) {
+        super(grouping);
+        this.source = source;
+        this.rows = rows;
+        this.data = rows == null ? source : new RowList<>(source, rows);
     }
 
     @Override
@@ -46,60 +69,106 @@ public class ListCube<T> implements Cube<T> {
     }
 
     @Override
-    public Stream<T> values() {
-        return this.data.stream().map(t -> t.value);
+    public Map<List<String>, List<T>> valuesMapping(String... tagNames) {
+        if (this.grouping.accept(this.data.size())) {
+            return this.grouping.group(this.data, key(tagNames), KEY_ORDER, d -> d.value);
+        }
+        return super.valuesMapping(tagNames);
     }
 
     @Override
-    public Map<String, List<T>> valuesMapping(final String tagName) {
-        return this.data.stream().collect(
-                Collectors.groupingBy(
-                        d -> d.getTag(tagName),
-                        Collectors.mapping(v -> v.value, Collectors.toList())));
+    <A, R> Map<String, R> dataMapping(String tagName, Collector<Data<T>, A, R> collector) {
+        if (this.grouping.accept(this.data.size())) {
+            return this.grouping.collect(this.data, d -> d.getTag(tagName), null, collector);
+        }
+        return super.dataMapping(tagName, collector);
     }
 
     @Override
-    public <R> Map<String, List<R>> valuesMapping(String tagName, Function<T, R> f) {
-        return this.data.stream().collect(
-                Collectors.groupingBy(
-                        d -> d.getTag(tagName),
-                        Collectors.mapping(v -> f.apply(v.value), Collectors.toList())));
+    <A, R> R collect(Collector<Data<T>, A, R> collector) {
+        if (this.grouping.accept(this.data.size())) {
+            return this.grouping.collect(this.data, collector);
+        }
+        return super.collect(collector);
     }
 
     @Override
-    public Map<String, T> singleMapping(final String tagName) {
-        TreeMap<String, T> result = new TreeMap<>();
-        valuesMapping(tagName).forEach((k, v) -> result.put(k, v.get(0)));
-        return result;
+    public List<T> topK(int n, Comparator<? super T> comparator) {
+        if (this.grouping.accept(this.data.size())) {
+            return this.grouping.collect(this.data, Collectors.mapping(d -> d.value, TopK.collector(n, comparator)));
+        }
+        return super.topK(n, comparator);
     }
 
     @Override
-    public <R> Map<String, R> singleMapping(String tagName, Function<T, R> f) {
-        TreeMap<String, R> result = new TreeMap<>();
-        valuesMapping(tagName).forEach((k, v) -> result.put(k, f.apply(v.get(0))));
-        return result;
+    public Cube<T> select(String tagName, String tagValue) {
+        return plan(Step.eq(tagName, tagValue));
     }
 
     @Override
-    public Cube<T> select(String tagName, String tagValue) {
-        return new StreamCube<>(this.data.stream().filter(d -> tagValue.equals(d.getTag(tagName))));
+    public Cube<T> selectIn(String tagName, String... tagValues) {
+        return plan(Step.in(tagName, tagValues));
+    }
+
+    @Override
+    public Cube<T> selectRange(String tagName, String fromValue, String toValue) {
+        return plan(Step.range(tagName, fromValue, toValue));
+    }
+
+    @Override
+    public Cube<T> selectPrefix(String tagName, String prefix) {
+        return plan(Step.prefix(tagName, prefix));
     }
 
     @Override
     public Cube<T> selectNot(String tagName, String tagValue) {
-        return new StreamCube<>(this.data.stream().filter(d -> !tagValue.equals(d.getTag(tagName))));
+        return plan(Step.not(tagName, tagValue));
+    }
+
+    @Override
+    public Cube<T> select(Query query) {
+        return plan(Step.of(query));
     }
 
     @Override
     public Cube<T> select(Function<Data<T>, Boolean> function) {
-        return new StreamCube<>(this.data.stream().filter(function::apply));
+        return plan(Step.of(function));
     }
 
     @Override
     public Map<String, Cube<T>> cubes(String tagName) {
         final TreeMap<String, Cube<T>> result = new TreeMap<>();
-        Map<String, List<Data<T>>> raw = this.data.stream().collect(Collectors.groupingBy(d -> d.getTag(tagName)));
-        raw.forEach((k, v) -> result.put(k, new ListCube<T>(v)));
+        this.grouping.groupRows(this.source, this.rows, d -> d.getTag(tagName), null)
+                .forEach((k, v) -> result.put(k, new ListCube<T>(this.source, v, this.grouping)));
         return result;
     }
+
+    @Override
+    public Map<List<String>, Cube<T>> cubes(String... tagNames) {
+        final TreeMap<List<String>, Cube<T>> result = new TreeMap<>(KEY_ORDER);
+        this.grouping.groupRows(this.source, this.rows, key(tagNames), KEY_ORDER)
+                .forEach((k, v) -> result.put(k, new ListCube<T>(this.source, v, this.grouping)));
+        return result;
+    }
+
+    @Override
+    Stream<Data<T>> data() {
+        return this.data.stream();
+    }
+
+    @Override
+    long scanned() {
+        return this.data.size();
+    }
+
+    @Override
+    public String explain() {
+        return this.rows == null
+                ? "list: " + this.data.size() + " rows"
+                : "list: " + this.data.size() + " of " + this.source.size() + " rows";
+    }
+
+    private Cube<T> plan(Step<T> step) {
+        return new StreamCube<>(this.source, this.rows, QueryPlan.<T> all().and(step), this.grouping);
+    }
 }
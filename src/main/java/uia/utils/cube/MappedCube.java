@@ -0,0 +1,601 @@
+/*******************************************************************************
+ * Copyright 2019 UIA
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package uia.utils.cube;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.DoubleSummaryStatistics;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.LongSummaryStatistics;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.IntPredicate;
+import java.util.function.IntUnaryOperator;
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Cube implementation over a memory mapped cube file.<br>
+ * Selections compare int codes of tags in the mapping and produce row sets, values are decoded only by terminal methods
+ * returning values. Counts, numeric summaries and pivots read tags only.
+ * Rows are stored in blocks, a tag selection skips blocks whose zone map proves that none or all of their rows match.
+ *
+ * @author Kyle K. Lin
+ *
+ * @param <T> Type of value.
+ */
+public class MappedCube<T> extends AbstractCube<T> {
+
+    private static final int NONE = 0;
+
+    private static final int SOME = 1;
+
+    private static final int ALL = 2;
+
+    private final Columns columns;
+
+    private final ValueCodec<T> codec;
+
+    /**
+     * Selected rows. Null means all rows.
+     */
+    private final RowSet rows;
+
+    private final int prunedBlocks;
+
+    private final int scannedBlocks;
+
+    MappedCube(Columns columns, ValueCodec<T> codec) {
+        this(columns, codec, null, 0, 0);
+    }
+
+    private MappedCube(Columns columns, ValueCodec<T> codec, RowSet rows, int prunedBlocks, int scannedBlocks) {
+        super(Grouping.SEQUENTIAL);
+        this.columns = columns;
+        this.codec = codec;
+        this.rows = rows;
+        this.prunedBlocks = prunedBlocks;
+        this.scannedBlocks = scannedBlocks;
+    }
+
+    /**
+     * Get number of blocks whose codes were not read by tag selections creating this cube.
+     * @return Pruned block count.
+     */
+    public int getPrunedBlocks() {
+        return this.prunedBlocks;
+    }
+
+    /**
+     * Get number of blocks whose codes were read by tag selections creating this cube.
+     * @return Scanned block count.
+     */
+    public int getScannedBlocks() {
+        return this.scannedBlocks;
+    }
+
+    @Override
+    public T single() {
+        int row = this.rows == null ? (this.columns.rowCount > 0 ? 0 : -1) : this.rows.first();
+        return row < 0 ? null : this.columns.value(row, this.codec);
+    }
+
+    @Override
+    public Cube<T> select(String tagName, String tagValue) {
+        int code = this.columns.code(tagName, tagValue);
+        if (code < 0) {
+            return sub(RowSet.EMPTY);
+        }
+        return filter(tagName, c -> c == code, z -> {
+            if (!z.mightContain(code)) {
+                return NONE;
+            }
+            return z.min == code && z.max == code ? ALL : SOME;
+        });
+    }
+
+    @Override
+    public Cube<T> selectIn(String tagName, String... tagValues) {
+        HashSet<Integer> codes = new HashSet<>();
+        for (String tagValue : tagValues) {
+            codes.add(this.columns.code(tagName, tagValue));
+        }
+        codes.remove(-1);
+        return selectCodes(tagName, codes);
+    }
+
+    @Override
+    public Cube<T> selectRange(String tagName, String fromValue, String toValue) {
+        return selectCodes(tagName, codes(tagName, new Query.Range(tagName, fromValue, toValue)::accept));
+    }
+
+    @Override
+    public Cube<T> selectPrefix(String tagName, String prefix) {
+        return selectCodes(tagName, codes(tagName, new Query.Prefix(tagName, prefix)::accept));
+    }
+
+    @Override
+    public Cube<T> select(Query query) {
+        return sub(query.simplify().evaluate(new Query.Source() {
+
+            @Override
+            public RowSet all() {
+                return MappedCube.this.rows == null ? RowSet.range(MappedCube.this.columns.rowCount) : MappedCube.this.rows;
+            }
+
+            @Override
+            public RowSet in(String tagName, Set<String> tagValues) {
+                return rowsOf(selectIn(tagName, tagValues.toArray(new String[0])));
+            }
+
+            @Override
+            public RowSet range(String tagName, String fromValue, String toValue) {
+                return rowsOf(selectRange(tagName, fromValue, toValue));
+            }
+
+            @Override
+            public RowSet prefix(String tagName, String prefix) {
+                return rowsOf(selectPrefix(tagName, prefix));
+            }
+
+            private RowSet rowsOf(Cube<T> cube) {
+                RowSet rows = ((MappedCube<T>) cube).rows;
+                return rows == null ? all() : rows;
+            }
+        }));
+    }
+
+    /**
+     * Get codes of dictionary values accepted by a test. The dictionary is small, the rows are not scanned.
+     * @param tagName Tag name.
+     * @param test Test of tag value.
+     * @return Codes.
+     */
+    private HashSet<Integer> codes(String tagName, Predicate<String> test) {
+        HashSet<Integer> codes = new HashSet<>();
+        Column column = this.columns.columns.get(tagName);
+        if (column != null) {
+            for (int i = 0; i < column.dictionary.size(); i++) {
+                if (test.test(column.dictionary.get(i))) {
+                    codes.add(i + 1);
+                }
+            }
+        }
+        return codes;
+    }
+
+    private Cube<T> selectCodes(String tagName, HashSet<Integer> codes) {
+        if (codes.isEmpty()) {
+            return sub(RowSet.EMPTY);
+        }
+        return filter(tagName, codes::contains, z -> {
+            if (codes.stream().noneMatch(z::mightContain)) {
+                return NONE;
+            }
+            return z.min == z.max && codes.contains(z.min) ? ALL : SOME;
+        });
+    }
+
+    @Override
+    public Cube<T> selectNot(String tagName, String tagValue) {
+        int code = this.columns.code(tagName, tagValue);
+        if (code < 0) {
+            return this;
+        }
+        return filter(tagName, c -> c != code, z -> {
+            if (!z.mightContain(code)) {
+                return ALL;
+            }
+            return z.min == code && z.max == code ? NONE : SOME;
+        });
+    }
+
+    @Override
+    public Cube<T> select(Function<Data<T>, Boolean> function) {
+        int[] ids = rowIds().filter(row -> function.apply(data(row))).toArray();
+        return sub(RowSet.of(ids, ids.length));
+    }
+
+    @Override
+    public SortedSet<String> distinct(String tagName) {
+        final TreeSet<String> result = new TreeSet<>();
+        final Column column = this.columns.columns.get(tagName);
+        if (column == null) {
+            return result;
+        }
+        if (this.rows == null) {
+            // every value of the dictionary is owned by one row at least.
+            result.addAll(column.dictionary);
+            return result;
+        }
+        final boolean[] seen = new boolean[column.dictionary.size() + 1];
+        rowIds().forEach(row -> seen[this.columns.code(row, column)] = true);
+        for (int code = 1; code < seen.length; code++) {
+            if (seen[code]) {
+                result.add(column.dictionary.get(code - 1));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    HyperLogLog sketch(String tagName) {
+        HyperLogLog result = new HyperLogLog();
+        distinct(tagName).forEach(result::add);
+        return result;
+    }
+
+    @Override
+    public Map<String, Cube<T>> cubes(String tagName) {
+        final TreeMap<String, Cube<T>> result = new TreeMap<>();
+        final Column column = this.columns.columns.get(tagName);
+        if (column == null) {
+            return result;
+        }
+        final HashMap<Integer, RowSet.Builder> raw = new HashMap<>();
+        rowIds().forEach(row -> {
+            int code = this.columns.code(row, column);
+            if (code != 0) {
+                raw.computeIfAbsent(code, k -> new RowSet.Builder()).add(row);
+            }
+        });
+        raw.forEach((k, v) -> result.put(column.dictionary.get(k - 1), sub(v.build())));
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> countMapping(String tagName) {
+        final TreeMap<String, Long> result = new TreeMap<>();
+        final Column column = this.columns.columns.get(tagName);
+        if (column == null) {
+            return result;
+        }
+        final long[] counts = new long[column.dictionary.size() + 1];
+        rowIds().forEach(row -> counts[this.columns.code(row, column)]++);
+        for (int code = 1; code < counts.length; code++) {
+            if (counts[code] > 0) {
+                result.put(column.dictionary.get(code - 1), counts[code]);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public LongSummaryStatistics longSummary(String numberTag) {
+        return tags().collect(summarizingLong(numberTag));
+    }
+
+    @Override
+    public DoubleSummaryStatistics doubleSummary(String numberTag) {
+        return tags().collect(summarizingDouble(numberTag));
+    }
+
+    @Override
+    public Map<String, LongSummaryStatistics> longSummaryMapping(String tagName, String numberTag) {
+        return Grouping.collect(tags(), d -> d.getTag(tagName), null, summarizingLong(numberTag));
+    }
+
+    @Override
+    public Map<String, DoubleSummaryStatistics> doubleSummaryMapping(String tagName, String numberTag) {
+        return Grouping.collect(tags(), d -> d.getTag(tagName), null, summarizingDouble(numberTag));
+    }
+
+    @Override
+    public Pivot pivot(String rowTag, String columnTag) {
+        return tags().collect(Pivot.collector(rowTag, columnTag, null, true));
+    }
+
+    @Override
+    public Pivot pivotLong(String rowTag, String columnTag, String numberTag) {
+        return tags().collect(Pivot.collector(rowTag, columnTag, numberTag, true));
+    }
+
+    @Override
+    public Pivot pivotDouble(String rowTag, String columnTag, String numberTag) {
+        return tags().collect(Pivot.collector(rowTag, columnTag, numberTag, false));
+    }
+
+    @Override
+    Stream<Data<T>> data() {
+        return rowIds().mapToObj(this::data);
+    }
+
+    /**
+     * Get data of rows without decoding values, for operations reading tags only.
+     * @return Data whose values are null.
+     */
+    private Stream<Data<T>> tags() {
+        return rowIds().mapToObj(row -> new Data<T>(null, this.columns, row).withNumbers(this.columns.numbers, row));
+    }
+
+    @Override
+    long scanned() {
+        return this.rows == null ? this.columns.rowCount : this.rows.size();
+    }
+
+    @Override
+    public String explain() {
+        return String.format("mapped: %s of %s rows, blocks pruned %s, scanned %s",
+                scanned(),
+                this.columns.rowCount,
+                this.prunedBlocks,
+                this.scannedBlocks);
+    }
+
+    private Data<T> data(int row) {
+        return new Data<>(this.columns.value(row, this.codec), this.columns, row).withNumbers(this.columns.numbers, row);
+    }
+
+    /**
+     * Select rows by codes of a tag.
+     * @param tagName Tag name.
+     * @param accept Test of a code.
+     * @param zoneTest Test of a zone map, NONE, SOME or ALL of rows in the block are accepted.
+     * @return Cube.
+     */
+    private MappedCube<T> filter(String tagName, IntPredicate accept, ToIntFunction<Zone> zoneTest) {
+        final Column column = this.columns.columns.get(tagName);
+        if (column == null) {
+            return accept.test(0) ? this : sub(RowSet.EMPTY);
+        }
+
+        final int blockSize = this.columns.blockSize;
+        final int[] decisions = new int[column.zones.length];
+        Arrays.fill(decisions, -1);
+        final RowSet.Builder result = new RowSet.Builder();
+        if (this.rows == null) {
+            for (int b = 0; b < decisions.length; b++) {
+                int from = b * blockSize;
+                int to = Math.min(this.columns.rowCount, from + blockSize);
+                decisions[b] = zoneTest.applyAsInt(column.zones[b]);
+                for (int row = from; row < to && decisions[b] != NONE; row++) {
+                    if (decisions[b] == ALL || accept.test(this.columns.code(row, column))) {
+                        result.add(row);
+                    }
+                }
+            }
+        }
+        else {
+            rowIds().forEach(row -> {
+                int b = row / blockSize;
+                if (decisions[b] < 0) {
+                    decisions[b] = zoneTest.applyAsInt(column.zones[b]);
+                }
+                if (decisions[b] == ALL || decisions[b] == SOME && accept.test(this.columns.code(row, column))) {
+                    result.add(row);
+                }
+            });
+        }
+
+        int pruned = 0;
+        int scanned = 0;
+        for (int decision : decisions) {
+            if (decision == SOME) {
+                scanned++;
+            }
+            else if (decision >= 0) {
+                pruned++;
+            }
+        }
+        return new MappedCube<>(this.columns, this.codec, result.build(), this.prunedBlocks + pruned, this.scannedBlocks + scanned);
+    }
+
+    private MappedCube<T> sub(RowSet sub) {
+        return new MappedCube<>(this.columns, this.codec, sub, this.prunedBlocks, this.scannedBlocks);
+    }
+
+    private IntStream rowIds() {
+        return this.rows == null ? IntStream.range(0, this.columns.rowCount) : this.rows.stream();
+    }
+
+    /**
+     * Zone map of a tag in a block of rows.
+     */
+    static final class Zone {
+
+        private final int min;
+
+        private final int max;
+
+        /**
+         * Bloom filter of codes, 256 bits and 2 hash functions.
+         */
+        private final long[] bloom;
+
+        Zone(int min, int max, long[] bloom) {
+            this.min = min;
+            this.max = max;
+            this.bloom = bloom;
+        }
+
+        /**
+         * Build zone map of codes.
+         * @param codes Codes.
+         * @param from Index of first code.
+         * @param to Index after last code.
+         * @return Zone map.
+         */
+        static Zone of(IntUnaryOperator codes, int from, int to) {
+            int min = Integer.MAX_VALUE;
+            int max = Integer.MIN_VALUE;
+            long[] bloom = new long[4];
+            for (int i = from; i < to; i++) {
+                int code = codes.applyAsInt(i);
+                min = Math.min(min, code);
+                max = Math.max(max, code);
+                int h1 = hash1(code);
+                int h2 = hash2(code);
+                bloom[h1 >>> 6] |= 1L << h1;
+                bloom[h2 >>> 6] |= 1L << h2;
+            }
+            return new Zone(min, max, bloom);
+        }
+
+        boolean mightContain(int code) {
+            if (code < this.min || code > this.max) {
+                return false;
+            }
+            int h1 = hash1(code);
+            int h2 = hash2(code);
+            return (this.bloom[h1 >>> 6] & 1L << h1) != 0 && (this.bloom[h2 >>> 6] & 1L << h2) != 0;
+        }
+
+        int min() {
+            return this.min;
+        }
+
+        int max() {
+            return this.max;
+        }
+
+        long[] bloom() {
+            return this.bloom;
+        }
+
+        private static int hash1(int code) {
+            return (code * 0x9E3779B9) >>> 24;
+        }
+
+        private static int hash2(int code) {
+            return (code * 0x85EBCA6B + 0x632BE5AB) >>> 24;
+        }
+    }
+
+    /**
+     * Tag column in a mapping.
+     */
+    static final class Column {
+
+        private final int position;
+
+        private final List<String> dictionary;
+
+        private final HashMap<String, Integer> codes;
+
+        /**
+         * Zone maps of blocks.
+         */
+        private final Zone[] zones;
+
+        Column(int position, List<String> dictionary, Zone[] zones) {
+            this.position = position;
+            this.dictionary = dictionary;
+            this.zones = zones;
+            this.codes = new HashMap<>();
+            for (int i = 0; i < dictionary.size(); i++) {
+                this.codes.put(dictionary.get(i), i + 1);
+            }
+        }
+    }
+
+    /**
+     * Read only tag store of a mapping.
+     */
+    static final class Columns implements TagStore {
+
+        private final ByteBuffer buffer;
+
+        private final int rowCount;
+
+        private final int blockSize;
+
+        private final TreeMap<String, Column> columns;
+
+        private final int valuesStart;
+
+        private final int offsetsStart;
+
+        private final NumberStore numbers;
+
+        Columns(ByteBuffer buffer, int rowCount, int blockSize, TreeMap<String, Column> columns, NumberStore numbers, int valuesStart, int offsetsStart) {
+            this.buffer = buffer;
+            this.rowCount = rowCount;
+            this.blockSize = blockSize;
+            this.columns = columns;
+            this.numbers = numbers;
+            this.valuesStart = valuesStart;
+            this.offsetsStart = offsetsStart;
+        }
+
+        @Override
+        public String get(int row, String tagName) {
+            Column column = this.columns.get(tagName);
+            if (column == null) {
+                return null;
+            }
+            int code = code(row, column);
+            return code == 0 ? null : column.dictionary.get(code - 1);
+        }
+
+        @Override
+        public void set(int row, String tagName, String tagValue) {
+            throw new UnsupportedOperationException("mapped cube is read only");
+        }
+
+        @Override
+        public void forEach(int row, BiConsumer<String, String> consumer) {
+            this.columns.forEach((n, c) -> {
+                int code = code(row, c);
+                if (code != 0) {
+                    consumer.accept(n, c.dictionary.get(code - 1));
+                }
+            });
+        }
+
+        int code(int row, Column column) {
+            return this.buffer.getInt(column.position + row * 4);
+        }
+
+        /**
+         * Get code of a tag value. Code 0 means the tag is missing.
+         * @param tagName Tag name.
+         * @param tagValue Tag value. Null means the tag is missing.
+         * @return Code, or -1 if no row owns the tag value.
+         */
+        int code(String tagName, String tagValue) {
+            if (tagValue == null) {
+                return 0;
+            }
+            Column column = this.columns.get(tagName);
+            if (column == null) {
+                return -1;
+            }
+            Integer code = column.codes.get(tagValue);
+            return code == null ? -1 : code;
+        }
+
+        <T> T value(int row, ValueCodec<T> codec) {
+            int from = this.buffer.getInt(this.offsetsStart + row * 4);
+            int to = this.buffer.getInt(this.offsetsStart + row * 4 + 4);
+            ByteBuffer value = this.buffer.duplicate();
+            value.limit(this.valuesStart + to);
+            value.position(this.valuesStart + from);
+            return codec.decode(value.slice());
+        }
+    }
+}
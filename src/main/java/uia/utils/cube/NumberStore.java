@@ -0,0 +1,224 @@
+/*******************************************************************************
+ * Copyright 2019 UIA
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package uia.utils.cube;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Storage of numeric tags shared by many data, a data keeps only its row id in the store.<br>
+ * Every tag is a column of primitive longs or doubles with a bitmap of rows owning a value. A column holds longs until
+ * a double value is added, then all values of the column are widened to doubles and the tag is a double tag. A long
+ * value added to a double column is widened too.
+ *
+ * @author Kyle K. Lin
+ *
+ */
+final class NumberStore {
+
+    private final HashMap<String, Column> columns;
+
+    NumberStore() {
+        this.columns = new HashMap<>();
+    }
+
+    /**
+     * Get column of a tag.
+     * @param tagName Tag name.
+     * @return Column or null if no row has the tag.
+     */
+    Column column(String tagName) {
+        return this.columns.get(tagName);
+    }
+
+    /**
+     * Put a column.
+     * @param tagName Tag name.
+     * @param column Column.
+     */
+    void put(String tagName, Column column) {
+        this.columns.put(tagName, column);
+    }
+
+    /**
+     * Get all columns ordered by tag name.
+     * @return Columns.
+     */
+    Map<String, Column> columns() {
+        return new TreeMap<>(this.columns);
+    }
+
+    /**
+     * Set long value of a row.
+     * @param row Row id.
+     * @param tagName Tag name.
+     * @param tagValue Tag value.
+     */
+    void setLong(int row, String tagName, long tagValue) {
+        Column column = this.columns.computeIfAbsent(tagName, k -> new Column(true));
+        if (column.integral) {
+            column.grow(row).longs[row] = tagValue;
+        }
+        else {
+            column.grow(row).doubles[row] = tagValue;
+        }
+        column.present[row >>> 6] |= 1L << row;
+    }
+
+    /**
+     * Set double value of a row.
+     * @param row Row id.
+     * @param tagName Tag name.
+     * @param tagValue Tag value.
+     */
+    void setDouble(int row, String tagName, double tagValue) {
+        Column column = this.columns.computeIfAbsent(tagName, k -> new Column(false));
+        if (column.integral) {
+            column.widen();
+        }
+        column.grow(row).doubles[row] = tagValue;
+        column.present[row >>> 6] |= 1L << row;
+    }
+
+    /**
+     * Copy numeric tags of a row to another store.
+     * @param row Row id.
+     * @param target Target store.
+     * @param targetRow Row id in the target store.
+     */
+    void copy(int row, NumberStore target, int targetRow) {
+        this.columns.forEach((n, c) -> {
+            if (!c.has(row)) {
+                return;
+            }
+            if (c.integral) {
+                target.setLong(targetRow, n, c.longs[row]);
+            }
+            else {
+                target.setDouble(targetRow, n, c.doubles[row]);
+            }
+        });
+    }
+
+    /**
+     * Column of a numeric tag.
+     *
+     * @author Kyle K. Lin
+     *
+     */
+    static final class Column {
+
+        /**
+         * Values are kept in longs or in doubles.
+         */
+        boolean integral;
+
+        private long[] longs;
+
+        private double[] doubles;
+
+        private long[] present;
+
+        Column(boolean integral) {
+            this.integral = integral;
+            this.longs = integral ? new long[16] : null;
+            this.doubles = integral ? null : new double[16];
+            this.present = new long[1];
+        }
+
+        /**
+         * Create a column of longs.
+         * @param longs Values.
+         * @param present Bitmap of rows owning a value.
+         */
+        Column(long[] longs, long[] present) {
+            this.integral = true;
+            this.longs = longs;
+            this.present = present;
+        }
+
+        /**
+         * Create a column of doubles.
+         * @param doubles Values.
+         * @param present Bitmap of rows owning a value.
+         */
+        Column(double[] doubles, long[] present) {
+            this.integral = false;
+            this.doubles = doubles;
+            this.present = present;
+        }
+
+        boolean has(int row) {
+            int word = row >>> 6;
+            return word < this.present.length && (this.present[word] & 1L << row) != 0;
+        }
+
+        /**
+         * Get long value of a row owning a value.
+         * @param row Row id.
+         * @return Value.
+         */
+        long getLong(int row) {
+            if (!this.integral) {
+                throw new IllegalArgumentException("not a long tag");
+            }
+            return this.longs[row];
+        }
+
+        /**
+         * Get double value of a row owning a value, long values are widened.
+         * @param row Row id.
+         * @return Value.
+         */
+        double getDouble(int row) {
+            return this.integral ? this.longs[row] : this.doubles[row];
+        }
+
+        /**
+         * Convert long values to doubles.
+         */
+        private void widen() {
+            this.doubles = new double[this.longs.length];
+            for (int i = 0; i < this.longs.length; i++) {
+                this.doubles[i] = this.longs[i];
+            }
+            this.longs = null;
+            this.integral = false;
+        }
+
+        private Column grow(int row) {
+            int size = this.integral ? this.longs.length : this.doubles.length;
+            if (row >= size) {
+                size = Math.max(row + 1, size * 2);
+                if (this.integral) {
+                    this.longs = Arrays.copyOf(this.longs, size);
+                }
+                else {
+                    this.doubles = Arrays.copyOf(this.doubles, size);
+                }
+            }
+            if ((row >>> 6) >= this.present.length) {
+                this.present = Arrays.copyOf(this.present, Math.max((row >>> 6) + 1, this.present.length * 2));
+            }
+            return this;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*******************************************************************************
+ * Copyright 2019 UIA
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package uia.utils.cube;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.function.DoublePredicate;
+import java.util.function.Function;
+import java.util.function.LongPredicate;
+
+/**
+ * Cube split into partitions by values of a partition tag, every partition is a segment.<br>
+ * A selection testing the partition tag skips partitions it rejects and takes partitions it accepts as a whole,
+ * only the others are selected. Terminal operations run on partitions in parallel and merge their results.<br>
+ * Data are ordered by partition, data without the tag first and then partitions sorted by tag value. Order of data in a
+ * partition is the order of put.
+ *
+ * @author Kyle K. Lin
+ *
+ * @param <T> Type of value.
+ */
+public class PartitionedCube<T> extends SegmentedCube<T> {
+
+    private final String partitionTag;
+
+    /**
+     * Value of the partition tag of every segment, null for data without the tag.
+     */
+    private final List<String> keys;
+
+    PartitionedCube(String partitionTag, List<String> keys, List<AbstractCube<T>> segments, Grouping grouping) {
+        super(segments, grouping);
+        this.partitionTag = partitionTag;
+        this.keys = keys;
+    }
+
+    /**
+     * Get name of the partition tag.
+     * @return Tag name.
+     */
+    public String getPartitionTag() {
+        return this.partitionTag;
+    }
+
+    /**
+     * Get number of partitions.
+     * @return Partition count.
+     */
+    public int getPartitionCount() {
+        return this.keys.size();
+    }
+
+    @Override
+    public Cube<T> select(String tagName, String tagValue) {
+        return select(Query.eq(tagName, tagValue));
+    }
+
+    @Override
+    public Cube<T> selectIn(String tagName, String... tagValues) {
+        return select(Query.in(tagName, tagValues));
+    }
+
+    @Override
+    public Cube<T> selectRange(String tagName, String fromValue, String toValue) {
+        return select(Query.range(tagName, fromValue, toValue));
+    }
+
+    @Override
+    public Cube<T> selectPrefix(String tagName, String prefix) {
+        return select(Query.prefix(tagName, prefix));
+    }
+
+    @Override
+    public Cube<T> selectNot(String tagName, String tagValue) {
+        return select(Query.not(Query.eq(tagName, tagValue)));
+    }
+
+    @Override
+    public Cube<T> select(Query query) {
+        final Query q = query.simplify();
+        ArrayList<String> keys = new ArrayList<>();
+        ArrayList<AbstractCube<T>> segments = new ArrayList<>();
+        for (int i = 0; i < this.keys.size(); i++) {
+            Boolean decided = q.decide(this.partitionTag, this.keys.get(i));
+            if (Boolean.FALSE.equals(decided)) {
+                continue;
+            }
+            AbstractCube<T> segment = segments().get(i);
+            keys.add(this.keys.get(i));
+            segments.add(decided == null ? (AbstractCube<T>) segment.select(q) : segment);
+        }
+        return partitions(keys, segments);
+    }
+
+    @Override
+    public Cube<T> select(Function<Data<T>, Boolean> function) {
+        return map(s -> s.select(function));
+    }
+
+    @Override
+    public Cube<T> selectLong(String numberTag, LongPredicate predicate) {
+        return map(s -> s.selectLong(numberTag, predicate));
+    }
+
+    @Override
+    public Cube<T> selectDouble(String numberTag, DoublePredicate predicate) {
+        return map(s -> s.selectDouble(numberTag, predicate));
+    }
+
+    @Override
+    public Map<String, Cube<T>> cubes(String tagName) {
+        if (!this.partitionTag.equals(tagName)) {
+            return super.cubes(tagName);
+        }
+        // partitions are the groups, segments selected to nothing are removed.
+        TreeMap<String, Cube<T>> result = new TreeMap<>();
+        for (int i = 0; i < this.keys.size(); i++) {
+            AbstractCube<T> segment = segments().get(i);
+            if (this.keys.get(i) != null && segment.data().findAny().isPresent()) {
+                result.put(this.keys.get(i), segment);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public String explain() {
+        StringBuilder result = new StringBuilder("partitions: " + this.keys.size() + " by " + this.partitionTag);
+        for (int i = 0; i < this.keys.size(); i++) {
+            result.append("\n").append(indent(Objects.toString(this.keys.get(i), "(none)") + " " + segments().get(i).explain()));
+        }
+        return result.toString();
+    }
+
+    private PartitionedCube<T> map(Function<AbstractCube<T>, Cube<T>> f) {
+        ArrayList<AbstractCube<T>> result = new ArrayList<>(this.keys.size());
+        for (AbstractCube<T> segment : segments()) {
+            result.add((AbstractCube<T>) f.apply(segment));
+        }
+        return partitions(this.keys, result);
+    }
+
+    private PartitionedCube<T> partitions(List<String> keys, List<AbstractCube<T>> segments) {
+        return new PartitionedCube<>(this.partitionTag, Collections.unmodifiableList(keys), Collections.unmodifiableList(segments), this.grouping);
+    }
+}
@@ -0,0 +1,336 @@
+/*******************************************************************************
+ * Copyright 2019 UIA
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package uia.utils.cube;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.stream.Collector;
+
+import uia.utils.cube.Cube.Data;
+
+/**
+ * Cross table of a cube, rows are values of a tag and columns are values of another tag.<br>
+ * Cells are kept in a dense row-major long or double matrix. Labels are sorted, a cell of rows and columns without
+ * data is zero.
+ *
+ * @author Kyle K. Lin
+ *
+ */
+public final class Pivot {
+
+    private final String[] rows;
+
+    private final String[] columns;
+
+    /**
+     * Long cells or null if cells are double.
+     */
+    private final long[] longs;
+
+    private final double[] doubles;
+
+    private final long count;
+
+    private Pivot(String[] rows, String[] columns, long[] longs, double[] doubles, long count) {
+        this.rows = rows;
+        this.columns = columns;
+        this.longs = longs;
+        this.doubles = doubles;
+        this.count = count;
+    }
+
+    /**
+     * Get sorted row labels. The array is not copied.
+     * @return Row labels.
+     */
+    public String[] getRowLabels() {
+        return this.rows;
+    }
+
+    /**
+     * Get sorted column labels. The array is not copied.
+     * @return Column labels.
+     */
+    public String[] getColumnLabels() {
+        return this.columns;
+    }
+
+    /**
+     * Get number of data aggregated into cells.
+     * @return Count.
+     */
+    public long getCount() {
+        return this.count;
+    }
+
+    /**
+     * Get number of cells.
+     * @return Rows times columns.
+     */
+    long cells() {
+        return (long) this.rows.length * this.columns.length;
+    }
+
+    /**
+     * Test if cells are long or double.
+     * @return True if cells are long.
+     */
+    public boolean isIntegral() {
+        return this.longs != null;
+    }
+
+    /**
+     * Get index of a row label.
+     * @param label Row label.
+     * @return Index or a negative value if not found.
+     */
+    public int rowIndex(String label) {
+        return Arrays.binarySearch(this.rows, label);
+    }
+
+    /**
+     * Get index of a column label.
+     * @param label Column label.
+     * @return Index or a negative value if not found.
+     */
+    public int columnIndex(String label) {
+        return Arrays.binarySearch(this.columns, label);
+    }
+
+    /**
+     * Get a cell as long.
+     * @param row Row index.
+     * @param column Column index.
+     * @return Value.
+     */
+    public long getLong(int row, int column) {
+        int i = row * this.columns.length + column;
+        return this.longs != null ? this.longs[i] : (long) this.doubles[i];
+    }
+
+    /**
+     * Get a cell as double.
+     * @param row Row index.
+     * @param column Column index.
+     * @return Value.
+     */
+    public double getDouble(int row, int column) {
+        int i = row * this.columns.length + column;
+        return this.longs != null ? this.longs[i] : this.doubles[i];
+    }
+
+    /**
+     * Get long cells in row-major order. The array is not copied.
+     * @return Cells or null if cells are double.
+     */
+    public long[] longMatrix() {
+        return this.longs;
+    }
+
+    /**
+     * Get double cells in row-major order. The array is not copied.
+     * @return Cells or null if cells are long.
+     */
+    public double[] doubleMatrix() {
+        return this.doubles;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder();
+        for (String column : this.columns) {
+            result.append('\t').append(column);
+        }
+        for (int r = 0; r < this.rows.length; r++) {
+            result.append('\n').append(this.rows[r]);
+            for (int c = 0; c < this.columns.length; c++) {
+                result.append('\t').append(this.longs != null ? Long.toString(getLong(r, c)) : Double.toString(getDouble(r, c)));
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+     * Aggregate data into a pivot in one pass.
+     * @param rowTag Row tag.
+     * @param columnTag Column tag.
+     * @param numberTag Numeric tag to sum. Null means to count data.
+     * @param integral Sum as long or as double.
+     * @param <T> Type of value.
+     * @return Collector.
+     */
+    static <T> Collector<Data<T>, Cells, Pivot> collector(String rowTag, String columnTag, String numberTag, boolean integral) {
+        return Collector.of(
+                () -> new Cells(integral),
+                (cells, d) -> {
+                    String row = d.getTag(rowTag);
+                    String column = d.getTag(columnTag);
+                    if (row == null || column == null) {
+                        return;
+                    }
+                    if (numberTag == null) {
+                        cells.add(row, column, 1L);
+                    }
+                    else if (d.hasNumber(numberTag)) {
+                        if (integral) {
+                            cells.add(row, column, d.getLong(numberTag, 0));
+                        }
+                        else {
+                            cells.add(row, column, d.getDouble(numberTag, 0));
+                        }
+                    }
+                },
+                Cells::merge,
+                Cells::finish);
+    }
+
+    /**
+     * Partial cells. Labels are numbered in order of appearance, every row grows when new columns appear.
+     */
+    static final class Cells {
+
+        private final boolean integral;
+
+        private final HashMap<String, Integer> rowIds = new HashMap<>();
+
+        private final HashMap<String, Integer> columnIds = new HashMap<>();
+
+        private final ArrayList<String> rowLabels = new ArrayList<>();
+
+        private final ArrayList<String> columnLabels = new ArrayList<>();
+
+        private final ArrayList<long[]> longRows = new ArrayList<>();
+
+        private final ArrayList<double[]> doubleRows = new ArrayList<>();
+
+        private long count;
+
+        Cells(boolean integral) {
+            this.integral = integral;
+        }
+
+        void add(String row, String column, long value) {
+            put(row(row), column(column), value);
+            this.count++;
+        }
+
+        void add(String row, String column, double value) {
+            put(row(row), column(column), value);
+            this.count++;
+        }
+
+        Cells merge(Cells other) {
+            // labels of other come first, so rows and columns without data are kept as well.
+            int[] rows = other.rowLabels.stream().mapToInt(this::row).toArray();
+            int[] columns = other.columnLabels.stream().mapToInt(this::column).toArray();
+            for (int r = 0; r < rows.length; r++) {
+                if (this.integral) {
+                    long[] cells = other.longRows.get(r);
+                    for (int c = 0; c < columns.length && c < cells.length; c++) {
+                        put(rows[r], columns[c], cells[c]);
+                    }
+                }
+                else {
+                    double[] cells = other.doubleRows.get(r);
+                    for (int c = 0; c < columns.length && c < cells.length; c++) {
+                        put(rows[r], columns[c], cells[c]);
+                    }
+                }
+            }
+            this.count += other.count;
+            return this;
+        }
+
+        Pivot finish() {
+            String[] rows = this.rowLabels.toArray(new String[0]);
+            String[] columns = this.columnLabels.toArray(new String[0]);
+            Arrays.sort(rows);
+            Arrays.sort(columns);
+            int[] columnOrder = new int[columns.length];
+            for (int c = 0; c < columns.length; c++) {
+                columnOrder[this.columnIds.get(columns[c])] = c;
+            }
+
+            long[] longs = this.integral ? new long[rows.length * columns.length] : null;
+            double[] doubles = this.integral ? null : new double[rows.length * columns.length];
+            for (int r = 0; r < rows.length; r++) {
+                int base = r * columns.length;
+                int source = this.rowIds.get(rows[r]);
+                if (this.integral) {
+                    long[] cells = this.longRows.get(source);
+                    for (int c = 0; c < columns.length && c < cells.length; c++) {
+                        longs[base + columnOrder[c]] = cells[c];
+                    }
+                }
+                else {
+                    double[] cells = this.doubleRows.get(source);
+                    for (int c = 0; c < columns.length && c < cells.length; c++) {
+                        doubles[base + columnOrder[c]] = cells[c];
+                    }
+                }
+            }
+            return new Pivot(rows, columns, longs, doubles, this.count);
+        }
+
+        private void put(int r, int c, long value) {
+            long[] cells = this.longRows.get(r);
+            if (c >= cells.length) {
+                cells = Arrays.copyOf(cells, Math.max(c + 1, cells.length * 2));
+                this.longRows.set(r, cells);
+            }
+            cells[c] += value;
+        }
+
+        private void put(int r, int c, double value) {
+            double[] cells = this.doubleRows.get(r);
+            if (c >= cells.length) {
+                cells = Arrays.copyOf(cells, Math.max(c + 1, cells.length * 2));
+                this.doubleRows.set(r, cells);
+            }
+            cells[c] += value;
+        }
+
+        private int row(String label) {
+            Integer id = this.rowIds.get(label);
+            if (id == null) {
+                id = this.rowLabels.size();
+                this.rowIds.put(label, id);
+                this.rowLabels.add(label);
+                if (this.integral) {
+                    this.longRows.add(new long[Math.max(4, this.columnLabels.size())]);
+                }
+                else {
+                    this.doubleRows.add(new double[Math.max(4, this.columnLabels.size())]);
+                }
+            }
+            return id;
+        }
+
+        private int column(String label) {
+            Integer id = this.columnIds.get(label);
+            if (id == null) {
+                id = this.columnLabels.size();
+                this.columnIds.put(label, id);
+                this.columnLabels.add(label);
+            }
+            return id;
+        }
+    }
+}
@@ -0,0 +1,522 @@
+/*******************************************************************************
+ * Copyright 2019 UIA
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package uia.utils.cube;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import uia.utils.cube.Cube.Data;
+
+/**
+ * Boolean query of tags.<br>
+ * A query is built from EQ, IN, range and prefix tests of tags combined with AND, OR and NOT, for example:
+ * <pre>
+ * Query.anyOf(Query.eq("lastName", "Lin").and(Query.in("Job", "Engineer", "Student")), Query.eq("Sex", "F"))
+ * </pre>
+ * Unlike a function, a query can be analyzed by a cube. Indexed and mapped cubes execute it as operations on row sets,
+ * other cubes test every data.
+ *
+ * @author Kyle K. Lin
+ *
+ */
+public abstract class Query {
+
+    Query() {
+    }
+
+    /**
+     * Create a query accepting data whose tag is a specific value.
+     * @param tagName Tag name.
+     * @param tagValue Tag value.
+     * @return Query.
+     */
+    public static Query eq(String tagName, String tagValue) {
+        return new In(tagName, Collections.singleton(tagValue));
+    }
+
+    /**
+     * Create a query accepting data whose tag is one of specific values.
+     * @param tagName Tag name.
+     * @param tagValues Tag values.
+     * @return Query.
+     */
+    public static Query in(String tagName, String... tagValues) {
+        return new In(tagName, new LinkedHashSet<>(Arrays.asList(tagValues)));
+    }
+
+    /**
+     * Create a query accepting data whose tag is in a range, compared as strings.
+     * @param tagName Tag name.
+     * @param fromValue Lower bound, inclusive. Null means unbounded.
+     * @param toValue Upper bound, exclusive. Null means unbounded.
+     * @return Query.
+     */
+    public static Query range(String tagName, String fromValue, String toValue) {
+        return new Range(tagName, fromValue, toValue);
+    }
+
+    /**
+     * Create a query accepting data whose tag starts with a prefix.
+     * @param tagName Tag name.
+     * @param prefix Prefix.
+     * @return Query.
+     */
+    public static Query prefix(String tagName, String prefix) {
+        return new Prefix(tagName, prefix);
+    }
+
+    /**
+     * Create a query accepting data not accepted by another query.
+     * @param query The query.
+     * @return Query.
+     */
+    public static Query not(Query query) {
+        return new Not(query);
+    }
+
+    /**
+     * Create a query accepting data accepted by all queries.
+     * @param queries Queries.
+     * @return Query.
+     */
+    public static Query allOf(Query... queries) {
+        return new And(Arrays.asList(queries.clone()));
+    }
+
+    /**
+     * Create a query accepting data accepted by any of queries.
+     * @param queries Queries.
+     * @return Query.
+     */
+    public static Query anyOf(Query... queries) {
+        return new Or(Arrays.asList(queries.clone()));
+    }
+
+    /**
+     * Create a query accepting data accepted by this and another query.
+     * @param query Another query.
+     * @return Query.
+     */
+    public Query and(Query query) {
+        return allOf(this, query);
+    }
+
+    /**
+     * Create a query accepting data accepted by this or another query.
+     * @param query Another query.
+     * @return Query.
+     */
+    public Query or(Query query) {
+        return anyOf(this, query);
+    }
+
+    /**
+     * Test a data.
+     * @param d Data.
+     * @return True if the data is accepted.
+     */
+    abstract boolean test(Data<?> d);
+
+    /**
+     * Evaluate the query to rows of a source.
+     * @param source Source answering tests of tags with rows.
+     * @return Rows.
+     */
+    abstract RowSet evaluate(Source source);
+
+    /**
+     * Decide the query for all data owning a specific value of a tag, without looking at other tags.
+     * @param tagName Tag name.
+     * @param tagValue Tag value, null means data without the tag.
+     * @return TRUE if all such data are accepted, FALSE if none is accepted, null if it depends on other tags.
+     */
+    abstract Boolean decide(String tagName, String tagValue);
+
+    /**
+     * Rewrite the query to an equivalent one cheaper to execute. Nested AND and OR are flattened, double NOT is
+     * removed, EQ and IN of the same tag under OR are merged to one IN.
+     * @return Query.
+     */
+    Query simplify() {
+        return this;
+    }
+
+    /**
+     * Rows of a cube owning specific tags.
+     *
+     * @author Kyle K. Lin
+     *
+     */
+    interface Source {
+
+        /**
+         * Get all rows.
+         * @return Rows.
+         */
+        RowSet all();
+
+        /**
+         * Get rows whose tag is one of specific values.
+         * @param tagName Tag name.
+         * @param tagValues Tag values.
+         * @return Rows.
+         */
+        RowSet in(String tagName, Set<String> tagValues);
+
+        /**
+         * Get rows whose tag is in a range.
+         * @param tagName Tag name.
+         * @param fromValue Lower bound, inclusive. Null means unbounded.
+         * @param toValue Upper bound, exclusive. Null means unbounded.
+         * @return Rows.
+         */
+        RowSet range(String tagName, String fromValue, String toValue);
+
+        /**
+         * Get rows whose tag starts with a prefix.
+         * @param tagName Tag name.
+         * @param prefix Prefix.
+         * @return Rows.
+         */
+        RowSet prefix(String tagName, String prefix);
+    }
+
+    /**
+     * Test of one tag.
+     */
+    abstract static class Leaf extends Query {
+
+        final String tagName;
+
+        Leaf(String tagName) {
+            this.tagName = tagName;
+        }
+
+        /**
+         * Test a tag value.
+         * @param tagValue Tag value, null if data has no such tag.
+         * @return True if the value is accepted.
+         */
+        abstract boolean accept(String tagValue);
+
+        @Override
+        boolean test(Data<?> d) {
+            return accept(d.getTag(this.tagName));
+        }
+
+        @Override
+        Boolean decide(String tagName, String tagValue) {
+            return this.tagName.equals(tagName) ? accept(tagValue) : null;
+        }
+    }
+
+    static final class In extends Leaf {
+
+        final Set<String> tagValues;
+
+        In(String tagName, Set<String> tagValues) {
+            super(tagName);
+            this.tagValues = tagValues;
+        }
+
+        @Override
+        boolean accept(String tagValue) {
+            return this.tagValues.contains(tagValue);
+        }
+
+        @Override
+        RowSet evaluate(Source source) {
+            return source.in(this.tagName, this.tagValues);
+        }
+
+        @Override
+        public String toString() {
+            return this.tagValues.size() == 1
+                    ? this.tagName + "=" + this.tagValues.iterator().next()
+                    : this.tagName + " IN " + this.tagValues;
+        }
+    }
+
+    static final class Range extends Leaf {
+
+        private final String fromValue;
+
+        private final String toValue;
+
+        Range(String tagName, String fromValue, String toValue) {
+            super(tagName);
+            this.fromValue = fromValue;
+            this.toValue = toValue;
+        }
+
+        @Override
+        boolean accept(String tagValue) {
+            return tagValue != null
+                    && (this.fromValue == null || tagValue.compareTo(this.fromValue) >= 0)
+                    && (this.toValue == null || tagValue.compareTo(this.toValue) < 0);
+        }
+
+        @Override
+        RowSet evaluate(Source source) {
+            return source.range(this.tagName, this.fromValue, this.toValue);
+        }
+
+        @Override
+        public String toString() {
+            return this.tagName + " IN [" + Objects.toString(this.fromValue, "") + ", " + Objects.toString(this.toValue, "") + ")";
+        }
+    }
+
+    static final class Prefix extends Leaf {
+
+        private final String prefix;
+
+        Prefix(String tagName, String prefix) {
+            super(tagName);
+            this.prefix = prefix;
+        }
+
+        @Override
+        boolean accept(String tagValue) {
+            return tagValue != null && tagValue.startsWith(this.prefix);
+        }
+
+        @Override
+        RowSet evaluate(Source source) {
+            return source.prefix(this.tagName, this.prefix);
+        }
+
+        @Override
+        public String toString() {
+            return this.tagName + " LIKE " + this.prefix + "*";
+        }
+    }
+
+    static final class Not extends Query {
+
+        private final Query query;
+
+        Not(Query query) {
+            this.query = query;
+        }
+
+        @Override
+        boolean test(Data<?> d) {
+            return !this.query.test(d);
+        }
+
+        @Override
+        Boolean decide(String tagName, String tagValue) {
+            Boolean result = this.query.decide(tagName, tagValue);
+            return result == null ? null : !result;
+        }
+
+        @Override
+        RowSet evaluate(Source source) {
+            return source.all().andNot(this.query.evaluate(source));
+        }
+
+        @Override
+        Query simplify() {
+            Query inner = this.query.simplify();
+            return inner instanceof Not ? ((Not) inner).query : new Not(inner);
+        }
+
+        @Override
+        public String toString() {
+            if (this.query instanceof In && ((In) this.query).tagValues.size() == 1) {
+                In in = (In) this.query;
+                return in.tagName + "!=" + in.tagValues.iterator().next();
+            }
+            return "NOT " + group(this.query);
+        }
+    }
+
+    static final class And extends Query {
+
+        private final List<Query> queries;
+
+        And(List<Query> queries) {
+            this.queries = queries;
+        }
+
+        @Override
+        boolean test(Data<?> d) {
+            for (Query query : this.queries) {
+                if (!query.test(d)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        Boolean decide(String tagName, String tagValue) {
+            Boolean result = Boolean.TRUE;
+            for (Query query : this.queries) {
+                Boolean decided = query.decide(tagName, tagValue);
+                if (Boolean.FALSE.equals(decided)) {
+                    return Boolean.FALSE;
+                }
+                if (decided == null) {
+                    result = null;
+                }
+            }
+            return result;
+        }
+
+        @Override
+        RowSet evaluate(Source source) {
+            // intersect positive queries first, NOT queries subtract from the result instead of building complements.
+            RowSet result = null;
+            for (Query query : this.queries) {
+                if (!(query instanceof Not)) {
+                    RowSet rows = query.evaluate(source);
+                    result = result == null ? rows : result.and(rows);
+                    if (result.isEmpty()) {
+                        return result;
+                    }
+                }
+            }
+            if (result == null) {
+                result = source.all();
+            }
+            for (Query query : this.queries) {
+                if (query instanceof Not) {
+                    result = result.andNot(((Not) query).query.evaluate(source));
+                }
+            }
+            return result;
+        }
+
+        @Override
+        Query simplify() {
+            ArrayList<Query> result = new ArrayList<>();
+            for (Query query : this.queries) {
+                Query q = query.simplify();
+                if (q instanceof And) {
+                    result.addAll(((And) q).queries);
+                }
+                else {
+                    result.add(q);
+                }
+            }
+            return result.size() == 1 ? result.get(0) : new And(result);
+        }
+
+        @Override
+        public String toString() {
+            return this.queries.stream().map(Query::group).collect(Collectors.joining(" AND "));
+        }
+    }
+
+    static final class Or extends Query {
+
+        private final List<Query> queries;
+
+        Or(List<Query> queries) {
+            this.queries = queries;
+        }
+
+        @Override
+        boolean test(Data<?> d) {
+            for (Query query : this.queries) {
+                if (query.test(d)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        Boolean decide(String tagName, String tagValue) {
+            Boolean result = Boolean.FALSE;
+            for (Query query : this.queries) {
+                Boolean decided = query.decide(tagName, tagValue);
+                if (Boolean.TRUE.equals(decided)) {
+                    return Boolean.TRUE;
+                }
+                if (decided == null) {
+                    result = null;
+                }
+            }
+            return result;
+        }
+
+        @Override
+        RowSet evaluate(Source source) {
+            RowSet result = RowSet.EMPTY;
+            for (Query query : this.queries) {
+                result = result.or(query.evaluate(source));
+            }
+            return result;
+        }
+
+        @Override
+        Query simplify() {
+            ArrayList<Query> flat = new ArrayList<>();
+            for (Query query : this.queries) {
+                Query q = query.simplify();
+                if (q instanceof Or) {
+                    flat.addAll(((Or) q).queries);
+                }
+                else {
+                    flat.add(q);
+                }
+            }
+
+            // merge EQ and IN of the same tag.
+            LinkedHashMap<String, LinkedHashSet<String>> values = new LinkedHashMap<>();
+            ArrayList<Query> result = new ArrayList<>();
+            for (Query q : flat) {
+                if (q instanceof In) {
+                    In in = (In) q;
+                    LinkedHashSet<String> merged = values.get(in.tagName);
+                    if (merged == null) {
+                        merged = new LinkedHashSet<>();
+                        values.put(in.tagName, merged);
+                        // placeholder keeps the position of the first test of the tag.
+                        result.add(new In(in.tagName, merged));
+                    }
+                    merged.addAll(in.tagValues);
+                }
+                else {
+                    result.add(q);
+                }
+            }
+            return result.size() == 1 ? result.get(0) : new Or(result);
+        }
+
+        @Override
+        public String toString() {
+            return this.queries.stream().map(Query::group).collect(Collectors.joining(" OR "));
+        }
+    }
+
+    private static String group(Query query) {
+        return query instanceof And || query instanceof Or ? "(" + query + ")" : query.toString();
+    }
+}
@@ -0,0 +1,229 @@
+/*******************************************************************************
+ * Copyright 2019 UIA
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package uia.utils.cube;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import uia.utils.cube.Cube.Data;
+
+/**
+ * Immutable query plan, a conjunction of steps evaluated against source data.<br>
+ * A plan can be executed many times. Before the first execution, query steps are reordered by their selectivity estimated
+ * from a sample of the source, so the most selective step runs first. Function steps are opaque, they keep their order
+ * and run after all query steps.
+ *
+ * @author Kyle K. Lin
+ *
+ * @param <T> Type of value.
+ */
+final class QueryPlan<T> {
+
+    private static final int SAMPLE_SIZE = 256;
+
+    private final List<Step<T>> steps;
+
+    private volatile List<Step<T>> optimized;
+
+    private QueryPlan(List<Step<T>> steps) {
+        this.steps = steps;
+    }
+
+    /**
+     * Create a plan selecting all data.
+     * @param <T> Type of value.
+     * @return Plan.
+     */
+    static <T> QueryPlan<T> all() {
+        return new QueryPlan<>(Collections.emptyList());
+    }
+
+    /**
+     * Create a new plan with one more step.
+     * @param step The step.
+     * @return Plan.
+     */
+    QueryPlan<T> and(Step<T> step) {
+        ArrayList<Step<T>> result = new ArrayList<>(this.steps);
+        result.add(step);
+        return new QueryPlan<>(Collections.unmodifiableList(result));
+    }
+
+    /**
+     * Execute the plan.
+     * @param source Source data.
+     * @return Selected data.
+     */
+    Stream<Data<T>> execute(List<Data<T>> source) {
+        if (this.steps.isEmpty()) {
+            return source.stream();
+        }
+        final List<Step<T>> order = optimize(source);
+        return source.stream().filter(d -> test(order, d));
+    }
+
+    /**
+     * Execute the plan and keep row ids of selected data only.
+     * @param source Source data.
+     * @param rows Ascending row ids of the source to test. Null means all rows.
+     * @return Ascending row ids of selected data.
+     */
+    int[] rows(List<Data<T>> source, int[] rows) {
+        if (this.steps.isEmpty()) {
+            return rows == null ? IntStream.range(0, source.size()).toArray() : rows;
+        }
+        final List<Step<T>> order = optimize(rows == null ? source : new RowList<>(source, rows));
+        IntStream ids = rows == null ? IntStream.range(0, source.size()) : Arrays.stream(rows);
+        return ids.filter(i -> test(order, source.get(i))).toArray();
+    }
+
+    /**
+     * Get steps in execution order.
+     * @param source Source data used to estimate selectivity.
+     * @return Steps.
+     */
+    List<Step<T>> optimize(List<Data<T>> source) {
+        List<Step<T>> result = this.optimized;
+        if (result == null) {
+            List<Data<T>> sample = sample(source);
+            IdentityHashMap<Step<T>, Double> selectivity = new IdentityHashMap<>();
+            ArrayList<Step<T>> querySteps = new ArrayList<>();
+            ArrayList<Step<T>> functionSteps = new ArrayList<>();
+            for (Step<T> step : this.steps) {
+                if (step.query == null) {
+                    functionSteps.add(step);
+                }
+                else {
+                    selectivity.put(step, step.estimate(sample));
+                    querySteps.add(step);
+                }
+            }
+            // stable sort, steps with the same selectivity keep their order.
+            querySteps.sort((a, b) -> Double.compare(selectivity.get(a), selectivity.get(b)));
+            querySteps.addAll(functionSteps);
+            result = Collections.unmodifiableList(querySteps);
+            this.optimized = result;
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        List<Step<T>> order = this.optimized != null ? this.optimized : this.steps;
+        return order.isEmpty() ? "ALL" : order.stream().map(Step::toString).collect(Collectors.joining(" AND "));
+    }
+
+    private static <T> boolean test(List<Step<T>> order, Data<T> d) {
+        for (Step<T> step : order) {
+            if (!step.test(d)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static <T> List<Data<T>> sample(List<Data<T>> source) {
+        if (source.size() <= SAMPLE_SIZE) {
+            return source;
+        }
+        ArrayList<Data<T>> result = new ArrayList<>(SAMPLE_SIZE);
+        double gap = (double) source.size() / SAMPLE_SIZE;
+        for (int i = 0; i < SAMPLE_SIZE; i++) {
+            result.add(source.get((int) (i * gap)));
+        }
+        return result;
+    }
+
+    /**
+     * A step of the plan.
+     *
+     * @param <T> Type of value.
+     */
+    static final class Step<T> {
+
+        /**
+         * Query or null if the step is a function.
+         */
+        private final Query query;
+
+        private final Function<Data<T>, Boolean> function;
+
+        private Step(Query query, Function<Data<T>, Boolean> function) {
+            this.query = query;
+            this.function = function;
+        }
+
+        static <T> Step<T> eq(String tagName, String tagValue) {
+            return new Step<>(Query.eq(tagName, tagValue), null);
+        }
+
+        static <T> Step<T> not(String tagName, String tagValue) {
+            return new Step<>(Query.not(Query.eq(tagName, tagValue)), null);
+        }
+
+        static <T> Step<T> in(String tagName, String... tagValues) {
+            return new Step<>(Query.in(tagName, tagValues), null);
+        }
+
+        static <T> Step<T> range(String tagName, String fromValue, String toValue) {
+            return new Step<>(Query.range(tagName, fromValue, toValue), null);
+        }
+
+        static <T> Step<T> prefix(String tagName, String prefix) {
+            return new Step<>(Query.prefix(tagName, prefix), null);
+        }
+
+        static <T> Step<T> of(Query query) {
+            return new Step<>(query.simplify(), null);
+        }
+
+        static <T> Step<T> of(Function<Data<T>, Boolean> function) {
+            return new Step<>(null, function);
+        }
+
+        boolean test(Data<T> d) {
+            return this.query == null ? this.function.apply(d) : this.query.test(d);
+        }
+
+        /**
+         * Estimate ratio of data accepted by this step.
+         * @param sample Sample data.
+         * @return Ratio from 0 to 1.
+         */
+        double estimate(List<Data<T>> sample) {
+            if (sample.isEmpty()) {
+                return 1.0;
+            }
+            long matched = sample.stream().filter(this::test).count();
+            return (double) matched / sample.size();
+        }
+
+        @Override
+        public String toString() {
+            return this.query == null ? "function" : this.query.toString();
+        }
+    }
+}
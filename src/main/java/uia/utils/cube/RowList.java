@@ -0,0 +1,59 @@
+/*******************************************************************************
+ * Copyright 2019 UIA
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package uia.utils.cube;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+import uia.utils.cube.Cube.Data;
+
+/**
+ * Read only view of selected rows of source data. Only row ids are allocated, data are shared with the source.
+ *
+ * @author Kyle K. Lin
+ *
+ * @param <T> Type of value.
+ */
+final class RowList<T> extends AbstractList<Data<T>> implements RandomAccess {
+
+    private final List<Data<T>> source;
+
+    private final int[] rows;
+
+    /**
+     * Constructor.
+     * @param source Source data.
+     * @param rows Ascending row ids of the source. The array is not copied.
+     */
+    RowList(List<Data<T>> source, int[] rows) {
+        this.source = source;
+        this.rows = rows;
+    }
+
+    @Override
+    public Data<T> get(int index) {
+        return this.source.get(this.rows[index]);
+    }
+
+    @Override
+    public int size() {
+        return this.rows.length;
+    }
+}
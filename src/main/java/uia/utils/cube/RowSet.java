@@ -0,0 +1,454 @@
+/*******************************************************************************
+ * Copyright 2019 UIA
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package uia.utils.cube;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Immutable and compressed set of row ids.<br>
+ * A set is kept as a sorted int array when it is sparse, or as a bitmap covering only the words between its first and last row
+ * when the bitmap is smaller. Every operation chooses the smaller representation for its result.
+ *
+ * @author Kyle K. Lin
+ *
+ */
+final class RowSet {
+
+    static final RowSet EMPTY = new RowSet(new int[0], 0);
+
+    /**
+     * Sorted ids in array mode, null in bitmap mode.
+     */
+    private final int[] ids;
+
+    /**
+     * Bits in bitmap mode, null in array mode. Bit i of word w is row (offset + w) * 64 + i.
+     */
+    private final long[] words;
+
+    private final int offset;
+
+    private final int size;
+
+    private RowSet(int[] ids, int size) {
+        this.ids = ids;
+        this.words = null;
+        this.offset = 0;
+        this.size = size;
+    }
+
+    private RowSet(long[] words, int offset, int size) {
+        this.ids = null;
+        this.words = words;
+        this.offset = offset;
+        this.size = size;
+    }
+
+    /**
+     * Create a row set.
+     * @param ids Sorted and distinct row ids. The array is not copied.
+     * @param size Number of ids used in the array.
+     * @return Row set.
+     */
+    static RowSet of(int[] ids, int size) {
+        if (size == 0) {
+            return EMPTY;
+        }
+        int offset = ids[0] >>> 6;
+        int span = (ids[size - 1] >>> 6) - offset + 1;
+        if ((long) span * 2 >= size) {
+            return new RowSet(ids, size);
+        }
+        long[] words = new long[span];
+        for (int i = 0; i < size; i++) {
+            int row = ids[i];
+            words[(row >>> 6) - offset] |= 1L << row;
+        }
+        return new RowSet(words, offset, size);
+    }
+
+    /**
+     * Create a row set containing rows from 0 to count - 1.
+     * @param count Row count.
+     * @return Row set.
+     */
+    static RowSet range(int count) {
+        return EMPTY.complement(count);
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    /**
+     * Get the smallest row id.
+     * @return Row id or -1 if the set is empty.
+     */
+    int first() {
+        if (this.size == 0) {
+            return -1;
+        }
+        if (this.ids != null) {
+            return this.ids[0];
+        }
+        for (int w = 0; w < this.words.length; w++) {
+            if (this.words[w] != 0) {
+                return ((this.offset + w) << 6) + Long.numberOfTrailingZeros(this.words[w]);
+            }
+        }
+        return -1;
+    }
+
+    boolean contains(int row) {
+        if (this.ids != null) {
+            return Arrays.binarySearch(this.ids, 0, this.size, row) >= 0;
+        }
+        int w = (row >>> 6) - this.offset;
+        return w >= 0 && w < this.words.length && (this.words[w] & 1L << row) != 0;
+    }
+
+    IntStream stream() {
+        if (this.ids != null) {
+            return Arrays.stream(this.ids, 0, this.size);
+        }
+        return Arrays.stream(toArray());
+    }
+
+    /**
+     * Get sorted row ids.
+     * @return Row ids.
+     */
+    int[] toArray() {
+        if (this.ids != null) {
+            return this.ids.length == this.size ? this.ids : Arrays.copyOf(this.ids, this.size);
+        }
+        int[] result = new int[this.size];
+        int n = 0;
+        for (int w = 0; w < this.words.length; w++) {
+            long word = this.words[w];
+            int base = (this.offset + w) << 6;
+            while (word != 0) {
+                result[n++] = base + Long.numberOfTrailingZeros(word);
+                word &= word - 1;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Intersect with another row set.
+     * @param other Another row set.
+     * @return Rows in both sets.
+     */
+    RowSet and(RowSet other) {
+        if (this.size > other.size) {
+            return other.and(this);
+        }
+        if (this.size == 0) {
+            return EMPTY;
+        }
+        if (this.ids == null && other.ids == null) {
+            int from = Math.max(this.offset, other.offset);
+            int to = Math.min(this.offset + this.words.length, other.offset + other.words.length);
+            if (from >= to) {
+                return EMPTY;
+            }
+            long[] result = new long[to - from];
+            for (int w = from; w < to; w++) {
+                result[w - from] = this.words[w - this.offset] & other.words[w - other.offset];
+            }
+            return ofWords(result, from);
+        }
+        if (this.ids == null) {
+            return other.probe(this, true);
+        }
+        if (other.ids == null) {
+            return probe(other, true);
+        }
+
+        int[] result = new int[this.size];
+        int n = 0;
+        if (this.size * 16 < other.size) {
+            // small set against a large one: binary search instead of merge.
+            int from = 0;
+            for (int i = 0; i < this.size; i++) {
+                int at = Arrays.binarySearch(other.ids, from, other.size, this.ids[i]);
+                if (at >= 0) {
+                    result[n++] = this.ids[i];
+                    from = at + 1;
+                }
+                else {
+                    from = -at - 1;
+                }
+                if (from >= other.size) {
+                    break;
+                }
+            }
+        }
+        else {
+            int i = 0;
+            int j = 0;
+            while (i < this.size && j < other.size) {
+                int a = this.ids[i];
+                int b = other.ids[j];
+                if (a == b) {
+                    result[n++] = a;
+                    i++;
+                    j++;
+                }
+                else if (a < b) {
+                    i++;
+                }
+                else {
+                    j++;
+                }
+            }
+        }
+        return of(result, n);
+    }
+
+    /**
+     * Remove rows of another row set.
+     * @param other Another row set.
+     * @return Rows in this set but not in the other.
+     */
+    RowSet andNot(RowSet other) {
+        if (this.size == 0 || other.size == 0) {
+            return this;
+        }
+        if (this.ids == null) {
+            long[] result = this.words.clone();
+            if (other.ids == null) {
+                int from = Math.max(this.offset, other.offset);
+                int to = Math.min(this.offset + this.words.length, other.offset + other.words.length);
+                for (int w = from; w < to; w++) {
+                    result[w - this.offset] &= ~other.words[w - other.offset];
+                }
+            }
+            else {
+                for (int i = 0; i < other.size; i++) {
+                    int row = other.ids[i];
+                    int w = (row >>> 6) - this.offset;
+                    if (w >= 0 && w < result.length) {
+                        result[w] &= ~(1L << row);
+                    }
+                }
+            }
+            return ofWords(result, this.offset);
+        }
+
+        if (other.ids == null) {
+            return probe(other, false);
+        }
+
+        int[] result = new int[this.size];
+        int n = 0;
+        int j = 0;
+        for (int i = 0; i < this.size; i++) {
+            int a = this.ids[i];
+            while (j < other.size && other.ids[j] < a) {
+                j++;
+            }
+            if (j >= other.size || other.ids[j] != a) {
+                result[n++] = a;
+            }
+        }
+        return of(result, n);
+    }
+
+    /**
+     * Union with another row set.
+     * @param other Another row set.
+     * @return Rows in any of sets.
+     */
+    RowSet or(RowSet other) {
+        if (other.size == 0) {
+            return this;
+        }
+        if (this.size == 0) {
+            return other;
+        }
+        if (this.ids != null && other.ids != null) {
+            int[] result = new int[this.size + other.size];
+            int n = 0;
+            int i = 0;
+            int j = 0;
+            while (i < this.size || j < other.size) {
+                if (j >= other.size || i < this.size && this.ids[i] < other.ids[j]) {
+                    result[n++] = this.ids[i++];
+                }
+                else if (i >= this.size || other.ids[j] < this.ids[i]) {
+                    result[n++] = other.ids[j++];
+                }
+                else {
+                    result[n++] = this.ids[i++];
+                    j++;
+                }
+            }
+            return of(result, n);
+        }
+
+        int from = Math.min(this.firstWord(), other.firstWord());
+        int to = Math.max(this.lastWord(), other.lastWord()) + 1;
+        long[] result = new long[to - from];
+        this.copyTo(result, from);
+        other.copyTo(result, from);
+        return ofWords(result, from);
+    }
+
+    /**
+     * Add a distance to every row id.
+     * @param distance Distance, not negative.
+     * @return Row set.
+     */
+    RowSet shift(int distance) {
+        if (distance == 0 || this.size == 0) {
+            return this;
+        }
+        if (this.ids == null && (distance & 63) == 0) {
+            return new RowSet(this.words, this.offset + (distance >>> 6), this.size);
+        }
+        int[] ids = this.ids != null ? this.ids : toArray();
+        int[] result = new int[this.size];
+        for (int i = 0; i < this.size; i++) {
+            result[i] = ids[i] + distance;
+        }
+        return of(result, this.size);
+    }
+
+    /**
+     * Create rows from 0 to count - 1 which are not in this set.
+     * @param count Row count.
+     * @return Row set.
+     */
+    RowSet complement(int count) {
+        if (count <= 0) {
+            return EMPTY;
+        }
+        long[] result = new long[((count - 1) >>> 6) + 1];
+        Arrays.fill(result, -1L);
+        if ((count & 63) != 0) {
+            result[result.length - 1] = (1L << count) - 1;
+        }
+        return ofWords(result, 0).andNot(this);
+    }
+
+    /**
+     * Filter ids of this array mode set by bits of another set.
+     */
+    private RowSet probe(RowSet bits, boolean keep) {
+        int[] result = new int[this.size];
+        int n = 0;
+        for (int i = 0; i < this.size; i++) {
+            if (bits.contains(this.ids[i]) == keep) {
+                result[n++] = this.ids[i];
+            }
+        }
+        return of(result, n);
+    }
+
+    private int firstWord() {
+        return this.ids != null ? this.ids[0] >>> 6 : this.offset;
+    }
+
+    private int lastWord() {
+        return this.ids != null ? this.ids[this.size - 1] >>> 6 : this.offset + this.words.length - 1;
+    }
+
+    private void copyTo(long[] target, int targetOffset) {
+        if (this.ids != null) {
+            for (int i = 0; i < this.size; i++) {
+                int row = this.ids[i];
+                target[(row >>> 6) - targetOffset] |= 1L << row;
+            }
+        }
+        else {
+            for (int w = 0; w < this.words.length; w++) {
+                target[this.offset + w - targetOffset] |= this.words[w];
+            }
+        }
+    }
+
+    /**
+     * Create a row set from bits, converted to an array when the array is smaller.
+     */
+    private static RowSet ofWords(long[] words, int offset) {
+        int from = 0;
+        int to = words.length;
+        while (from < to && words[from] == 0) {
+            from++;
+        }
+        while (to > from && words[to - 1] == 0) {
+            to--;
+        }
+        if (from == to) {
+            return EMPTY;
+        }
+
+        int size = 0;
+        for (int w = from; w < to; w++) {
+            size += Long.bitCount(words[w]);
+        }
+        long[] trimmed = from == 0 && to == words.length ? words : Arrays.copyOfRange(words, from, to);
+        RowSet bits = new RowSet(trimmed, offset + from, size);
+        if ((long) trimmed.length * 2 >= size) {
+            return new RowSet(bits.toArray(), size);
+        }
+        return bits;
+    }
+
+    /**
+     * Builder of a row set, row ids must be added in ascending order.
+     */
+    static final class Builder {
+
+        private int[] ids = new int[4];
+
+        private int size;
+
+        void add(int id) {
+            if (this.size == this.ids.length) {
+                this.ids = Arrays.copyOf(this.ids, this.size * 2);
+            }
+            this.ids[this.size++] = id;
+        }
+
+        Builder addAll(Builder next) {
+            if (this.size + next.size > this.ids.length) {
+                this.ids = Arrays.copyOf(this.ids, this.size + next.size);
+            }
+            System.arraycopy(next.ids, 0, this.ids, this.size, next.size);
+            this.size += next.size;
+            return this;
+        }
+
+        RowSet build() {
+            return of(this.ids, this.size);
+        }
+
+        int[] toArray() {
+            return this.ids.length == this.size ? this.ids : Arrays.copyOf(this.ids, this.size);
+        }
+    }
+}
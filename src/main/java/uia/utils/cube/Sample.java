@@ -0,0 +1,329 @@
+/*******************************************************************************
+ * Copyright 2019 UIA
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package uia.utils.cube;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Function;
+import java.util.stream.Collector;
+
+import uia.utils.cube.Cube.Data;
+
+/**
+ * Uniform random sample of a cube for approximate queries.<br>
+ * A sample keeps sampled data matching the selections applied so far, and the number of data of the cube the sample is
+ * drawn from. Counts and sums are scaled from the sample, every estimate has an error bound at 95% confidence.
+ * A count of no sampled data is 0 with the bound of the rule of three, 3 / sample size of the population.
+ * A sample covering all data is exact, its errors are zero.
+ *
+ * @author Kyle K. Lin
+ *
+ * @param <T> Type of value.
+ */
+public final class Sample<T> {
+
+    /**
+     * Z score of 95% confidence.
+     */
+    private static final double Z95 = 1.96;
+
+    private final Cube<T> rows;
+
+    private final long population;
+
+    private final long size;
+
+    /**
+     * Constructor.
+     * @param rows Sampled data matching selections.
+     * @param population Number of data the sample is drawn from.
+     * @param size Number of sampled data before selections.
+     */
+    Sample(Cube<T> rows, long population, long size) {
+        this.rows = rows;
+        this.population = population;
+        this.size = size;
+    }
+
+    /**
+     * Create an exact sample of all data of a cube.
+     * @param cube The cube.
+     * @param <T> Type of value.
+     * @return Sample.
+     */
+    static <T> Sample<T> of(Cube<T> cube) {
+        long count = cube.values().count();
+        return new Sample<>(cube, count, count);
+    }
+
+    /**
+     * Get number of data the sample is drawn from.
+     * @return Population.
+     */
+    public long getPopulation() {
+        return this.population;
+    }
+
+    /**
+     * Get number of sampled data before selections.
+     * @return Sample size.
+     */
+    public long getSize() {
+        return this.size;
+    }
+
+    /**
+     * Test if the sample covers all data.
+     * @return True if estimates are exact.
+     */
+    public boolean isExact() {
+        return this.size >= this.population;
+    }
+
+    /**
+     * Get sampled data matching selections.
+     * @return Cube of sampled data.
+     */
+    public Cube<T> rows() {
+        return this.rows;
+    }
+
+    /**
+     * Select sampled data depending on tag.
+     * @param tagName Tag name.
+     * @param tagValue Tag value.
+     * @return Sample.
+     */
+    public Sample<T> select(String tagName, String tagValue) {
+        return with(this.rows.select(tagName, tagValue));
+    }
+
+    /**
+     * Select sampled data accepted by a query.
+     * @param query Query.
+     * @return Sample.
+     */
+    public Sample<T> select(Query query) {
+        return with(this.rows.select(query));
+    }
+
+    /**
+     * Select sampled data depending on function.
+     * @param function Function.
+     * @return Sample.
+     */
+    public Sample<T> select(Function<Data<T>, Boolean> function) {
+        return with(this.rows.select(function));
+    }
+
+    /**
+     * Estimate number of data.
+     * @return Estimate.
+     */
+    public Estimate count() {
+        return count(this.rows.values().count());
+    }
+
+    /**
+     * Estimate number of data grouping by tag. Data without the tag are ignored.
+     * @param tagName Tag name.
+     * @return Estimates.
+     */
+    public Map<String, Estimate> countMapping(String tagName) {
+        TreeMap<String, Estimate> result = new TreeMap<>();
+        this.rows.countMapping(tagName).forEach((k, v) -> result.put(k, count(v)));
+        return result;
+    }
+
+    /**
+     * Estimate sum of a numeric tag. Data without the tag are ignored.
+     * @param numberTag Name of the numeric tag.
+     * @return Estimate.
+     */
+    public Estimate sum(String numberTag) {
+        return sum(AbstractCube.dataOf(this.rows).collect(moments(numberTag)));
+    }
+
+    /**
+     * Estimate sum of a numeric tag grouping by tag. Data without either tag are ignored.
+     * @param tagName Tag name.
+     * @param numberTag Name of the numeric tag.
+     * @return Estimates.
+     */
+    public Map<String, Estimate> sumMapping(String tagName, String numberTag) {
+        TreeMap<String, Estimate> result = new TreeMap<>();
+        Grouping.collect(AbstractCube.dataOf(this.rows), d -> d.getTag(tagName), null, moments(numberTag))
+                .forEach((k, v) -> result.put(k, sum(v)));
+        return result;
+    }
+
+    /**
+     * Estimate average of a numeric tag. Data without the tag are ignored.
+     * @param numberTag Name of the numeric tag.
+     * @return Estimate, NaN if no sampled data has the tag.
+     */
+    public Estimate average(String numberTag) {
+        double[] m = AbstractCube.dataOf(this.rows).collect(moments(numberTag));
+        if (m[0] == 0) {
+            return new Estimate(Double.NaN, Double.NaN);
+        }
+        double mean = m[1] / m[0];
+        double variance = m[0] > 1 ? Math.max(0, (m[2] - m[1] * mean) / (m[0] - 1)) : 0;
+        return new Estimate(mean, Z95 * Math.sqrt(variance / m[0] * correction()));
+    }
+
+    @Override
+    public String toString() {
+        return "sample: " + this.size + " of " + this.population + " rows";
+    }
+
+    Sample<T> with(Cube<T> rows) {
+        return new Sample<>(rows, this.population, this.size);
+    }
+
+    /**
+     * Empty sample of a group missing in the sample.
+     * @return Sample.
+     */
+    Sample<T> empty() {
+        return with(new ListCube<>(Collections.emptyList()));
+    }
+
+    private Estimate count(long matched) {
+        if (this.size == 0) {
+            return new Estimate(0, 0);
+        }
+        if (matched == 0) {
+            // the normal bound is zero without matches, the rule of three gives the 95% upper bound instead.
+            return new Estimate(0, isExact() ? 0 : Math.min(1, 3.0 / this.size) * this.population);
+        }
+        double p = (double) matched / this.size;
+        return new Estimate(
+                this.population * p,
+                Z95 * this.population * Math.sqrt(p * (1 - p) / this.size * correction()));
+    }
+
+    /**
+     * Estimate a sum, data out of selections count as zero.
+     * @param m Count, sum and sum of squares of matched data.
+     * @return Estimate.
+     */
+    private Estimate sum(double[] m) {
+        if (this.size == 0) {
+            return new Estimate(0, 0);
+        }
+        double scale = (double) this.population / this.size;
+        double variance = this.size > 1 ? Math.max(0, (m[2] - m[1] * m[1] / this.size) / (this.size - 1)) : 0;
+        return new Estimate(
+                scale * m[1],
+                Z95 * this.population * Math.sqrt(variance / this.size * correction()));
+    }
+
+    /**
+     * Finite population correction, zero if the sample covers all data.
+     * @return Correction.
+     */
+    private double correction() {
+        return isExact() || this.population <= 1 ? 0 : (double) (this.population - this.size) / (this.population - 1);
+    }
+
+    private static <T> Collector<Data<T>, double[], double[]> moments(String numberTag) {
+        return Collector.of(
+                () -> new double[3],
+                (m, d) -> {
+                    if (d.hasNumber(numberTag)) {
+                        double x = d.getDouble(numberTag, 0);
+                        m[0]++;
+                        m[1] += x;
+                        m[2] += x * x;
+                    }
+                },
+                (a, b) -> {
+                    a[0] += b[0];
+                    a[1] += b[1];
+                    a[2] += b[2];
+                    return a;
+                });
+    }
+
+    /**
+     * Estimate with an error bound.
+     *
+     * @author Kyle K. Lin
+     *
+     */
+    public static final class Estimate {
+
+        private final double value;
+
+        private final double error;
+
+        Estimate(double value, double error) {
+            this.value = value;
+            this.error = error;
+        }
+
+        /**
+         * Get estimated value.
+         * @return Value.
+         */
+        public double getValue() {
+            return this.value;
+        }
+
+        /**
+         * Get half width of the 95% confidence interval.
+         * @return Error bound.
+         */
+        public double getError() {
+            return this.error;
+        }
+
+        /**
+         * Get lower bound of the 95% confidence interval.
+         * @return Lower bound.
+         */
+        public double getLow() {
+            return this.value - this.error;
+        }
+
+        /**
+         * Get upper bound of the 95% confidence interval.
+         * @return Upper bound.
+         */
+        public double getHigh() {
+            return this.value + this.error;
+        }
+
+        /**
+         * Test if a value is in the 95% confidence interval.
+         * @param value Value.
+         * @return True if in the interval.
+         */
+        public boolean contains(double value) {
+            return value >= getLow() && value <= getHigh();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%.2f +/- %.2f", this.value, this.error);
+        }
+    }
+}
@@ -0,0 +1,248 @@
+/*******************************************************************************
+ * Copyright 2019 UIA
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package uia.utils.cube;
+
+import java.util.Comparator;
+import java.util.DoubleSummaryStatistics;
+import java.util.List;
+import java.util.LongSummaryStatistics;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.function.DoublePredicate;
+import java.util.function.Function;
+import java.util.function.LongPredicate;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collector;
+import java.util.stream.Stream;
+
+/**
+ * Cube keeping a uniform random sample drawn when the cube is built.<br>
+ * Every method of Cube is exact and runs on the whole cube. Selections and cubes() apply to the sample as well,
+ * so sample() of a selected cube answers approximate queries about the selection.
+ *
+ * @author Kyle K. Lin
+ *
+ * @param <T> Type of value.
+ */
+public class SampledCube<T> implements Cube<T> {
+
+    private final Cube<T> cube;
+
+    private final Sample<T> sample;
+
+    SampledCube(Cube<T> cube, Sample<T> sample) {
+        this.cube = cube;
+        this.sample = sample;
+    }
+
+    Cube<T> cube() {
+        return this.cube;
+    }
+
+    @Override
+    public Sample<T> sample() {
+        return this.sample;
+    }
+
+    @Override
+    public String explain() {
+        return this.sample + "\n" + AbstractCube.indent(this.cube.explain());
+    }
+
+    @Override
+    public Map<String, Cube<T>> cubes(String tagName) {
+        final Map<String, Cube<T>> samples = this.sample.rows().cubes(tagName);
+        final TreeMap<String, Cube<T>> result = new TreeMap<>();
+        this.cube.cubes(tagName).forEach((k, v) -> result.put(k, new SampledCube<>(v, sample(samples.get(k)))));
+        return result;
+    }
+
+    @Override
+    public Map<List<String>, Cube<T>> cubes(String... tagNames) {
+        final Map<List<String>, Cube<T>> samples = this.sample.rows().cubes(tagNames);
+        final TreeMap<List<String>, Cube<T>> result = new TreeMap<>(AbstractCube.KEY_ORDER);
+        this.cube.cubes(tagNames).forEach((k, v) -> result.put(k, new SampledCube<>(v, sample(samples.get(k)))));
+        return result;
+    }
+
+    @Override
+    public Cube<T> select(Query query) {
+        return map(c -> c.select(query));
+    }
+
+    @Override
+    public Cube<T> select(Function<Data<T>, Boolean> function) {
+        return map(c -> c.select(function));
+    }
+
+    @Override
+    public Cube<T> select(String tagName, String tagValue) {
+        return map(c -> c.select(tagName, tagValue));
+    }
+
+    @Override
+    public Cube<T> selectIn(String tagName, String... tagValues) {
+        return map(c -> c.selectIn(tagName, tagValues));
+    }
+
+    @Override
+    public Cube<T> selectRange(String tagName, String fromValue, String toValue) {
+        return map(c -> c.selectRange(tagName, fromValue, toValue));
+    }
+
+    @Override
+    public Cube<T> selectPrefix(String tagName, String prefix) {
+        return map(c -> c.selectPrefix(tagName, prefix));
+    }
+
+    @Override
+    public Cube<T> selectLong(String numberTag, LongPredicate predicate) {
+        return map(c -> c.selectLong(numberTag, predicate));
+    }
+
+    @Override
+    public Cube<T> selectDouble(String numberTag, DoublePredicate predicate) {
+        return map(c -> c.selectDouble(numberTag, predicate));
+    }
+
+    @Override
+    public Cube<T> selectNot(String tagName, String tagValue) {
+        return map(c -> c.selectNot(tagName, tagValue));
+    }
+
+    @Override
+    public Stream<T> values() {
+        return this.cube.values();
+    }
+
+    @Override
+    public Map<String, List<T>> valuesMapping(String tagName) {
+        return this.cube.valuesMapping(tagName);
+    }
+
+    @Override
+    public <R> Map<String, List<R>> valuesMapping(String tagName, Function<T, R> f) {
+        return this.cube.valuesMapping(tagName, f);
+    }
+
+    @Override
+    public Map<List<String>, List<T>> valuesMapping(String... tagNames) {
+        return this.cube.valuesMapping(tagNames);
+    }
+
+    @Override
+    public <A, R> Map<String, R> valuesMapping(String tagName, Collector<? super T, A, R> collector) {
+        return this.cube.valuesMapping(tagName, collector);
+    }
+
+    @Override
+    public Map<String, Long> countMapping(String tagName) {
+        return this.cube.countMapping(tagName);
+    }
+
+    @Override
+    public Map<String, LongSummaryStatistics> longSummaryMapping(String tagName, ToLongFunction<? super T> f) {
+        return this.cube.longSummaryMapping(tagName, f);
+    }
+
+    @Override
+    public Map<String, DoubleSummaryStatistics> doubleSummaryMapping(String tagName, ToDoubleFunction<? super T> f) {
+        return this.cube.doubleSummaryMapping(tagName, f);
+    }
+
+    @Override
+    public SortedSet<String> distinct(String tagName) {
+        return this.cube.distinct(tagName);
+    }
+
+    @Override
+    public long approximateDistinct(String tagName) {
+        return this.cube.approximateDistinct(tagName);
+    }
+
+    @Override
+    public LongSummaryStatistics longSummary(String numberTag) {
+        return this.cube.longSummary(numberTag);
+    }
+
+    @Override
+    public DoubleSummaryStatistics doubleSummary(String numberTag) {
+        return this.cube.doubleSummary(numberTag);
+    }
+
+    @Override
+    public Map<String, LongSummaryStatistics> longSummaryMapping(String tagName, String numberTag) {
+        return this.cube.longSummaryMapping(tagName, numberTag);
+    }
+
+    @Override
+    public Map<String, DoubleSummaryStatistics> doubleSummaryMapping(String tagName, String numberTag) {
+        return this.cube.doubleSummaryMapping(tagName, numberTag);
+    }
+
+    @Override
+    public Pivot pivot(String rowTag, String columnTag) {
+        return this.cube.pivot(rowTag, columnTag);
+    }
+
+    @Override
+    public Pivot pivotLong(String rowTag, String columnTag, String numberTag) {
+        return this.cube.pivotLong(rowTag, columnTag, numberTag);
+    }
+
+    @Override
+    public Pivot pivotDouble(String rowTag, String columnTag, String numberTag) {
+        return this.cube.pivotDouble(rowTag, columnTag, numberTag);
+    }
+
+    @Override
+    public List<T> topK(int n, Comparator<? super T> comparator) {
+        return this.cube.topK(n, comparator);
+    }
+
+    @Override
+    public Map<String, List<T>> topKMapping(String tagName, int n, Comparator<? super T> comparator) {
+        return this.cube.topKMapping(tagName, n, comparator);
+    }
+
+    @Override
+    public T single() {
+        return this.cube.single();
+    }
+
+    @Override
+    public Map<String, T> singleMapping(String tagName) {
+        return this.cube.singleMapping(tagName);
+    }
+
+    @Override
+    public <R> Map<String, R> singleMapping(String tagName, Function<T, R> f) {
+        return this.cube.singleMapping(tagName, f);
+    }
+
+    private SampledCube<T> map(Function<Cube<T>, Cube<T>> f) {
+        return new SampledCube<>(f.apply(this.cube), this.sample.with(f.apply(this.sample.rows())));
+    }
+
+    private Sample<T> sample(Cube<T> rows) {
+        return rows != null ? this.sample.with(rows) : this.sample.empty();
+    }
+}
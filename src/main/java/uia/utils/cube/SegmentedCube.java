@@ -0,0 +1,240 @@
+/*******************************************************************************
+ * Copyright 2019 UIA
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package uia.utils.cube;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.DoubleSummaryStatistics;
+import java.util.HashMap;
+import java.util.List;
+import java.util.LongSummaryStatistics;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+import java.util.stream.Collector;
+import java.util.stream.Stream;
+
+/**
+ * Cube implementation over several segments.<br>
+ * A selection is applied to every segment, results of segments are merged. When grouping is parallel and the cube is
+ * large enough, terminal operations run on segments in parallel.
+ *
+ * @author Kyle K. Lin
+ *
+ * @param <T> Type of value.
+ */
+public class SegmentedCube<T> extends AbstractCube<T> {
+
+    private final List<AbstractCube<T>> segments;
+
+    SegmentedCube(List<AbstractCube<T>> segments, Grouping grouping) {
+        super(grouping);
+        this.segments = segments;
+    }
+
+    @Override
+    public T single() {
+        for (AbstractCube<T> segment : this.segments) {
+            T value = segment.single();
+            if (value != null) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public SortedSet<String> distinct(String tagName) {
+        final TreeSet<String> result = new TreeSet<>();
+        fanOut(s -> s.distinct(tagName)).forEach(result::addAll);
+        return result;
+    }
+
+    @Override
+    HyperLogLog sketch(String tagName) {
+        HyperLogLog result = new HyperLogLog();
+        fanOut(s -> s.sketch(tagName)).forEach(result::merge);
+        return result;
+    }
+
+    @Override
+    public List<T> topK(int n, Comparator<? super T> comparator) {
+        // segments keep their order, ties are broken by segment and then by order in the segment.
+        return fanOut(s -> s.topK(n, comparator)).stream()
+                .flatMap(List::stream)
+                .collect(TopK.collector(n, comparator));
+    }
+
+    @Override
+    public LongSummaryStatistics longSummary(String numberTag) {
+        LongSummaryStatistics result = new LongSummaryStatistics();
+        fanOut(s -> s.longSummary(numberTag)).forEach(result::combine);
+        return result;
+    }
+
+    @Override
+    public DoubleSummaryStatistics doubleSummary(String numberTag) {
+        DoubleSummaryStatistics result = new DoubleSummaryStatistics();
+        fanOut(s -> s.doubleSummary(numberTag)).forEach(result::combine);
+        return result;
+    }
+
+    @Override
+    <A, R> R collect(Collector<Data<T>, A, R> collector) {
+        final BinaryOperator<A> combiner = collector.combiner();
+        final Collector<Data<T>, A, A> partial = Collector.of(collector.supplier(), collector.accumulator(), combiner);
+        A acc = fanOut(s -> s.collect(partial)).stream().reduce(combiner).orElseGet(collector.supplier());
+        return collector.finisher().apply(acc);
+    }
+
+    @Override
+    <A, R> Map<String, R> dataMapping(String tagName, Collector<Data<T>, A, R> collector) {
+        final BinaryOperator<A> combiner = collector.combiner();
+        final HashMap<String, A> acc = new HashMap<>();
+        fanOut(s -> Grouping.accumulate(s.data(), d -> d.getTag(tagName), collector))
+                .forEach(part -> part.forEach((k, a) -> acc.merge(k, a, combiner)));
+        return Grouping.finish(acc, null, collector);
+    }
+
+    @Override
+    public Cube<T> select(String tagName, String tagValue) {
+        return map(s -> s.select(tagName, tagValue));
+    }
+
+    @Override
+    public Cube<T> selectIn(String tagName, String... tagValues) {
+        return map(s -> s.selectIn(tagName, tagValues));
+    }
+
+    @Override
+    public Cube<T> selectRange(String tagName, String fromValue, String toValue) {
+        return map(s -> s.selectRange(tagName, fromValue, toValue));
+    }
+
+    @Override
+    public Cube<T> selectPrefix(String tagName, String prefix) {
+        return map(s -> s.selectPrefix(tagName, prefix));
+    }
+
+    @Override
+    public Cube<T> selectNot(String tagName, String tagValue) {
+        return map(s -> s.selectNot(tagName, tagValue));
+    }
+
+    @Override
+    public Cube<T> select(Query query) {
+        return map(s -> s.select(query));
+    }
+
+    @Override
+    public Cube<T> select(Function<Data<T>, Boolean> function) {
+        return map(s -> s.select(function));
+    }
+
+    @Override
+    public Map<String, Cube<T>> cubes(String tagName) {
+        final TreeMap<String, List<AbstractCube<T>>> raw = new TreeMap<>();
+        for (Map<String, Cube<T>> part : fanOut(s -> s.cubes(tagName))) {
+            part.forEach((k, v) -> raw.computeIfAbsent(k, x -> new ArrayList<>()).add((AbstractCube<T>) v));
+        }
+        final TreeMap<String, Cube<T>> result = new TreeMap<>();
+        raw.forEach((k, v) -> result.put(k, of(v)));
+        return result;
+    }
+
+    @Override
+    public Map<List<String>, Cube<T>> cubes(String... tagNames) {
+        final TreeMap<List<String>, List<AbstractCube<T>>> raw = new TreeMap<>(KEY_ORDER);
+        for (Map<List<String>, Cube<T>> part : fanOut(s -> s.cubes(tagNames))) {
+            part.forEach((k, v) -> raw.computeIfAbsent(k, x -> new ArrayList<>()).add((AbstractCube<T>) v));
+        }
+        final TreeMap<List<String>, Cube<T>> result = new TreeMap<>(KEY_ORDER);
+        raw.forEach((k, v) -> result.put(k, of(v)));
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> countMapping(String tagName) {
+        final TreeMap<String, Long> result = new TreeMap<>();
+        for (Map<String, Long> part : fanOut(s -> s.countMapping(tagName))) {
+            part.forEach((k, v) -> result.merge(k, v, Long::sum));
+        }
+        return result;
+    }
+
+    @Override
+    Stream<Data<T>> data() {
+        return this.segments.stream().flatMap(AbstractCube::data);
+    }
+
+    @Override
+    long scanned() {
+        return this.segments.stream().mapToLong(AbstractCube::scanned).sum();
+    }
+
+    @Override
+    public String explain() {
+        StringBuilder result = new StringBuilder("segments: " + this.segments.size());
+        for (AbstractCube<T> segment : this.segments) {
+            result.append("\n").append(indent(segment.explain()));
+        }
+        return result.toString();
+    }
+
+    /**
+     * Get segments.
+     * @return Segments.
+     */
+    List<AbstractCube<T>> segments() {
+        return this.segments;
+    }
+
+    /**
+     * Apply a function to every segment, in parallel on the pool of grouping when the cube is large enough.
+     * @param f The function.
+     * @param <R> Type of result.
+     * @return Results in order of segments.
+     */
+    <R> List<R> fanOut(Function<AbstractCube<T>, R> f) {
+        if (this.segments.size() > 1 && this.grouping.accept((int) Math.min(Integer.MAX_VALUE, scanned()))) {
+            return this.grouping.fanOut(this.segments, f);
+        }
+        ArrayList<R> result = new ArrayList<>(this.segments.size());
+        for (AbstractCube<T> segment : this.segments) {
+            result.add(f.apply(segment));
+        }
+        return result;
+    }
+
+    private SegmentedCube<T> map(Function<AbstractCube<T>, Cube<T>> f) {
+        ArrayList<AbstractCube<T>> result = new ArrayList<>(this.segments.size());
+        for (AbstractCube<T> segment : this.segments) {
+            result.add((AbstractCube<T>) f.apply(segment));
+        }
+        return new SegmentedCube<>(Collections.unmodifiableList(result), this.grouping);
+    }
+
+    private AbstractCube<T> of(List<AbstractCube<T>> segments) {
+        return segments.size() == 1 ? segments.get(0) : new SegmentedCube<>(Collections.unmodifiableList(segments), this.grouping);
+    }
+}
@@ -20,88 +20,114 @@ package uia.utils.cube;
 
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
 import java.util.TreeMap;
 import java.util.function.Function;
-import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+import uia.utils.cube.QueryPlan.Step;
+
 /**
- * Cube implementation.
+ * Cube implementation.<br>
+ * The cube is a lazy and immutable query plan over rows of source data, every terminal method executes the plan again.
+ * Cubes of cubes() are views over selected rows of the same source.
  *
  * @author Kyle K. Lin
  *
  * @param <T> Type of value.
  */
-public class StreamCube<T> implements Cube<T> {
+public class StreamCube<T> extends AbstractCube<T> {
+
+    private final List<Data<T>> source;
+
+    /**
+     * Ascending row ids of the source. Null means all rows.
+     */
+    private final int[] rows;
+
+    private final List<Data<T>> data;
+
+    private final QueryPlan<T> plan;
+
+    StreamCube(List<Data<T>> source, int[] rows, QueryPlan<T> plan, Grouping grouping) {
+        super(grouping);
+        this.source = source;
+        this.rows = rows;
+        this.data = rows == null ? source : new RowList<>(source, rows);
+        this.plan = plan;
+    }
 
-    private final Stream<Data<T>> data;
+    @Override
+    public Cube<T> select(String tagName, String tagValue) {
+        return and(Step.eq(tagName, tagValue));
+    }
+
+    @Override
+    public Cube<T> selectIn(String tagName, String... tagValues) {
+        return and(Step.in(tagName, tagValues));
+    }
 
-    StreamCube(Stream<Data<T>> data) {
-        this.data = data;
+    @Override
+    public Cube<T> selectRange(String tagName, String fromValue, String toValue) {
+        return and(Step.range(tagName, fromValue, toValue));
     }
 
     @Override
-    public T single() {
-        Optional<Data<T>> opt = this.data.findFirst();
-        return opt.isPresent() ? opt.get().value : null;
+    public Cube<T> selectPrefix(String tagName, String prefix) {
+        return and(Step.prefix(tagName, prefix));
     }
 
     @Override
-    public Stream<T> values() {
-        return this.data.map(t -> t.value);
+    public Cube<T> selectNot(String tagName, String tagValue) {
+        return and(Step.not(tagName, tagValue));
     }
 
     @Override
-    public Map<String, List<T>> valuesMapping(final String tagName) {
-        return this.data.collect(
-                Collectors.groupingBy(
-                        d -> d.getTag(tagName),
-                        Collectors.mapping(v -> v.value, Collectors.toList())));
+    public Cube<T> select(Query query) {
+        return and(Step.of(query));
     }
 
     @Override
-    public <R> Map<String, List<R>> valuesMapping(String tagName, Function<T, R> f) {
-        return this.data.collect(
-                Collectors.groupingBy(
-                        d -> d.getTag(tagName),
-                        Collectors.mapping(v -> f.apply(v.value), Collectors.toList())));
+    public Cube<T> select(Function<Data<T>, Boolean> function) {
+        return and(Step.of(function));
     }
 
     @Override
-    public Map<String, T> singleMapping(final String tagName) {
-        TreeMap<String, T> result = new TreeMap<>();
-        valuesMapping(tagName).forEach((k, v) -> result.put(k, v.get(0)));
+    public Map<String, Cube<T>> cubes(String tagName) {
+        final TreeMap<String, Cube<T>> result = new TreeMap<>();
+        this.grouping.groupRows(this.source, this.plan.rows(this.source, this.rows), d -> d.getTag(tagName), null)
+                .forEach((k, v) -> result.put(k, new ListCube<T>(this.source, v, this.grouping)));
         return result;
     }
 
     @Override
-    public <R> Map<String, R> singleMapping(String tagName, Function<T, R> f) {
-        TreeMap<String, R> result = new TreeMap<>();
-        valuesMapping(tagName).forEach((k, v) -> result.put(k, f.apply(v.get(0))));
+    public Map<List<String>, Cube<T>> cubes(String... tagNames) {
+        final TreeMap<List<String>, Cube<T>> result = new TreeMap<>(KEY_ORDER);
+        this.grouping.groupRows(this.source, this.plan.rows(this.source, this.rows), key(tagNames), KEY_ORDER)
+                .forEach((k, v) -> result.put(k, new ListCube<T>(this.source, v, this.grouping)));
         return result;
     }
 
     @Override
-    public Cube<T> select(String tagName, String tagValue) {
-        return new StreamCube<T>(this.data.filter(d -> tagValue.equals(d.getTag(tagName))));
+    public String toString() {
+        return this.plan.toString();
     }
 
     @Override
-    public Cube<T> selectNot(String tagName, String tagValue) {
-        return new StreamCube<T>(this.data.filter(d -> !tagValue.equals(d.getTag(tagName))));
+    Stream<Data<T>> data() {
+        return this.plan.execute(this.data);
     }
 
     @Override
-    public Cube<T> select(Function<Data<T>, Boolean> function) {
-        return new StreamCube<>(this.data.filter(function::apply));
+    long scanned() {
+        return this.data.size();
     }
 
     @Override
-    public Map<String, Cube<T>> cubes(String tagName) {
-        final TreeMap<String, Cube<T>> result = new TreeMap<>();
-        Map<String, List<Data<T>>> raw = this.data.collect(Collectors.groupingBy(d -> d.getTag(tagName)));
-        raw.forEach((k, v) -> result.put(k, new ListCube<T>(v)));
-        return result;
+    public String explain() {
+        return "scan: " + this.data.size() + " rows, filter: " + this.plan;
+    }
+
+    private StreamCube<T> and(Step<T> step) {
+        return new StreamCube<>(this.source, this.rows, this.plan.and(step), this.grouping);
     }
 }
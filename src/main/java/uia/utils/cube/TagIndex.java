@@ -0,0 +1,203 @@
+/*******************************************************************************
+ * Copyright 2019 UIA
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package uia.utils.cube;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import uia.utils.cube.Cube.Data;
+
+/**
+ * Inverted index of tags. Every tag value keeps a posting of row ids which own the value.
+ *
+ * @author Kyle K. Lin
+ *
+ */
+final class TagIndex {
+
+    private final int rowCount;
+
+    private final Map<String, TreeMap<String, RowSet>> postings;
+
+    private TagIndex(int rowCount, Map<String, TreeMap<String, RowSet>> postings) {
+        this.rowCount = rowCount;
+        this.postings = postings;
+    }
+
+    /**
+     * Build the index of data.
+     * @param data Data.
+     * @param <T> Type of value.
+     * @return Index.
+     */
+    static <T> TagIndex build(List<Data<T>> data) {
+        final HashMap<String, HashMap<String, RowSet.Builder>> raw = new HashMap<>();
+        final int rowCount = data.size();
+        for (int row = 0; row < rowCount; row++) {
+            final int id = row;
+            data.get(row).forEachTag((n, v) -> raw
+                    .computeIfAbsent(n, k -> new HashMap<>())
+                    .computeIfAbsent(v, k -> new RowSet.Builder())
+                    .add(id));
+        }
+
+        HashMap<String, TreeMap<String, RowSet>> postings = new HashMap<>();
+        raw.forEach((n, values) -> {
+            TreeMap<String, RowSet> sets = new TreeMap<>();
+            values.forEach((v, p) -> sets.put(v, p.build()));
+            postings.put(n, sets);
+        });
+        return new TagIndex(rowCount, postings);
+    }
+
+    /**
+     * Append the index of following rows. Postings of the next index are shifted and joined, data are not read again.
+     * @param next Index of rows following the rows of this index.
+     * @return Index.
+     */
+    TagIndex append(TagIndex next) {
+        HashMap<String, TreeMap<String, RowSet>> postings = new HashMap<>();
+        this.postings.forEach((n, values) -> postings.put(n, new TreeMap<>(values)));
+        next.postings.forEach((n, values) -> {
+            TreeMap<String, RowSet> merged = postings.computeIfAbsent(n, k -> new TreeMap<>());
+            values.forEach((v, p) -> merged.merge(v, p.shift(this.rowCount), RowSet::or));
+        });
+        return new TagIndex(this.rowCount + next.rowCount, postings);
+    }
+
+    /**
+     * Get number of indexed rows.
+     * @return Row count.
+     */
+    int rowCount() {
+        return this.rowCount;
+    }
+
+    /**
+     * Get rows owning specific tag value.
+     * @param tagName Tag name.
+     * @param tagValue Tag value. Null means rows without the tag.
+     * @return Rows.
+     */
+    RowSet get(String tagName, String tagValue) {
+        TreeMap<String, RowSet> values = this.postings.get(tagName);
+        if (tagValue == null) {
+            RowSet all = RowSet.range(this.rowCount);
+            return values == null ? all : all.andNot(union(values.values()));
+        }
+        if (values == null) {
+            return RowSet.EMPTY;
+        }
+        RowSet rows = values.get(tagValue);
+        return rows == null ? RowSet.EMPTY : rows;
+    }
+
+    /**
+     * Get rows owning one of tag values.
+     * @param tagName Tag name.
+     * @param tagValues Tag values.
+     * @return Rows.
+     */
+    RowSet in(String tagName, Collection<String> tagValues) {
+        ArrayList<RowSet> matched = new ArrayList<>(tagValues.size());
+        for (String tagValue : tagValues) {
+            matched.add(get(tagName, tagValue));
+        }
+        return union(matched);
+    }
+
+    /**
+     * Get rows owning a tag value in a range.
+     * @param tagName Tag name.
+     * @param fromValue Lower bound, inclusive. Null means unbounded.
+     * @param toValue Upper bound, exclusive. Null means unbounded.
+     * @return Rows.
+     */
+    RowSet range(String tagName, String fromValue, String toValue) {
+        TreeMap<String, RowSet> values = this.postings.get(tagName);
+        if (values == null || fromValue != null && toValue != null && fromValue.compareTo(toValue) >= 0) {
+            return RowSet.EMPTY;
+        }
+        NavigableMap<String, RowSet> sub = values;
+        if (fromValue != null) {
+            sub = sub.tailMap(fromValue, true);
+        }
+        if (toValue != null) {
+            sub = sub.headMap(toValue, false);
+        }
+        return union(sub.values());
+    }
+
+    /**
+     * Get rows owning a tag value starting with a prefix.
+     * @param tagName Tag name.
+     * @param prefix Prefix.
+     * @return Rows.
+     */
+    RowSet prefix(String tagName, String prefix) {
+        TreeMap<String, RowSet> values = this.postings.get(tagName);
+        if (values == null) {
+            return RowSet.EMPTY;
+        }
+        ArrayList<RowSet> matched = new ArrayList<>();
+        for (Map.Entry<String, RowSet> e : values.tailMap(prefix, true).entrySet()) {
+            if (!e.getKey().startsWith(prefix)) {
+                break;
+            }
+            matched.add(e.getValue());
+        }
+        return union(matched);
+    }
+
+    /**
+     * Get postings of a tag ordered by tag value.
+     * @param tagName Tag name.
+     * @return Postings.
+     */
+    Map<String, RowSet> postings(String tagName) {
+        TreeMap<String, RowSet> values = this.postings.get(tagName);
+        return values == null ? Collections.emptyMap() : Collections.unmodifiableMap(values);
+    }
+
+    /**
+     * Union postings, merged pairwise so every row is copied log(n) times only.
+     * @param sets Postings.
+     * @return Rows.
+     */
+    private static RowSet union(Collection<RowSet> sets) {
+        ArrayList<RowSet> level = new ArrayList<>(sets);
+        if (level.isEmpty()) {
+            return RowSet.EMPTY;
+        }
+        while (level.size() > 1) {
+            ArrayList<RowSet> next = new ArrayList<>((level.size() + 1) / 2);
+            for (int i = 0; i < level.size(); i += 2) {
+                next.add(i + 1 < level.size() ? level.get(i).or(level.get(i + 1)) : level.get(i));
+            }
+            level = next;
+        }
+        return level.get(0);
+    }
+}
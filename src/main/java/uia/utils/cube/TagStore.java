@@ -0,0 +1,53 @@
+/*******************************************************************************
+ * Copyright 2019 UIA
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package uia.utils.cube;
+
+import java.util.function.BiConsumer;
+
+/**
+ * Storage of tags shared by many data, a data keeps only its row id in the store.
+ *
+ * @author Kyle K. Lin
+ *
+ */
+interface TagStore {
+
+    /**
+     * Get tag value of a row.
+     * @param row Row id.
+     * @param tagName Tag name.
+     * @return Tag value or null if the row has no such tag.
+     */
+    String get(int row, String tagName);
+
+    /**
+     * Set tag value of a row.
+     * @param row Row id.
+     * @param tagName Tag name.
+     * @param tagValue Tag value.
+     */
+    void set(int row, String tagName, String tagValue);
+
+    /**
+     * Iterate tags of a row ordered by tag name.
+     * @param row Row id.
+     * @param consumer Consumer of tag name and tag value.
+     */
+    void forEach(int row, BiConsumer<String, String> consumer);
+}
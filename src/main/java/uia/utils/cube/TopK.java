@@ -0,0 +1,118 @@
+/*******************************************************************************
+ * Copyright 2019 UIA
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package uia.utils.cube;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.stream.Collector;
+
+/**
+ * Accumulator keeping the first n values in an order with a bounded heap.<br>
+ * The result equals to sorted(comparator).limit(n) of all accumulated values, equal values keep their arrival order.
+ *
+ * @author Kyle K. Lin
+ *
+ * @param <T> Type of value.
+ */
+final class TopK<T> {
+
+    private final int n;
+
+    private final Comparator<Entry<T>> order;
+
+    /**
+     * Heap whose head is the last kept value.
+     */
+    private final PriorityQueue<Entry<T>> heap;
+
+    private long count;
+
+    private TopK(int n, Comparator<? super T> comparator) {
+        this.n = n;
+        this.order = Comparator.<Entry<T>, T> comparing(e -> e.value, comparator).thenComparingLong(e -> e.seq);
+        this.heap = new PriorityQueue<>(Math.max(1, Math.min(n, 1024)), this.order.reversed());
+    }
+
+    /**
+     * Create a collector keeping the first n values.
+     * @param n Number of values.
+     * @param comparator Order of values.
+     * @param <T> Type of value.
+     * @return Collector.
+     */
+    static <T> Collector<T, TopK<T>, List<T>> collector(int n, Comparator<? super T> comparator) {
+        if (n < 0) {
+            throw new IllegalArgumentException("n must not be negative: " + n);
+        }
+        return Collector.of(
+                () -> new TopK<>(n, comparator),
+                TopK::add,
+                TopK::merge,
+                TopK::toList);
+    }
+
+    void add(T value) {
+        offer(new Entry<>(value, this.count++));
+    }
+
+    /**
+     * Merge values accumulated after values of this one.
+     * @param next Next accumulator.
+     * @return This.
+     */
+    TopK<T> merge(TopK<T> next) {
+        for (Entry<T> e : next.heap) {
+            offer(new Entry<>(e.value, this.count + e.seq));
+        }
+        this.count += next.count;
+        return this;
+    }
+
+    List<T> toList() {
+        ArrayList<Entry<T>> entries = new ArrayList<>(this.heap);
+        entries.sort(this.order);
+        ArrayList<T> result = new ArrayList<>(entries.size());
+        entries.forEach(e -> result.add(e.value));
+        return result;
+    }
+
+    private void offer(Entry<T> e) {
+        if (this.heap.size() < this.n) {
+            this.heap.add(e);
+        }
+        else if (this.n > 0 && this.order.compare(e, this.heap.peek()) < 0) {
+            this.heap.poll();
+            this.heap.add(e);
+        }
+    }
+
+    private static class Entry<T> {
+
+        private final T value;
+
+        private final long seq;
+
+        Entry(T value, long seq) {
+            this.value = value;
+            this.seq = seq;
+        }
+    }
+}
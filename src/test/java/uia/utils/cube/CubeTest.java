@@ -18,7 +18,25 @@
  *******************************************************************************/
 package uia.utils.cube;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.DoubleSummaryStatistics;
+import java.util.List;
+import java.util.LongSummaryStatistics;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -80,6 +98,11 @@ public class CubeTest {
         Assert.assertTrue(m1.containsKey("Sales"));
         Assert.assertTrue(m1.containsKey("Engineer"));
         Assert.assertFalse(m1.containsKey("Student"));
+
+        // data put after building are not part of the cube.
+        b.put("Ivy Wang").addTag("lastName", "Wang");
+        Assert.assertEquals(6, c.values().count());
+        Assert.assertEquals(7, b.build().values().count());
     }
 
     @Test
@@ -106,4 +129,1289 @@ public class CubeTest {
         Assert.assertEquals(0, c2.select("Sex", "F").values().count());
         Assert.assertEquals(0, c2.select("Sex", "F").valuesMapping("lastName").size());
     }
+
+    @Test
+    public void testIndexed() {
+        Cube<String> c = sample(new CubeBuilder<String>().indexed(true));
+        Assert.assertTrue(c instanceof IndexedCube);
+
+        Assert.assertEquals(6, c.values().count());
+        Assert.assertEquals("Kan Lin", c.single());
+        Assert.assertEquals(4, c.select("Sex", "F").values().count());
+        Assert.assertEquals(4, c.selectNot("Job", "Student").values().count());
+        Assert.assertEquals(2, c.select("Sex", "F").selectNot("Job", "Student").values().count());
+        Assert.assertEquals(2, c.select("lastName", "Lin").select("Job", "Student").values().count());
+        Assert.assertEquals(0, c.select("lastName", "Lin").select("Job", "Sales").values().count());
+        Assert.assertEquals(0, c.select("Sex", "X").values().count());
+        Assert.assertEquals(0, c.select("Unknown", "X").values().count());
+        Assert.assertEquals(6, c.selectNot("Unknown", "X").values().count());
+        Assert.assertEquals("Cathy Tsai", c.select("Sex", "F").select("Job", "Sales").single());
+        Assert.assertNull(c.select("Sex", "X").single());
+        Assert.assertEquals(1, c.select("lastName", "Lin").select(d -> d.value.contains("Kan")).values().count());
+
+        Map<String, Cube<String>> cubes = c.select("lastName", "Lin").cubes("Job");
+        Assert.assertEquals(3, cubes.size());
+        Assert.assertEquals(2, cubes.get("Student").values().count());
+        Assert.assertEquals(0, cubes.get("Student").selectNot("lastName", "Lin").values().count());
+
+        Map<String, String> m1 = c.select("Sex", "F").selectNot("Job", "Student").singleMapping("Job");
+        Assert.assertEquals(2, m1.size());
+        Assert.assertEquals("Cathy Tsai", m1.get("Sales"));
+        Assert.assertEquals(3, c.valuesMapping("lastName").size());
+
+        Cube<String> empty = new CubeBuilder<String>().indexed(true).build();
+        Assert.assertNull(empty.single());
+        Assert.assertEquals(0, empty.select("Sex", "F").values().count());
+        Assert.assertEquals(0, empty.cubes("Sex").size());
+    }
+
+    @Test
+    public void testColumnar() throws Exception {
+        CubeBuilder<String> b = new CubeBuilder<String>().columnar(true);
+        Cube<String> c = sample(b);
+
+        Assert.assertEquals(6, c.values().count());
+        Assert.assertEquals(4, c.select("Sex", "F").values().count());
+        Assert.assertEquals(2, c.select("Sex", "F").selectNot("Job", "Student").values().count());
+        Assert.assertEquals(3, c.valuesMapping("lastName").size());
+        Assert.assertEquals(3, c.select("lastName", "Lin").cubes("Job").size());
+        Assert.assertEquals(1, c.select(d -> d.getTag("Unknown") == null && "Sales".equals(d.getTag("Job"))).values().count());
+
+        Cube.Data<String> d = b.put("Ivy Wang")
+                .addTag("lastName", "Wang")
+                .addTag("Hobby", "Golf");
+        Assert.assertEquals("Wang", d.getTag("lastName"));
+        Assert.assertEquals("Golf", d.getTag("Hobby"));
+        Assert.assertNull(d.getTag("Sex"));
+
+        Cube<String> c2 = b.indexed(true).build();
+        Assert.assertEquals(7, c2.values().count());
+        Assert.assertEquals("Ivy Wang", c2.select("Hobby", "Golf").single());
+
+        // data put after building go to new columns, readers of a built cube never see them being written.
+        Thread writer = new Thread(() -> {
+            for (int i = 0; i < 10000; i++) {
+                b.put("W" + i).addTag("lastName", "W" + i).addTag("T" + i % 100, "V");
+            }
+        });
+        writer.start();
+        while (writer.isAlive()) {
+            Assert.assertEquals(4, c2.countMapping("lastName").size());
+            Assert.assertEquals("Golf", c2.select("Hobby", "Golf").cubes("Hobby").keySet().iterator().next());
+        }
+        writer.join();
+        Assert.assertEquals(7, c2.values().count());
+        Cube<String> c4 = b.build();
+        Assert.assertEquals(10007, c4.values().count());
+        Assert.assertEquals("W9999", c4.select("lastName", "W9999").single());
+        Assert.assertEquals(100, c4.select("T7", "V").values().count());
+        Assert.assertEquals("Ivy Wang", c4.select("Hobby", "Golf").single());
+
+        // rows put before switching to columnar are moved into columns at build time.
+        CubeBuilder<String> b3 = new CubeBuilder<String>();
+        b3.put("Kan Lin").addTag("Sex", "M");
+        Cube<String> c3 = b3.columnar(true).build();
+        Assert.assertEquals("Kan Lin", c3.select("Sex", "M").single());
+    }
+
+    @Test
+    public void testSelectIn() {
+        Cube<String> c1 = sample(new CubeBuilder<String>());
+        Cube<String> c2 = sample(new CubeBuilder<String>().indexed(true));
+        for (Cube<String> c : new Cube[] { c1, c2 }) {
+            Assert.assertEquals(3, c.selectIn("Job", "Student", "Sales").values().count());
+            Assert.assertEquals(1, c.select("lastName", "Lin").selectIn("Job", "Engineer", "Sales").values().count());
+            Assert.assertEquals(2, c.selectIn("Job", "Student", "Sales").selectNot("lastName", "Tsai").values().count());
+            Assert.assertEquals(0, c.selectIn("Job").values().count());
+            Assert.assertEquals(2, c.selectIn("Job", "Student", "Sales").select(d -> d.value.contains("Lin")).values().count());
+        }
+    }
+
+    @Test
+    public void testSelectRange() throws Exception {
+        CubeBuilder<String> b1 = new CubeBuilder<String>();
+        CubeBuilder<String> b2 = new CubeBuilder<String>().indexed(true);
+        CubeBuilder<String> b3 = new CubeBuilder<String>().columnar(true);
+        for (CubeBuilder<String> b : Arrays.asList(b1, b2, b3)) {
+            for (int i = 0; i < 30; i++) {
+                Cube.Data<String> d = b.put("" + i).addTag("date", String.format("2019-10-%02d", i + 1)).addTag("lot", (i % 3 == 0 ? "A12" : "B07") + i);
+                if (i % 5 == 0) {
+                    d.addTag("hold", "Y");
+                }
+            }
+        }
+
+        Path file = Files.createTempFile("cube", ".bin");
+        try {
+            CubeFile.write(b1.build(), file, ValueCodec.UTF8);
+            for (Cube<String> c : Arrays.asList(b1.build(), b2.build(), b3.build(), CubeFile.load(file, ValueCodec.UTF8))) {
+                Assert.assertEquals(7, c.selectRange("date", "2019-10-10", "2019-10-17").values().count());
+                Assert.assertEquals("9", c.selectRange("date", "2019-10-10", "2019-10-17").values().findFirst().get());
+                Assert.assertEquals(5, c.selectRange("date", "2019-10-26", null).values().count());
+                Assert.assertEquals(30, c.selectRange("date", null, null).values().count());
+                Assert.assertEquals(0, c.selectRange("date", "2019-11", "2019-12").values().count());
+                Assert.assertEquals(10, c.selectPrefix("lot", "A12").values().count());
+                Assert.assertEquals(4, c.selectPrefix("lot", "A12").selectRange("date", null, "2019-10-11").values().count());
+                Assert.assertEquals(0, c.selectPrefix("unknown", "A").values().count());
+                Assert.assertEquals(0, c.selectRange("date", "2019-10-17", "2019-10-10").values().count());
+                Assert.assertEquals(0, c.selectRange("date", "2019-10-10", "2019-10-10").values().count());
+                Assert.assertEquals(0, c.select(Query.range("date", "2019-10-17", "2019-10-10")).values().count());
+                // null tag value matches rows without the tag on every backend.
+                Assert.assertEquals(24, c.select("hold", null).values().count());
+                Assert.assertEquals(24, c.select(Query.eq("hold", null)).values().count());
+                Assert.assertEquals(6, c.selectNot("hold", null).values().count());
+                Assert.assertEquals(30, c.selectIn("hold", "Y", null).values().count());
+                Assert.assertEquals(4, c.selectRange("date", null, "2019-10-06").select("hold", null).values().count());
+                Assert.assertEquals(30, c.select("unknown", null).values().count());
+                Assert.assertEquals(0, c.selectNot("unknown", null).values().count());
+            }
+        }
+        finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void testNumberTags() throws Exception {
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            CubeBuilder<String> b1 = new CubeBuilder<String>();
+            CubeBuilder<String> b2 = new CubeBuilder<String>().columnar(true).indexed(true);
+            CubeBuilder<String> b3 = new CubeBuilder<String>().parallel(1, pool);
+            for (CubeBuilder<String> b : Arrays.asList(b1, b2, b3)) {
+                for (int i = 0; i < 100; i++) {
+                    Cube.Data<String> d = b.put("W" + i).addTag("lot", "L" + i % 4).addTag("time", 1571000000000L + i * 1000L);
+                    if (i % 2 == 0) {
+                        d.addTag("yield", i / 100.0);
+                    }
+                }
+            }
+            b1.put("X").addTag("lot", "L0");
+
+            Path file = Files.createTempFile("cube", ".bin");
+            try {
+                CubeFile.write(b1.build(), file, ValueCodec.UTF8);
+                for (Cube<String> c : Arrays.asList(b1.build(), b2.build(), b3.build(), CubeFile.load(file, ValueCodec.UTF8))) {
+                    Assert.assertEquals(10, c.selectLong("time", t -> t >= 1571000090000L).values().count());
+                    Assert.assertEquals(5, c.select("lot", "L0").selectDouble("yield", y -> y < 0.2).values().count());
+                    Assert.assertEquals(25, c.selectDouble("time", t -> t < 1571000025000.0).values().count());
+                    Assert.assertEquals(0, c.select(d -> d.getTag("time") != null).values().count());
+
+                    LongSummaryStatistics time = c.longSummary("time");
+                    Assert.assertEquals(100, time.getCount());
+                    Assert.assertEquals(1571000099000L, time.getMax());
+                    Assert.assertEquals(0.49, c.doubleSummary("yield").getAverage(), 0.0001);
+                    Assert.assertEquals(0, c.longSummary("unknown").getCount());
+
+                    Map<String, DoubleSummaryStatistics> yields = c.doubleSummaryMapping("lot", "yield");
+                    Assert.assertEquals(4, yields.size());
+                    Assert.assertEquals(25, yields.get("L0").getCount());
+                    Assert.assertEquals(0, yields.get("L1").getCount());
+                    Assert.assertEquals(25, c.longSummaryMapping("lot", "time").get("L3").getCount());
+                }
+
+                // summaries, counts and pivots of a mapped cube read tags only.
+                AtomicInteger decoded = new AtomicInteger();
+                Cube<String> c = CubeFile.load(file, new ValueCodec<String>() {
+
+                    @Override
+                    public byte[] encode(String value) {
+                        return ValueCodec.UTF8.encode(value);
+                    }
+
+                    @Override
+                    public String decode(ByteBuffer buffer) {
+                        decoded.incrementAndGet();
+                        return ValueCodec.UTF8.decode(buffer);
+                    }
+                });
+                Assert.assertEquals(100, c.longSummary("time").getCount());
+                Assert.assertEquals(25, c.doubleSummaryMapping("lot", "yield").get("L0").getCount());
+                Assert.assertEquals(Long.valueOf(26), c.countMapping("lot").get("L0"));
+                Assert.assertEquals(101, c.pivot("lot", "lot").getCount());
+                Assert.assertEquals(0, decoded.get());
+                Assert.assertEquals("X", c.select("lot", "L0").topK(1, Comparator.reverseOrder()).get(0));
+                Assert.assertEquals(26, decoded.get());
+            }
+            finally {
+                Files.deleteIfExists(file);
+            }
+
+            Cube.Data<String> d = new CubeBuilder<String>().put("A").addTag("count", 3).addTag("ratio", 0.5);
+            Assert.assertTrue(d.hasNumber("count"));
+            Assert.assertEquals(3, d.getLong("count", -1));
+            Assert.assertEquals(3.0, d.getDouble("count", -1), 0);
+            Assert.assertEquals(-1, d.getLong("unknown", -1));
+            try {
+                d.getLong("ratio", 0);
+                Assert.fail();
+            }
+            catch (IllegalArgumentException ex) {
+            }
+
+            // a double value makes a long tag a double tag of all data.
+            CubeBuilder<String> b4 = new CubeBuilder<String>();
+            Cube.Data<String> d1 = b4.put("A").addTag("weight", 3);
+            b4.put("B").addTag("weight", 0.5);
+            Cube<String> c4 = b4.build();
+            Assert.assertEquals(3.5, c4.doubleSummary("weight").getSum(), 0);
+            Assert.assertEquals(3.0, d1.getDouble("weight", -1), 0);
+            try {
+                c4.longSummary("weight");
+                Assert.fail();
+            }
+            catch (IllegalArgumentException ex) {
+            }
+
+            // a double value put after building does not change tags of the built cube.
+            CubeBuilder<String> b5 = new CubeBuilder<String>();
+            b5.put("A").addTag("n", 1);
+            b5.put("B").addTag("n", 2);
+            Cube<String> c5 = b5.build();
+            b5.put("z").addTag("n", 1.5d);
+            Assert.assertEquals(3, c5.longSummary("n").getSum());
+            Assert.assertEquals(2, c5.selectLong("n", n -> n > 0).values().count());
+            Cube<String> c6 = b5.build();
+            Assert.assertEquals(4.5, c6.doubleSummary("n").getSum(), 0);
+            Assert.assertEquals(3, c5.longSummary("n").getSum());
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testDistinct() throws Exception {
+        Path file = Files.createTempFile("cube", ".bin");
+        try {
+            CubeFile.write(sample(new CubeBuilder<String>()), file, ValueCodec.UTF8);
+            AppendableCube<String> appendable = new AppendableCube<>();
+            appendable.put("Kan Lin").addTag("lastName", "Lin").addTag("Job", "Engineer");
+            appendable.commit();
+            appendable.put("Cathy Tsai").addTag("lastName", "Tsai").addTag("Job", "Sales");
+            appendable.put("Mia").addTag("Job", "Sales");
+            appendable.commit();
+
+            for (Cube<String> c : Arrays.asList(
+                    sample(new CubeBuilder<String>()),
+                    sample(new CubeBuilder<String>().indexed(true)),
+                    sample(new CubeBuilder<String>().cached(10)),
+                    CubeFile.load(file, ValueCodec.UTF8))) {
+                Assert.assertEquals(Arrays.asList("Chang", "Lin", "Tsai"), new ArrayList<>(c.distinct("lastName")));
+                Assert.assertEquals(Arrays.asList("Engineer", "Student"), new ArrayList<>(c.select("lastName", "Lin").selectNot("Job", "Project Manager").distinct("Job")));
+                Assert.assertTrue(c.distinct("Unknown").isEmpty());
+                Assert.assertEquals(3, c.approximateDistinct("lastName"));
+                Assert.assertEquals(0, c.approximateDistinct("Unknown"));
+            }
+            Assert.assertEquals(Arrays.asList("Lin", "Tsai"), new ArrayList<>(appendable.distinct("lastName")));
+            Assert.assertEquals(2, appendable.approximateDistinct("Job"));
+        }
+        finally {
+            Files.deleteIfExists(file);
+        }
+
+        CubeBuilder<Integer> b = new CubeBuilder<Integer>();
+        for (int i = 0; i < 200000; i++) {
+            b.put(i).addTag("lot", "LOT" + i / 2);
+        }
+        long estimate = b.build().approximateDistinct("lot");
+        Assert.assertEquals(100000, estimate, 100000 * 0.03);
+    }
+
+    @Test
+    public void testQuery() throws Exception {
+        Query q1 = Query.anyOf(Query.eq("lastName", "Lin").and(Query.in("Job", "Engineer", "Student")), Query.eq("Sex", "F"));
+        Query q2 = Query.allOf(Query.not(Query.eq("Sex", "F")), Query.not(Query.not(Query.prefix("Job", "Pro"))));
+        Query q3 = Query.anyOf(Query.eq("Job", "Sales"), Query.anyOf(Query.eq("Job", "Engineer"), Query.range("lastName", "A", "M")));
+        Assert.assertEquals("(lastName=Lin AND Job IN [Engineer, Student]) OR Sex=F", q1.toString());
+        Assert.assertEquals("Sex!=F AND Job LIKE Pro*", q2.simplify().toString());
+        Assert.assertEquals("Job IN [Sales, Engineer] OR lastName IN [A, M)", q3.simplify().toString());
+        Query[] parts = { Query.eq("Sex", "M"), Query.eq("Job", "Sales") };
+        Query q4 = Query.anyOf(parts);
+        parts[1] = Query.eq("Job", "Student");
+        Assert.assertEquals("Sex=M OR Job=Sales", q4.toString());
+
+        Path file = Files.createTempFile("cube", ".bin");
+        try {
+            CubeFile.write(sample(new CubeBuilder<String>()), file, ValueCodec.UTF8);
+            for (Cube<String> c : Arrays.asList(
+                    sample(new CubeBuilder<String>()),
+                    sample(new CubeBuilder<String>().indexed(true)),
+                    sample(new CubeBuilder<String>().columnar(true).cached(10)),
+                    CubeFile.load(file, ValueCodec.UTF8))) {
+                Assert.assertEquals(
+                        Arrays.asList("Kan Lin", "Qin Lin", "Yue Lin", "Charlotte Chang", "Cathy Tsai"),
+                        c.select(q1).values().collect(Collectors.toList()));
+                Assert.assertEquals("Patrick Lin", c.select(q2).single());
+                Assert.assertEquals(6, c.select(q3).values().count());
+                Assert.assertEquals(3, c.select(q3).select(Query.not(q2)).selectNot("Job", "Student").values().count());
+                Assert.assertEquals("Patrick Lin", c.select("lastName", "Lin").select(Query.not(q1)).single());
+                Assert.assertEquals(0, c.select(Query.eq("Unknown", "X")).values().count());
+                Assert.assertEquals(6, c.select(Query.not(Query.eq("Unknown", "X"))).values().count());
+            }
+        }
+        finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void testInstrumented() {
+        CubeStats stats = new CubeStats();
+        Cube<String> c = sample(new CubeBuilder<String>().instrumented(stats));
+        Assert.assertTrue(c instanceof InstrumentedCube);
+
+        Cube<String> women = c.select("Sex", "F").select(d -> d.value.contains("C")).select("lastName", "Tsai");
+        Assert.assertEquals(3, stats.getCalls());
+        Assert.assertEquals(0, stats.getRowsScanned());
+
+        Assert.assertEquals("Cathy Tsai", women.single());
+        Assert.assertEquals(6, stats.getRowsScanned());
+        Assert.assertEquals(1, stats.getRowsMatched());
+        Assert.assertTrue(women.explain().endsWith("scan: 6 rows, filter: lastName=Tsai AND Sex=F AND function"));
+
+        Assert.assertEquals(3, c.countMapping("lastName").size());
+        Assert.assertEquals(5, stats.getCalls());
+        Assert.assertEquals(12, stats.getRowsScanned());
+        Assert.assertEquals(7, stats.getRowsMatched());
+        Assert.assertEquals(3, stats.getGroups());
+        Assert.assertTrue(stats.getNanos() > 0);
+
+        c.cubes("Job").get("Student").values().forEach(v -> { });
+        Assert.assertEquals(9, stats.getRowsMatched());
+        Assert.assertEquals(7, stats.getGroups());
+
+        stats.reset();
+        Assert.assertEquals(0, stats.getCalls());
+
+        Cube<String> indexed = sample(new CubeBuilder<String>().indexed(true).cached(10).instrumented(stats));
+        String explain = indexed.select("lastName", "Lin").selectNot("Sex", "M").explain();
+        Assert.assertTrue(explain, explain.startsWith("instrumented: calls=2"));
+        Assert.assertTrue(explain, explain.contains("\n  cache: hits 0, misses 2\n    index: 2 of 6 rows"));
+        Assert.assertEquals(2, indexed.select("lastName", "Lin").selectNot("Sex", "M").values().count());
+        Assert.assertEquals(2, stats.getRowsScanned());
+
+        // a result answered from the cache scans no rows.
+        Assert.assertEquals(4, indexed.countMapping("Job").get("Engineer") + indexed.countMapping("Job").get("Student"));
+        Assert.assertEquals(8, stats.getRowsScanned());
+
+        // the cache behind an instrumented cube counts into the statistics.
+        Assert.assertEquals(3, stats.getCacheHits());
+        Assert.assertEquals(3, stats.getCacheMisses());
+        Assert.assertTrue(indexed.explain(), indexed.explain().contains("cacheHits=3, cacheMisses=3"));
+        Assert.assertEquals(4, indexed.countMapping("Job").size());
+        Assert.assertEquals(8, stats.getRowsScanned());
+
+        stats.reset();
+        Assert.assertEquals(3, indexed.approximateDistinct("lastName"));
+        Assert.assertEquals(1, stats.getGroups());
+    }
+
+    @Test
+    public void testPartitioned() {
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            CubeBuilder<Integer> b1 = new CubeBuilder<Integer>();
+            CubeBuilder<Integer> b2 = new CubeBuilder<Integer>().partitioned("date");
+            CubeBuilder<Integer> b3 = new CubeBuilder<Integer>().partitioned("date").indexed(true).parallel(1, pool);
+            for (CubeBuilder<Integer> b : Arrays.asList(b1, b2, b3)) {
+                for (int i = 0; i < 20000; i++) {
+                    Cube.Data<Integer> d = b.put(i).addTag("fab", "F" + i % 3);
+                    if (i % 1000 != 999) {
+                        d.addTag("date", String.format("2019-10-%02d", i / 1000 + 1));
+                    }
+                }
+            }
+            Cube<Integer> c1 = b1.build();
+            PartitionedCube<Integer> c2 = (PartitionedCube<Integer>) b2.build();
+            PartitionedCube<Integer> c3 = (PartitionedCube<Integer>) b3.build();
+            Assert.assertEquals(21, c2.getPartitionCount());
+
+            for (PartitionedCube<Integer> c : Arrays.asList(c2, c3)) {
+                PartitionedCube<Integer> week = (PartitionedCube<Integer>) c.selectRange("date", "2019-10-10", "2019-10-17");
+                Assert.assertEquals(7, week.getPartitionCount());
+                Assert.assertEquals(6993, week.values().count());
+                Assert.assertEquals(1, ((PartitionedCube<Integer>) c.select("date", "2019-10-05")).getPartitionCount());
+                Assert.assertEquals(20, ((PartitionedCube<Integer>) c.selectNot("date", "2019-10-05")).getPartitionCount());
+                Assert.assertEquals(3, ((PartitionedCube<Integer>) c.select(Query.anyOf(
+                        Query.eq("date", "2019-10-01").and(Query.eq("fab", "F1")),
+                        Query.in("date", "2019-10-02", "2019-10-03")))).getPartitionCount());
+
+                Assert.assertEquals(c1.countMapping("fab"), c.countMapping("fab"));
+                Assert.assertEquals(c1.valuesMapping("fab", Collectors.summingInt(Integer::intValue)), c.valuesMapping("fab", Collectors.summingInt(Integer::intValue)));
+                Assert.assertEquals(c1.topK(5, Comparator.reverseOrder()), c.topK(5, Comparator.reverseOrder()));
+                Assert.assertEquals(c1.distinct("date"), c.distinct("date"));
+                Assert.assertEquals(c1.cubes("date").keySet(), c.cubes("date").keySet());
+                Assert.assertEquals(
+                        c1.select("fab", "F2").selectRange("date", "2019-10-10", null).cubes("date").keySet(),
+                        c.select("fab", "F2").selectRange("date", "2019-10-10", null).cubes("date").keySet());
+                Assert.assertEquals(333, c.select("fab", "F0").select("date", "2019-10-20").values().count());
+
+                // data are in partition order, data without the partition tag first.
+                Assert.assertEquals(Integer.valueOf(0), c1.single());
+                Assert.assertEquals(Integer.valueOf(999), c.single());
+                Assert.assertEquals(Arrays.asList(999, 1999, 2999), c.values().limit(3).collect(Collectors.toList()));
+                Assert.assertEquals(Arrays.asList(1000, 1001), c.select("date", "2019-10-02").values().limit(2).collect(Collectors.toList()));
+            }
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testViews() {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            CubeBuilder<Integer> b1 = new CubeBuilder<Integer>();
+            CubeBuilder<Integer> b2 = new CubeBuilder<Integer>().parallel(1000, pool);
+            for (CubeBuilder<Integer> b : Arrays.asList(b1, b2)) {
+                for (int i = 0; i < 20000; i++) {
+                    Cube.Data<Integer> d = b.put(i).addTag("mod", "M" + i % 7);
+                    if (i % 10 != 0) {
+                        d.addTag("div", "D" + i / 3000);
+                    }
+                }
+            }
+            Cube<Integer> c1 = b1.build();
+            Cube<Integer> c2 = b2.build();
+
+            for (Cube<Integer> c : Arrays.asList(c1, c2)) {
+                Map<String, Cube<Integer>> divs = c.cubes("div");
+                Assert.assertEquals(7, divs.size());
+                Assert.assertEquals("list: 2700 of 20000 rows", divs.get("D0").explain());
+                Assert.assertEquals(Arrays.asList(1, 8, 15), divs.get("D0").select("mod", "M1").values().limit(3).collect(Collectors.toList()));
+
+                // drill down twice, values keep the order of source data.
+                Cube<Integer> sub = c.select("mod", "M3").cubes("div").get("D2").cubes("mod", "div").get(Arrays.asList("M3", "D2"));
+                Assert.assertEquals(
+                        c.values().filter(i -> i % 7 == 3 && i % 10 != 0 && i / 3000 == 2).collect(Collectors.toList()),
+                        sub.values().collect(Collectors.toList()));
+                Assert.assertEquals(c.select("div", "D1").countMapping("mod"), divs.get("D1").countMapping("mod"));
+                Assert.assertEquals(c.select("div", "D1").countMapping("mod"), divs.get("D1").selectNot("mod", "M9").countMapping("mod"));
+            }
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testJoin() {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            CubeBuilder<String> lots = new CubeBuilder<String>();
+            lots.put("L1").addTag("lotId", "L1").addTag("product", "P1").addTag("qty", 25L);
+            lots.put("L2").addTag("lotId", "L2").addTag("product", "P2").addTag("qty", 20L);
+            lots.put("L3").addTag("lotId", "L3").addTag("product", "P1");
+            lots.put("L4").addTag("product", "P2");
+            CubeBuilder<String> events = new CubeBuilder<String>().indexed(true);
+            events.put("E1").addTag("lotId", "L1").addTag("eqpId", "EQ1").addTag("product", "X");
+            events.put("E2").addTag("lotId", "L2").addTag("eqpId", "EQ1");
+            events.put("E3").addTag("lotId", "L1").addTag("eqpId", "EQ2").addTag("product", "P1");
+            events.put("E4").addTag("eqpId", "EQ3");
+            Cube<String> c1 = lots.build();
+            Cube<String> c2 = events.build();
+
+            Cube<Joined<String, String>> inner = c1.join(c2, "lotId");
+            Assert.assertEquals(3, inner.values().count());
+            Assert.assertEquals("[(L1, E1), (L1, E3)]", inner.select("lotId", "L1").values().collect(Collectors.toList()).toString());
+            // tags of the left cube win.
+            Assert.assertEquals("[P1, P2]", inner.select("eqpId", "EQ1").distinct("product").toString());
+            Assert.assertEquals(25L + 25L + 20L, inner.longSummary("qty").getSum());
+            Assert.assertEquals(inner.values().collect(Collectors.toSet()), c2.join(c1, "lotId").values()
+                    .map(j -> new Joined<>(j.right, j.left))
+                    .collect(Collectors.toSet()));
+
+            Cube<Joined<String, String>> left = c1.leftJoin(c2, "lotId");
+            Assert.assertEquals("[(L1, E1), (L1, E3), (L2, E2), (L3, null), (L4, null)]", left.values().collect(Collectors.toList()).toString());
+            Assert.assertEquals(3, left.join(c2, "eqpId").select("lotId", "L1").values().count());
+            Assert.assertEquals(1, c1.join(c2, "lotId", "product").values().count());
+            // cubes implemented out of the package join on both sides.
+            Assert.assertEquals(inner.values().collect(Collectors.toList()), new LegacyCube<>(c1).join(new LegacyCube<>(c2), "lotId").values().collect(Collectors.toList()));
+            Assert.assertEquals(5, c1.leftJoin(new LegacyCube<>(c2), "lotId").values().count());
+
+            CubeBuilder<Integer> b1 = new CubeBuilder<Integer>();
+            CubeBuilder<Integer> b2 = new CubeBuilder<Integer>().parallel(1000, pool);
+            for (int i = 0; i < 20000; i++) {
+                b1.put(i).addTag("mod", "M" + i % 100);
+                b2.put(i).addTag("mod", "M" + i % 100).addTag("div", "D" + i / 1000);
+            }
+            Cube<Joined<Integer, Integer>> big = b2.build().join(b1.build().select("mod", "M7"), "mod");
+            Assert.assertEquals(200 * 200, big.values().count());
+            Assert.assertEquals(20, big.cubes("div").size());
+            Assert.assertEquals(7, big.values().findFirst().get().left.intValue());
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testPivot() {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            CubeBuilder<Integer> b1 = new CubeBuilder<Integer>();
+            CubeBuilder<Integer> b2 = new CubeBuilder<Integer>().parallel(1000, pool);
+            CubeBuilder<Integer> b3 = new CubeBuilder<Integer>().partitioned("fab").indexed(true);
+            for (CubeBuilder<Integer> b : Arrays.asList(b1, b2, b3)) {
+                for (int i = 0; i < 20000; i++) {
+                    Cube.Data<Integer> d = b.put(i).addTag("mod", "M" + i % 7).addTag("qty", (long) i % 10).addTag("yield", 0.5);
+                    if (i % 100 != 0) {
+                        d.addTag("fab", "F" + i % 3);
+                    }
+                }
+            }
+
+            for (Cube<Integer> c : Arrays.asList(b1.build(), b2.build(), b3.build())) {
+                Pivot count = c.pivot("mod", "fab");
+                Assert.assertArrayEquals(new String[] { "M0", "M1", "M2", "M3", "M4", "M5", "M6" }, count.getRowLabels());
+                Assert.assertArrayEquals(new String[] { "F0", "F1", "F2" }, count.getColumnLabels());
+                Assert.assertEquals(19800, count.getCount());
+                Assert.assertEquals(19800, Arrays.stream(count.longMatrix()).sum());
+                Assert.assertEquals(c.select("mod", "M4").select("fab", "F2").values().count(), count.getLong(count.rowIndex("M4"), count.columnIndex("F2")));
+
+                Pivot qty = c.pivotLong("fab", "mod", "qty");
+                Assert.assertTrue(qty.isIntegral());
+                Assert.assertEquals(c.select("fab", "F1").longSummary("qty").getSum(), Arrays.stream(qty.longMatrix(), 7, 14).sum());
+
+                Pivot yield = c.pivotDouble("fab", "mod", "yield");
+                Assert.assertNull(yield.longMatrix());
+                Assert.assertEquals(count.getLong(3, 1) * 0.5, yield.getDouble(1, 3), 0.0001);
+            }
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testLoader() throws Exception {
+        Path file = Files.createTempFile("cube", ".csv");
+        try {
+            StringBuilder csv = new StringBuilder("id,lot,eqp,qty,yield\r\n");
+            for (int i = 0; i < 5000; i++) {
+                csv.append(i).append(",L").append(i % 50).append(",")
+                        .append(i % 10 == 0 ? "" : "EQ" + i % 3).append(",")
+                        .append(i - 100).append(",")
+                        .append(i % 4 * 0.25).append("\r\n");
+            }
+            Files.write(file, csv.toString().getBytes(StandardCharsets.UTF_8));
+
+            CubeBuilder<Integer> b1 = new CubeBuilder<Integer>();
+            DelimitedLoader.Result r1 = new DelimitedLoader<Integer>(',', 0, Integer::valueOf)
+                    .header(true)
+                    .load(file, b1);
+            Assert.assertEquals(5000, r1.getRows());
+            Assert.assertEquals(Files.size(file), r1.getBytes());
+            Assert.assertTrue(r1.getThroughput() > 0);
+
+            CubeBuilder<Integer> b2 = new CubeBuilder<Integer>().columnar(true);
+            DelimitedLoader.Result r2 = new DelimitedLoader<Integer>(',', 0, Integer::valueOf)
+                    .header(true)
+                    .tag(1, "lot")
+                    .tag(2, "eqp")
+                    .longTag(3, "qty")
+                    .doubleTag(4, "yield")
+                    .parallel(4)
+                    .load(file, b2);
+            Assert.assertEquals(5000, r2.getRows());
+
+            Cube<Integer> c1 = b1.build();
+            Cube<Integer> c2 = b2.build();
+            Assert.assertEquals(IntStream.range(0, 5000).boxed().collect(Collectors.toList()), c2.values().collect(Collectors.toList()));
+            Assert.assertEquals(c1.countMapping("lot"), c2.countMapping("lot"));
+            Assert.assertEquals(4500, c2.select(Query.prefix("eqp", "EQ")).values().count());
+            Assert.assertEquals(4500, c1.countMapping("eqp").values().stream().mapToLong(Long::longValue).sum());
+            Assert.assertEquals(IntStream.range(0, 5000).mapToLong(i -> i - 100).sum(), c2.longSummary("qty").getSum());
+            Assert.assertEquals(-100, c2.longSummary("qty").getMin());
+            Assert.assertEquals(5000 * 0.375, c2.doubleSummary("yield").getSum(), 0.0001);
+
+            // values of a column are interned.
+            List<Cube.Data<Integer>> data = AbstractCube.dataOf(c1).limit(51).collect(Collectors.toList());
+            Assert.assertSame(data.get(0).getTag("lot"), data.get(50).getTag("lot"));
+
+            // long numbers are parsed exactly up to the limits, larger ones are rejected.
+            Files.write(file, "1,9223372036854775807\n2,-9223372036854775808\n3,123456789012345678\n".getBytes(StandardCharsets.UTF_8));
+            CubeBuilder<Integer> b3 = new CubeBuilder<Integer>();
+            new DelimitedLoader<Integer>(',', 0, Integer::valueOf).longTag(1, "n").load(file, b3);
+            LongSummaryStatistics n = b3.build().longSummary("n");
+            Assert.assertEquals(Long.MAX_VALUE, n.getMax());
+            Assert.assertEquals(Long.MIN_VALUE, n.getMin());
+            Assert.assertEquals(123456789012345678L, b3.build().select(d -> d.value == 3).longSummary("n").getMax());
+            Files.write(file, "1,9223372036854775808\n".getBytes(StandardCharsets.UTF_8));
+            try {
+                new DelimitedLoader<Integer>(',', 0, Integer::valueOf).longTag(1, "n").load(file, new CubeBuilder<Integer>());
+                Assert.fail();
+            }
+            catch (NumberFormatException ex) {
+            }
+        }
+        finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testSample() {
+        CubeBuilder<Integer> b1 = new CubeBuilder<Integer>().sampled(10000).cached(10);
+        CubeBuilder<Integer> b2 = new CubeBuilder<Integer>();
+        for (CubeBuilder<Integer> b : Arrays.asList(b1, b2)) {
+            for (int i = 0; i < 100000; i++) {
+                b.put(i).addTag("mod", "M" + i % 10).addTag("big", i % 100 < 3 ? "Y" : "N").addTag("qty", (long) i % 1000);
+            }
+        }
+        Cube<Integer> c1 = b1.build();
+        Cube<Integer> c2 = b2.build();
+
+        Sample<Integer> sample = c1.sample();
+        Assert.assertEquals(100000, sample.getPopulation());
+        Assert.assertEquals(10000, sample.getSize());
+        Assert.assertFalse(sample.isExact());
+        Assert.assertTrue(sample.count().contains(100000));
+        Assert.assertEquals(0, sample.count().getError(), 0.0001);
+        Assert.assertTrue(sample.countMapping("big").get("Y").contains(3000));
+        Assert.assertTrue(sample.countMapping("big").get("Y").getError() < 500);
+        Assert.assertTrue(sample.sum("qty").contains(c2.longSummary("qty").getSum()));
+        Assert.assertTrue(sample.average("qty").contains(499.5));
+        // 95% bounds, a few groups may miss.
+        Assert.assertTrue(sample.sumMapping("mod", "qty").entrySet().stream()
+                .filter(e -> e.getValue().contains(c2.select("mod", e.getKey()).longSummary("qty").getSum()))
+                .count() >= 8);
+
+        // samples follow selections.
+        Sample<Integer> m3 = c1.select("mod", "M3").sample();
+        Assert.assertTrue(m3.count().contains(10000));
+        Assert.assertTrue(m3.select("big", "Y").count().contains(c2.select("mod", "M3").select("big", "Y").values().count()));
+        Assert.assertTrue(c1.cubes("big").get("Y").sample().count().contains(3000));
+        Assert.assertEquals(c2.select("mod", "M3").values().count(), c1.select("mod", "M3").values().count());
+
+        // cubes without a sample are exact.
+        Sample<Integer> exact = c2.select("big", "Y").sample();
+        Assert.assertTrue(exact.isExact());
+        Assert.assertEquals(3000, exact.count().getValue(), 0.0001);
+        Assert.assertEquals(0, exact.countMapping("mod").get("M1").getError(), 0.0001);
+        Assert.assertEquals(0, exact.select("mod", "M99").count().getError(), 0);
+
+        // a group missing from the sample has the bound of the rule of three.
+        Sample.Estimate missing = c1.select("mod", "M99").sample().count();
+        Assert.assertEquals(0, missing.getValue(), 0);
+        Assert.assertEquals(30, missing.getError(), 0.0001);
+        Assert.assertTrue(sample.select("big", "X").count().contains(0));
+
+        // sums of a cube implemented out of the package.
+        Sample<Integer> legacy = new LegacyCube<>(c2.select("mod", "M3")).sample();
+        Assert.assertEquals(c2.select("mod", "M3").longSummary("qty").getSum(), legacy.sum("qty").getValue(), 0);
+        Assert.assertEquals(c2.select("mod", "M3").longSummary("qty").getAverage(), legacy.average("qty").getValue(), 0.0001);
+        Assert.assertEquals(legacy.sum("qty").getValue(), legacy.sumMapping("big", "qty").values().stream().mapToDouble(Sample.Estimate::getValue).sum(), 0);
+    }
+
+    @Test
+    public void testUntagged() {
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            CubeBuilder<Integer> b1 = new CubeBuilder<Integer>();
+            CubeBuilder<Integer> b2 = new CubeBuilder<Integer>().parallel(1, pool);
+            CubeBuilder<Integer> b3 = new CubeBuilder<Integer>().indexed(true);
+            CubeBuilder<Integer> b4 = new CubeBuilder<Integer>().indexed(true).parallel(1, pool);
+            for (CubeBuilder<Integer> b : Arrays.asList(b1, b2, b3, b4)) {
+                for (int i = 0; i < 100; i++) {
+                    Cube.Data<Integer> d = b.put(i).addTag("div", "D" + i % 2);
+                    if (i % 10 != 0) {
+                        d.addTag("mod", "M" + i % 3);
+                    }
+                }
+            }
+
+            // data without the tag are ignored in all modes.
+            for (Cube<Integer> c : Arrays.asList(b1.build(), b2.build(), b3.build(), b4.build())) {
+                // stream cubes of a selection too.
+                for (Cube<Integer> m : Arrays.asList(c, c.selectNot("div", "D9"))) {
+                    Map<List<String>, List<Integer>> values = m.valuesMapping("mod", "div");
+                    Assert.assertEquals(6, values.size());
+                    Assert.assertFalse(values.keySet().stream().anyMatch(k -> k.contains(null)));
+                    Assert.assertEquals(90, values.values().stream().mapToInt(List::size).sum());
+                    Map<List<String>, Cube<Integer>> cubes = m.cubes("div", "mod");
+                    Assert.assertEquals(6, cubes.size());
+                    Assert.assertFalse(cubes.keySet().stream().anyMatch(k -> k.contains(null)));
+                    Assert.assertEquals(90, cubes.values().stream().mapToLong(x -> x.values().count()).sum());
+                }
+                Assert.assertEquals(Arrays.asList("M0", "M1", "M2"), new ArrayList<>(c.valuesMapping("mod").keySet()));
+                Assert.assertEquals(90, c.valuesMapping("mod").values().stream().mapToInt(List::size).sum());
+                Assert.assertEquals(90, c.valuesMapping("mod", i -> i * 2).values().stream().mapToInt(List::size).sum());
+                Assert.assertEquals(Integer.valueOf(3), c.singleMapping("mod").get("M0"));
+                Assert.assertEquals(Integer.valueOf(2), c.singleMapping("mod", i -> i * 2).get("M1"));
+                Assert.assertEquals(90, c.cubes("mod").values().stream().mapToLong(x -> x.values().count()).sum());
+                Assert.assertEquals(30, c.select("mod", "M1").cubes("mod").get("M1").values().count());
+            }
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testDefaults() {
+        Cube<String> c1 = sample(new CubeBuilder<String>());
+        CubeBuilder<String> b2 = new CubeBuilder<String>();
+        Cube<String> c2 = new LegacyCube<>(sample(b2));
+        b2.put("Ivy Wang").addTag("lastName", "Wang").addTag("age", 30).addTag("height", 1.65);
+
+        // a cube implementing methods of the first release only gets all other methods.
+        Assert.assertEquals(c1.cubes("lastName", "Sex").keySet(), c2.cubes("lastName", "Sex").keySet());
+        Assert.assertEquals(c1.valuesMapping("Job", "Sex"), c2.valuesMapping("Job", "Sex"));
+        Assert.assertEquals(c1.countMapping("Job"), c2.countMapping("Job"));
+        Assert.assertEquals(c1.distinct("lastName"), c2.distinct("lastName"));
+        Assert.assertEquals(3, c2.approximateDistinct("lastName"));
+        CubeBuilder<Integer> b4 = new CubeBuilder<Integer>();
+        for (int i = 0; i < 50000; i++) {
+            b4.put(i).addTag("id", "ID" + i);
+        }
+        Assert.assertEquals(50000, new LegacyCube<>(b4.build()).approximateDistinct("id"), 50000 * 0.03);
+        Assert.assertEquals(c1.valuesMapping("Sex", Collectors.joining(",")), c2.valuesMapping("Sex", Collectors.joining(",")));
+        Assert.assertEquals(c1.longSummaryMapping("Sex", String::length).get("F").getSum(), c2.longSummaryMapping("Sex", String::length).get("F").getSum());
+        Assert.assertEquals(c1.topK(2, Comparator.reverseOrder()), c2.topK(2, Comparator.reverseOrder()));
+        Assert.assertEquals(c1.topKMapping("Sex", 1, Comparator.naturalOrder()), c2.topKMapping("Sex", 1, Comparator.naturalOrder()));
+        Assert.assertEquals(c1.pivot("Sex", "Job").getCount(), c2.pivot("Sex", "Job").getCount());
+        Assert.assertEquals(0, c2.longSummary("age").getCount());
+        Assert.assertEquals("LegacyCube", c2.explain());
+
+        Cube<String> c3 = new LegacyCube<>(b2.build());
+        Assert.assertEquals(30, c3.longSummary("age").getMax());
+        Assert.assertEquals(1.65, c3.doubleSummary("height").getMax(), 0);
+        Assert.assertEquals(1, c3.longSummaryMapping("lastName", "age").get("Wang").getCount());
+        Assert.assertEquals(0, c3.doubleSummaryMapping("lastName", "height").get("Lin").getCount());
+        Pivot ages = c3.pivotLong("lastName", "lastName", "age");
+        Assert.assertEquals(30, ages.getLong(ages.rowIndex("Wang"), ages.columnIndex("Wang")));
+        Assert.assertEquals(1, c3.selectLong("age", a -> a > 20).values().count());
+        Assert.assertEquals(4, c3.select(Query.eq("lastName", "Lin")).values().count());
+    }
+
+    @Test
+    public void testParallel() {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            CubeBuilder<Integer> b1 = new CubeBuilder<Integer>();
+            CubeBuilder<Integer> b2 = new CubeBuilder<Integer>().parallel(1000, pool);
+            for (int i = 0; i < 20000; i++) {
+                b1.put(i).addTag("mod", "M" + i % 7).addTag("div", "D" + i / 3000);
+                b2.put(i).addTag("mod", "M" + i % 7).addTag("div", "D" + i / 3000);
+            }
+            Cube<Integer> c1 = b1.build();
+            Cube<Integer> c2 = b2.build();
+
+            Assert.assertEquals(c1.valuesMapping("mod"), c2.valuesMapping("mod"));
+            Assert.assertEquals(c1.valuesMapping("div", v -> v * 2), c2.valuesMapping("div", v -> v * 2));
+            Assert.assertEquals(c1.singleMapping("mod"), c2.singleMapping("mod"));
+            Assert.assertEquals(Integer.valueOf(6), c2.singleMapping("mod").get("M6"));
+
+            Map<String, Cube<Integer>> cubes = c2.cubes("div");
+            Assert.assertEquals(7, cubes.size());
+            Assert.assertEquals(3000, cubes.get("D0").values().count());
+            Assert.assertEquals(c1.cubes("div").get("D1").valuesMapping("mod"), cubes.get("D1").valuesMapping("mod"));
+
+            // indexed cubes keep grouping on the pool.
+            CubeBuilder<Integer> b3 = new CubeBuilder<Integer>().indexed(true).parallel(1000, pool);
+            for (int i = 0; i < 20000; i++) {
+                b3.put(i).addTag("mod", "M" + i % 7).addTag("div", "D" + i / 3000);
+            }
+            Cube<Integer> c3 = b3.build();
+            Assert.assertEquals(c1.valuesMapping("mod"), c3.valuesMapping("mod"));
+            Assert.assertEquals(c1.valuesMapping("mod", "div"), c3.valuesMapping("mod", "div"));
+            Assert.assertEquals(c1.select("div", "D1").valuesMapping("mod"), c3.select("div", "D1").valuesMapping("mod"));
+            Assert.assertEquals(c1.select("div", "D1").topK(3, Comparator.naturalOrder()), c3.select("div", "D1").topK(3, Comparator.naturalOrder()));
+            Assert.assertTrue(c3.select("div", "D1")
+                    .valuesMapping("mod", v -> Thread.currentThread() instanceof ForkJoinWorkerThread)
+                    .values().stream()
+                    .allMatch(v -> !v.contains(false)));
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testPlan() {
+        Cube<String> c = sample(new CubeBuilder<String>());
+
+        // a selected cube can be executed many times.
+        Cube<String> f = c.select("Sex", "F").selectNot("Job", "Student");
+        Assert.assertEquals(2, f.values().count());
+        Assert.assertEquals(2, f.valuesMapping("Job").size());
+        Assert.assertEquals("Charlotte Chang", f.single());
+        Assert.assertEquals(2, f.cubes("lastName").size());
+        Assert.assertEquals(1, f.select("lastName", "Tsai").values().count());
+        Assert.assertEquals(2, f.values().count());
+
+        // the most selective tag step runs first, function steps run last.
+        Cube<String> p = c.select(d -> d.value.length() > 0).select("Sex", "F").select("lastName", "Tsai");
+        Assert.assertEquals("Cathy Tsai", p.single());
+        Assert.assertEquals("lastName=Tsai AND Sex=F AND function", p.toString());
+    }
+
+    @Test
+    public void testMultiLevel() {
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            Cube<String> c1 = sample(new CubeBuilder<String>());
+            Cube<String> c2 = sample(new CubeBuilder<String>().indexed(true));
+            Cube<String> c3 = sample(new CubeBuilder<String>().parallel(1, pool));
+            for (Cube<String> c : new Cube[] { c1, c2, c3 }) {
+                Map<List<String>, Cube<String>> cubes = c.cubes("lastName", "Job", "Sex");
+                Assert.assertEquals(5, cubes.size());
+                Assert.assertEquals(Arrays.asList("Chang", "Engineer", "F"), cubes.keySet().iterator().next());
+                Assert.assertEquals(2, cubes.get(Arrays.asList("Lin", "Student", "F")).values().count());
+                Assert.assertEquals("Yue Lin", cubes.get(Arrays.asList("Lin", "Student", "F")).select(d -> d.value.startsWith("Y")).single());
+
+                Map<List<String>, List<String>> values = c.select("Sex", "F").valuesMapping("lastName", "Job");
+                Assert.assertEquals(3, values.size());
+                Assert.assertEquals(Arrays.asList("Qin Lin", "Yue Lin"), values.get(Arrays.asList("Lin", "Student")));
+                Assert.assertEquals(6, c.valuesMapping("lastName", "Sex", "Job").values().stream().mapToInt(List::size).sum());
+            }
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testAggregation() {
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            Cube<String> c1 = sample(new CubeBuilder<String>());
+            Cube<String> c2 = sample(new CubeBuilder<String>().indexed(true));
+            Cube<String> c3 = sample(new CubeBuilder<String>().parallel(1, pool));
+            for (Cube<String> c : new Cube[] { c1, c2, c3 }) {
+                Map<String, Long> counts = c.countMapping("Job");
+                Assert.assertEquals(4, counts.size());
+                Assert.assertEquals(Long.valueOf(2), counts.get("Student"));
+                Assert.assertEquals(Long.valueOf(1), c.select("Sex", "F").countMapping("Job").get("Engineer"));
+                Assert.assertEquals(0, c.countMapping("Unknown").size());
+
+                Map<String, LongSummaryStatistics> lengths = c.longSummaryMapping("lastName", String::length);
+                Assert.assertEquals(4, lengths.get("Lin").getCount());
+                Assert.assertEquals(7 + 11 + 7 + 7, lengths.get("Lin").getSum());
+                Assert.assertEquals(11, lengths.get("Lin").getMax());
+                Assert.assertEquals(7, lengths.get("Lin").getMin());
+                Assert.assertEquals(15.0, c.doubleSummaryMapping("Sex", v -> v.length()).get("F").getMax(), 0.0);
+                Assert.assertEquals(15.0, c.select("Sex", "F").doubleSummaryMapping("lastName", v -> v.length()).get("Chang").getAverage(), 0.0);
+
+                Map<String, String> joined = c.valuesMapping("Sex", Collectors.joining(","));
+                Assert.assertEquals("Kan Lin,Patrick Lin", joined.get("M"));
+            }
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testCached() {
+        CachedCube<String> c = (CachedCube<String>) sample(new CubeBuilder<String>().indexed(true).cached(4));
+
+        Assert.assertEquals(3, c.select("lastName", "Lin").cubes("Job").size());
+        Assert.assertEquals(0, c.getHitCount());
+        Assert.assertEquals(2, c.getMissCount());
+
+        Map<String, Cube<String>> jobs = c.select("lastName", "Lin").cubes("Job");
+        Assert.assertSame(jobs, c.select("lastName", "Lin").cubes("Job"));
+        Assert.assertEquals(4, c.getHitCount());
+        Assert.assertEquals(2, jobs.get("Student").countMapping("Sex").get("F").intValue());
+        Assert.assertEquals(2, jobs.get("Student").countMapping("Sex").get("F").intValue());
+        Assert.assertEquals(5, c.getHitCount());
+        Assert.assertEquals(3, c.getMissCount());
+
+        // least recently used results are evicted.
+        c.valuesMapping("Sex");
+        c.singleMapping("Job");
+        c.countMapping("lastName");
+        Assert.assertEquals(4, c.getCacheSize());
+        c.select("lastName", "Lin");
+        Assert.assertEquals(7, c.getMissCount());
+
+        // functions are not cached.
+        Assert.assertEquals(1, c.select(d -> d.value.startsWith("K")).values().count());
+        Assert.assertEquals(4, c.valuesMapping("lastName", v -> v.length()).get("Lin").size());
+        Assert.assertEquals(7, c.getMissCount());
+
+        // varargs overloads with one tag have their own results.
+        Assert.assertEquals(4, c.cubes("Job").size());
+        Assert.assertEquals(2, c.cubes(new String[] { "Job" }).get(Arrays.asList("Student")).values().count());
+        Assert.assertEquals(2, c.valuesMapping("Sex").get("M").size());
+        Assert.assertEquals(2, c.valuesMapping(new String[] { "Sex" }).get(Arrays.asList("M")).size());
+
+        // lists of cached results are shared, so they cannot be changed.
+        try {
+            c.valuesMapping("Sex").get("M").clear();
+            Assert.fail();
+        }
+        catch (UnsupportedOperationException ex) {
+            Assert.assertEquals(2, c.valuesMapping("Sex").get("M").size());
+        }
+        try {
+            c.valuesMapping("Sex", "Job").get(Arrays.asList("M", "Engineer")).add("Ivy Wang");
+            Assert.fail();
+        }
+        catch (UnsupportedOperationException ex) {
+            Assert.assertEquals(1, c.valuesMapping("Sex", "Job").get(Arrays.asList("M", "Engineer")).size());
+        }
+
+        c.clearCache();
+        Assert.assertEquals(0, c.getCacheSize());
+    }
+
+    @Test
+    public void testAppendable() throws Exception {
+        AppendableCube<String> c = new AppendableCube<String>();
+        Assert.assertEquals(0, c.getEpoch());
+        Assert.assertNull(c.single());
+
+        c.put("Kan Lin").addTag("lastName", "Lin").addTag("Sex", "M").addTag("Job", "Engineer");
+        c.put("Qin Lin").addTag("lastName", "Lin").addTag("Sex", "F").addTag("Job", "Student");
+        Assert.assertEquals(0, c.values().count());
+        Assert.assertEquals(1, c.commit());
+        Assert.assertEquals(2, c.values().count());
+
+        Cube<String> before = c.snapshot();
+        for (int i = 0; i < 20; i++) {
+            c.put("Student " + i).addTag("lastName", "Wang").addTag("Sex", i % 2 == 0 ? "F" : "M").addTag("Job", "Student");
+            c.commit();
+        }
+        Assert.assertEquals(21, c.getEpoch());
+        Assert.assertEquals(21, c.commit());
+        Assert.assertTrue(c.getSegmentCount() < 10);
+
+        // old snapshot is not changed.
+        Assert.assertEquals(2, before.values().count());
+        Assert.assertEquals(1, before.select("Job", "Student").values().count());
+
+        Assert.assertEquals(22, c.values().count());
+        Assert.assertEquals("Kan Lin", c.single());
+        Assert.assertEquals(21, c.select("Job", "Student").values().count());
+        Assert.assertEquals(11, c.select("Job", "Student").select("Sex", "F").values().count());
+        Assert.assertEquals(10, c.select("Job", "Student").selectNot("Sex", "F").values().count());
+        Assert.assertEquals(Long.valueOf(20), c.countMapping("lastName").get("Wang"));
+        Assert.assertEquals(Long.valueOf(10), c.select("Sex", "F").countMapping("lastName").get("Wang"));
+        Assert.assertEquals(2, c.cubes("lastName").size());
+        Assert.assertEquals(20, c.cubes("lastName").get("Wang").values().count());
+        Assert.assertEquals(4, c.cubes("lastName", "Sex").size());
+        Assert.assertEquals("Qin Lin", c.select("Sex", "F").single());
+        Assert.assertEquals(2, c.selectRange("lastName", "Lin", "Wang").values().count());
+        Assert.assertEquals(20, c.selectRange("lastName", "Wang", null).values().count());
+        Assert.assertEquals(20, c.selectPrefix("lastName", "W").values().count());
+
+        // every writer commits its own batch only when its tags are complete.
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final AppendableCube.Batch<String> batch = c.batch();
+            final int id = t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 250; i++) {
+                    batch.put("W" + id + "-" + i).addTag("writer", "T" + id).addTag("Job", "Operator").addTag("seq", i);
+                    if (i % 50 == 49) {
+                        batch.commit();
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(1022, c.values().count());
+        Assert.assertEquals(1000, c.select("Job", "Operator").values().count());
+        Assert.assertEquals(1000, c.select("Job", "Operator").cubes("writer").values().stream().mapToLong(w -> w.values().count()).sum());
+        Assert.assertEquals(Long.valueOf(250), c.countMapping("writer").get("T3"));
+        Assert.assertEquals(22, c.select("writer", null).values().count());
+        Assert.assertEquals(4 * 31125, c.longSummary("seq").getSum());
+        Assert.assertEquals(250, c.select("writer", "T2").longSummary("seq").getCount());
+    }
+
+    @Test
+    public void testConcurrentBuilder() throws Exception {
+        final ConcurrentCubeBuilder<Integer> b = new ConcurrentCubeBuilder<Integer>();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int id = t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    b.put(id * 1000 + i).addTag("thread", "T" + id).addTag("mod", "M" + i % 10).addTag("seq", i);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Cube<Integer> c = b.build();
+        Assert.assertEquals(4000, c.values().count());
+        Assert.assertEquals(4000, c.values().distinct().count());
+        Assert.assertEquals(Long.valueOf(1000), c.countMapping("thread").get("T2"));
+        Assert.assertEquals(100, c.select("thread", "T1").select("mod", "M3").values().count());
+        Assert.assertEquals(999, c.select("thread", "T3").longSummary("seq").getMax());
+        Assert.assertEquals(4 * 499500, c.longSummary("seq").getSum());
+
+        // options of the builder are used, buffers are moved into it.
+        final ConcurrentCubeBuilder<Integer> b2 = new ConcurrentCubeBuilder<Integer>(new CubeBuilder<Integer>().indexed(true).partitioned("mod"));
+        for (int t = 0; t < threads.length; t++) {
+            final int id = t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    b2.put(id * 1000 + i).addTag("thread", "T" + id).addTag("mod", "M" + i % 10).addTag("seq", i);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        PartitionedCube<Integer> c2 = (PartitionedCube<Integer>) b2.build();
+        Assert.assertEquals(10, c2.getPartitionCount());
+        Assert.assertEquals(c.countMapping("thread"), c2.countMapping("thread"));
+        Assert.assertEquals(c.longSummaryMapping("mod", "seq").get("M7").getSum(), c2.longSummaryMapping("mod", "seq").get("M7").getSum());
+        b2.put(-1).addTag("mod", "M0").addTag("seq", 5);
+        Cube<Integer> c3 = b2.build();
+        Assert.assertEquals(4001, c3.values().count());
+        Assert.assertEquals(4000, c2.values().count());
+        Assert.assertEquals(4 * 499500 + 5, c3.longSummary("seq").getSum());
+    }
+
+    @Test
+    public void testConcurrentBuild() throws Exception {
+        final ConcurrentCubeBuilder<Integer> b = new ConcurrentCubeBuilder<Integer>();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int id = t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 50000; i++) {
+                    b.put(id * 50000 + i);
+                }
+            });
+            threads[t].start();
+        }
+
+        // builds while threads put neither lose nor repeat data.
+        long last = 0;
+        boolean running = true;
+        while (running) {
+            running = Arrays.stream(threads).anyMatch(Thread::isAlive);
+            Cube<Integer> c = b.build();
+            long count = c.values().count();
+            Assert.assertEquals(count, c.values().distinct().count());
+            Assert.assertTrue(count >= last);
+            last = count;
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Cube<Integer> c = b.build();
+        Assert.assertEquals(200000, c.values().count());
+        Assert.assertEquals(200000, c.values().distinct().count());
+
+        // buffers of terminated threads are dropped.
+        Assert.assertEquals(0, b.getBufferCount());
+        b.put(-1);
+        Assert.assertEquals(1, b.getBufferCount());
+        Assert.assertEquals(200001, b.build().values().count());
+        Assert.assertEquals(1, b.getBufferCount());
+    }
+
+    @Test
+    public void testFile() throws Exception {
+        Path file = Files.createTempFile("cube", ".bin");
+        try {
+            CubeFile.write(sample(new CubeBuilder<String>()).select("Job", "Project Manager").selectNot("Sex", "X"), file, ValueCodec.UTF8);
+            Assert.assertEquals("Patrick Lin", CubeFile.load(file, ValueCodec.UTF8).single());
+
+            CubeFile.write(sample(new CubeBuilder<String>().cached(10)), file, ValueCodec.UTF8);
+            Cube<String> c = CubeFile.load(file, ValueCodec.UTF8);
+            Assert.assertTrue(c instanceof MappedCube);
+
+            Assert.assertEquals(6, c.values().count());
+            Assert.assertEquals("Kan Lin", c.single());
+            Assert.assertEquals(4, c.select("Sex", "F").values().count());
+            Assert.assertEquals(0, c.select("Sex", "X").values().count());
+            Assert.assertEquals(0, c.select("Unknown", "X").values().count());
+            Assert.assertEquals(6, c.selectNot("Unknown", "X").values().count());
+            Assert.assertEquals(2, c.select("Sex", "F").selectNot("Job", "Student").values().count());
+            Assert.assertEquals(3, c.selectIn("Job", "Student", "Sales", "X").values().count());
+            Assert.assertEquals("Cathy Tsai", c.select("Sex", "F").select("Job", "Sales").single());
+            Assert.assertEquals(1, c.select("lastName", "Lin").select(d -> d.value.contains("Kan")).values().count());
+            Assert.assertEquals("Engineer", c.select(d -> d.value.contains("Kan")).cubes("Job").keySet().iterator().next());
+            Assert.assertEquals(3, c.select("lastName", "Lin").cubes("Job").size());
+            Assert.assertEquals(Long.valueOf(2), c.countMapping("Job").get("Student"));
+            Assert.assertEquals(Arrays.asList("Qin Lin", "Yue Lin"), c.valuesMapping("Job").get("Student"));
+            Assert.assertEquals(5, c.cubes("lastName", "Job", "Sex").size());
+        }
+        finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testFileZoneMap() throws Exception {
+        CubeBuilder<String> b = new CubeBuilder<String>();
+        for (int i = 0; i < 20000; i++) {
+            b.put("LOT" + i)
+                    .addTag("day", String.format("D%03d", i / 1000))
+                    .addTag("eqp", "EQP" + i % 7);
+        }
+        Cube<String> c1 = b.build();
+        Path file = Files.createTempFile("cube", ".bin");
+        try {
+            CubeFile.write(c1, file, ValueCodec.UTF8);
+            MappedCube<String> c2 = (MappedCube<String>) CubeFile.load(file, ValueCodec.UTF8);
+
+            // 20000 rows are 5 blocks, day D005 is in block 1 only.
+            MappedCube<String> day = (MappedCube<String>) c2.select("day", "D005");
+            Assert.assertEquals(1000, day.values().count());
+            Assert.assertEquals(4, day.getPrunedBlocks());
+            Assert.assertEquals(1, day.getScannedBlocks());
+            Assert.assertEquals(c1.select("day", "D005").select("eqp", "EQP3").values().count(), day.select("eqp", "EQP3").values().count());
+
+            MappedCube<String> notDay = (MappedCube<String>) c2.selectNot("day", "D005");
+            Assert.assertEquals(19000, notDay.values().count());
+            Assert.assertEquals(4, notDay.getPrunedBlocks());
+
+            MappedCube<String> days = (MappedCube<String>) c2.selectIn("day", "D000", "D001", "D019");
+            Assert.assertEquals(3000, days.values().count());
+            Assert.assertEquals(3, days.getPrunedBlocks());
+
+            MappedCube<String> eqp = (MappedCube<String>) c2.select("eqp", "EQP3");
+            Assert.assertEquals(c1.select("eqp", "EQP3").values().count(), eqp.values().count());
+            Assert.assertEquals(0, eqp.getPrunedBlocks());
+            Assert.assertEquals(c1.selectNot("eqp", "EQP3").valuesMapping("day"), c2.selectNot("eqp", "EQP3").valuesMapping("day"));
+        }
+        finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testTopK() {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            CubeBuilder<Integer> b1 = new CubeBuilder<Integer>();
+            CubeBuilder<Integer> b2 = new CubeBuilder<Integer>().parallel(1000, pool);
+            CubeBuilder<Integer> b3 = new CubeBuilder<Integer>().indexed(true);
+            for (int i = 0; i < 10000; i++) {
+                int v = (i * 7919) % 1000;
+                b1.put(v).addTag("mod", "M" + i % 3);
+                b2.put(v).addTag("mod", "M" + i % 3);
+                b3.put(v).addTag("mod", "M" + i % 3);
+            }
+            Comparator<Integer> desc = Comparator.reverseOrder();
+            List<Integer> expected = b1.build().values().sorted(desc).limit(20).collect(Collectors.toList());
+            List<Integer> expectedM1 = b1.build().select("mod", "M1").values().sorted(desc).limit(5).collect(Collectors.toList());
+            for (Cube<Integer> c : new Cube[] { b1.build(), b2.build(), b3.build() }) {
+                Assert.assertEquals(expected, c.topK(20, desc));
+                Assert.assertEquals(expectedM1, c.topKMapping("mod", 5, desc).get("M1"));
+                Assert.assertEquals(expectedM1, c.select("mod", "M1").topK(5, desc));
+                Assert.assertEquals(3, c.topKMapping("mod", 5, desc).size());
+                Assert.assertEquals(0, c.topK(0, desc).size());
+                Assert.assertEquals(10000, c.topK(20000, desc).size());
+            }
+
+            // equal values keep their order.
+            Cube<String> c = sample(new CubeBuilder<String>());
+            Assert.assertEquals(Arrays.asList("Kan Lin", "Qin Lin", "Yue Lin"), c.topK(3, Comparator.comparing(String::length)));
+            Assert.assertEquals(Arrays.asList("Qin Lin", "Yue Lin"), c.topKMapping("Sex", 2, Comparator.comparing(String::length)).get("F"));
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    private static Cube<String> sample(CubeBuilder<String> b) {
+        b.put("Kan Lin")
+                .addTag("lastName", "Lin")
+                .addTag("Sex", "M")
+                .addTag("Job", "Engineer");
+        b.put("Patrick Lin")
+                .addTag("lastName", "Lin")
+                .addTag("Sex", "M")
+                .addTag("Job", "Project Manager");
+        b.put("Qin Lin")
+                .addTag("lastName", "Lin")
+                .addTag("Sex", "F")
+                .addTag("Job", "Student");
+        b.put("Yue Lin")
+                .addTag("lastName", "Lin")
+                .addTag("Sex", "F")
+                .addTag("Job", "Student");
+        b.put("Charlotte Chang")
+                .addTag("lastName", "Chang")
+                .addTag("Sex", "F")
+                .addTag("Job", "Engineer");
+        b.put("Cathy Tsai")
+                .addTag("lastName", "Tsai")
+                .addTag("Sex", "F")
+                .addTag("Job", "Sales");
+        return b.build();
+    }
+
+    /**
+     * Cube implementing methods of the first release only.
+     */
+    private static class LegacyCube<T> implements Cube<T> {
+
+        private final Cube<T> cube;
+
+        LegacyCube(Cube<T> cube) {
+            this.cube = cube;
+        }
+
+        @Override
+        public Map<String, Cube<T>> cubes(String tagName) {
+            TreeMap<String, Cube<T>> result = new TreeMap<>();
+            this.cube.cubes(tagName).forEach((k, v) -> result.put(k, new LegacyCube<>(v)));
+            return result;
+        }
+
+        @Override
+        public Cube<T> select(Function<Data<T>, Boolean> function) {
+            return new LegacyCube<>(this.cube.select(function));
+        }
+
+        @Override
+        public Cube<T> select(String tagName, String tagValue) {
+            return new LegacyCube<>(this.cube.select(tagName, tagValue));
+        }
+
+        @Override
+        public Cube<T> selectNot(String tagName, String tagValue) {
+            return new LegacyCube<>(this.cube.selectNot(tagName, tagValue));
+        }
+
+        @Override
+        public Stream<T> values() {
+            return this.cube.values();
+        }
+
+        @Override
+        public Map<String, List<T>> valuesMapping(String tagName) {
+            return this.cube.valuesMapping(tagName);
+        }
+
+        @Override
+        public <R> Map<String, List<R>> valuesMapping(String tagName, Function<T, R> f) {
+            return this.cube.valuesMapping(tagName, f);
+        }
+
+        @Override
+        public T single() {
+            return this.cube.single();
+        }
+
+        @Override
+        public Map<String, T> singleMapping(String tagName) {
+            return this.cube.singleMapping(tagName);
+        }
+
+        @Override
+        public <R> Map<String, R> singleMapping(String tagName, Function<T, R> f) {
+            return this.cube.singleMapping(tagName, f);
+        }
+    }
 }
@@ -0,0 +1,118 @@
+/*******************************************************************************
+ * Copyright 2019 UIA
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package uia.utils.cube;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author Kyle K. Lin
+ *
+ */
+public class RowSetTest {
+
+    @Test
+    public void testOperations() {
+        Random random = new Random(42);
+        for (int round = 0; round < 200; round++) {
+            int count = 1 + random.nextInt(5000);
+            BitSet a = random(random, count);
+            BitSet b = random(random, count);
+            RowSet ra = of(a);
+            RowSet rb = of(b);
+
+            BitSet and = (BitSet) a.clone();
+            and.and(b);
+            assertSame(and, ra.and(rb));
+
+            BitSet andNot = (BitSet) a.clone();
+            andNot.andNot(b);
+            assertSame(andNot, ra.andNot(rb));
+
+            BitSet or = (BitSet) a.clone();
+            or.or(b);
+            assertSame(or, ra.or(rb));
+
+            BitSet not = (BitSet) a.clone();
+            not.flip(0, count);
+            assertSame(not, ra.complement(count));
+
+            int distance = random.nextBoolean() ? 64 * random.nextInt(10) : random.nextInt(1000);
+            BitSet shift = new BitSet();
+            a.stream().forEach(i -> shift.set(i + distance));
+            assertSame(shift, ra.shift(distance));
+        }
+    }
+
+    @Test
+    public void testSpecial() {
+        Assert.assertTrue(RowSet.EMPTY.isEmpty());
+        Assert.assertEquals(-1, RowSet.EMPTY.first());
+        Assert.assertEquals(0, RowSet.range(0).size());
+        Assert.assertEquals(64, RowSet.range(64).size());
+        Assert.assertEquals(65, RowSet.range(65).size());
+        Assert.assertEquals(0, RowSet.range(1000).first());
+
+        RowSet r = RowSet.of(new int[] { 3, 100, 1000, 0 }, 3);
+        Assert.assertEquals(3, r.size());
+        Assert.assertTrue(r.contains(100));
+        Assert.assertFalse(r.contains(0));
+        Assert.assertArrayEquals(new int[] { 3, 100, 1000 }, r.toArray());
+    }
+
+    private static BitSet random(Random random, int count) {
+        BitSet bits = new BitSet(count);
+        // mix sparse, dense and clustered sets.
+        switch (random.nextInt(3)) {
+            case 0:
+                for (int i = 0; i < count / 50; i++) {
+                    bits.set(random.nextInt(count));
+                }
+                break;
+            case 1:
+                for (int i = 0; i < count; i++) {
+                    if (random.nextInt(3) > 0) {
+                        bits.set(i);
+                    }
+                }
+                break;
+            default:
+                int from = random.nextInt(count);
+                bits.set(from, Math.min(count, from + random.nextInt(1000)));
+                break;
+        }
+        return bits;
+    }
+
+    private static RowSet of(BitSet bits) {
+        int[] ids = bits.stream().toArray();
+        return RowSet.of(ids, ids.length);
+    }
+
+    private static void assertSame(BitSet expected, RowSet actual) {
+        Assert.assertEquals(expected.cardinality(), actual.size());
+        Assert.assertArrayEquals(expected.stream().toArray(), actual.toArray());
+        Assert.assertArrayEquals(expected.stream().toArray(), actual.stream().toArray());
+        Assert.assertEquals(expected.nextSetBit(0), actual.first());
+    }
+}